@@ -0,0 +1,67 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AutomaticThresholdBenchmark
+ * <p>
+ * Measures automatic thresholding including range and histogram determination. Otsu is determined on the device,
+ * Huang on the host.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class AutomaticThresholdBenchmark {
+
+    @Param({"256", "1024"})
+    public int size;
+
+    @Param({"2", "3"})
+    public int dimensions;
+
+    @Param({"8", "16", "32"})
+    public int bitDepth;
+
+    @Param({"256", "4096"})
+    public int numberOfBins;
+
+    @Param({"Otsu", "Huang"})
+    public String method;
+
+    private CLIJ clij;
+    private ClearCLBuffer input;
+    private ClearCLBuffer thresholded;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        clij = BenchmarkImages.clij();
+        input = clij.push(BenchmarkImages.create(bitDepth, dimensions, size));
+        thresholded = clij.create(input);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        input.close();
+        thresholded.close();
+    }
+
+    @Benchmark
+    public boolean applyAutomaticThreshold() {
+        boolean result = AutomaticThreshold.applyAutomaticThreshold(clij, input, thresholded, numberOfBins, method);
+        clij.getClearCLContext().getDefaultQueue().waitToFinish();
+        return result;
+    }
+}
@@ -0,0 +1,43 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import ij.ImagePlus;
+import ij.gui.NewImage;
+import net.haesleinhuepf.clij.CLIJ;
+
+/**
+ * BenchmarkImages
+ * <p>
+ * Device selection and test images shared by the benchmarks. The OpenCL device is chosen by the system property
+ * clij.device, e.g. -Dclij.device=pthread for a POCL CPU device; if it is empty, the default device is used.
+ */
+class BenchmarkImages {
+
+    // depth of three-dimensional benchmark images; width and height are given by the size parameter
+    static final int DEPTH = 64;
+
+    static CLIJ clij() {
+        String deviceName = System.getProperty("clij.device", "");
+        if (deviceName.isEmpty()) {
+            return CLIJ.getInstance();
+        }
+        return CLIJ.getInstance(deviceName);
+    }
+
+    /**
+     * Creates an image filled with random noise of the given type (8, 16 or 32 bit), dimensionality (2 or 3) and
+     * width and height.
+     */
+    static ImagePlus create(int bitDepth, int dimensions, int size) {
+        int depth = dimensions == 2 ? 1 : DEPTH;
+        switch (bitDepth) {
+            case 8:
+                return NewImage.createByteImage("benchmark", size, size, depth, NewImage.FILL_RANDOM);
+            case 16:
+                return NewImage.createShortImage("benchmark", size, size, depth, NewImage.FILL_RANDOM);
+            case 32:
+                return NewImage.createFloatImage("benchmark", size, size, depth, NewImage.FILL_RANDOM);
+            default:
+                throw new IllegalArgumentException("Only 8-bit, 16-bit and 32-bit images are supported.");
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import ij.ImagePlus;
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HistogramBenchmark
+ * <p>
+ * Measures histogram determination on the OpenCL device and on the CPU. The GPU benchmark reads the histogram back
+ * so that the measured time includes kernel execution and not only its enqueueing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HistogramBenchmark {
+
+    @Param({"256", "1024"})
+    public int size;
+
+    @Param({"2", "3"})
+    public int dimensions;
+
+    @Param({"8", "16", "32"})
+    public int bitDepth;
+
+    @Param({"256", "4096"})
+    public int numberOfBins;
+
+    private CLIJ clij;
+    private ImagePlus imp;
+    private ClearCLBuffer input;
+    private ClearCLBuffer partialHistograms;
+    private ClearCLBuffer histogram;
+    private float[] determinedHistogram;
+    private float minimumGreyValue;
+    private float maximumGreyValue;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        clij = BenchmarkImages.clij();
+        imp = BenchmarkImages.create(bitDepth, dimensions, size);
+        input = clij.push(imp);
+        partialHistograms = Histogram.createPartialHistogramsBuffer(clij, input, numberOfBins);
+        histogram = clij.createCLBuffer(new long[]{numberOfBins, 1, 1}, NativeTypeEnum.Float);
+        determinedHistogram = new float[numberOfBins];
+
+        float[] minMax = HistogramCPU.minimumMaximum(imp);
+        minimumGreyValue = minMax[0];
+        maximumGreyValue = minMax[1];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        input.close();
+        partialHistograms.close();
+        histogram.close();
+    }
+
+    @Benchmark
+    public float[] fillHistogram() {
+        Histogram.fillHistogram(clij, input, partialHistograms, histogram, minimumGreyValue, maximumGreyValue);
+        // read back like the plugin does, into an array allocated once
+        return HistogramReadback.readFloats(histogram, determinedHistogram);
+    }
+
+    @Benchmark
+    public long[] histogramCPU() {
+        return HistogramCPU.histogram(imp, minimumGreyValue, maximumGreyValue, numberOfBins);
+    }
+}
@@ -0,0 +1,82 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij.macro.AbstractCLIJPlugin;
+import net.haesleinhuepf.clij.macro.CLIJMacroPlugin;
+import net.haesleinhuepf.clij.macro.CLIJOpenCLProcessor;
+import net.haesleinhuepf.clij.macro.documentation.OffersDocumentation;
+import org.scijava.plugin.Plugin;
+
+/**
+ * AdaptiveHistogramEqualization
+ * <p>
+ * Contrast-limited adaptive histogram equalization (CLAHE) on the GPU. The histograms of all tiles are determined
+ * in one pass, clipped and turned into lookup tables on the GPU, and applied in one pass interpolating between the
+ * lookup tables of the neighbouring tiles.
+ */
+@Plugin(type = CLIJMacroPlugin.class, name = "CLIJ_adaptiveHistogramEqualization")
+public class AdaptiveHistogramEqualization extends AbstractCLIJPlugin implements CLIJMacroPlugin, CLIJOpenCLProcessor, OffersDocumentation {
+
+    @Override
+    public boolean executeCL() {
+        ClearCLBuffer src = (ClearCLBuffer) (args[0]);
+        ClearCLBuffer dst = (ClearCLBuffer) (args[1]);
+        Integer numberOfBins = asInteger(args[2]);
+        Integer tileSizeX = asInteger(args[3]);
+        Integer tileSizeY = asInteger(args[4]);
+        Integer tileSizeZ = asInteger(args[5]);
+        Float clipLimit = asFloat(args[6]);
+
+        return equalizeHistogram(clij, src, dst, numberOfBins, tileSizeX, tileSizeY, tileSizeZ, clipLimit);
+    }
+
+    /**
+     * Equalizes the histograms of tiles of tileSizeX x tileSizeY (x tileSizeZ) pixels. Counts are limited to
+     * clipLimit times the average count per bin, e.g. 3; clipLimit = 0 disables clipping. tileSizeZ is ignored
+     * for 2D images.
+     */
+    public static boolean equalizeHistogram(CLIJ clij, ClearCLBuffer src, ClearCLBuffer dst, int numberOfBins, int tileSizeX, int tileSizeY, int tileSizeZ, float clipLimit) {
+        int[] tileSize = LocalAutomaticThreshold.tileSize(src, tileSizeX, tileSizeY, tileSizeZ);
+        int[] numberOfTiles = LocalAutomaticThreshold.numberOfTiles(src, tileSize);
+        long totalNumberOfTiles = (long)numberOfTiles[0] * numberOfTiles[1] * numberOfTiles[2];
+
+        // all tiles are binned within the range of the whole image, which stays on the GPU
+        ClearCLBuffer partialMinMax = clij.createCLBuffer(Histogram.partialMinimumMaximumSize(src), NativeTypeEnum.Float);
+        ClearCLBuffer minMax = clij.createCLBuffer(new long[]{2, 1, 1}, NativeTypeEnum.Float);
+        Histogram.fillMinimumMaximum(clij, src, partialMinMax, minMax);
+        partialMinMax.close();
+
+        ClearCLBuffer histograms = clij.createCLBuffer(new long[]{numberOfBins, totalNumberOfTiles}, NativeTypeEnum.UnsignedInt);
+        LocalAutomaticThreshold.fillTileHistograms(clij, src, minMax, histograms, tileSize, numberOfTiles);
+
+        ClearCLBuffer lookupTables = clij.createCLBuffer(new long[]{numberOfBins, totalNumberOfTiles}, NativeTypeEnum.Float);
+        HistogramEqualization.fillLookupTables(clij, histograms, lookupTables, clipLimit);
+        histograms.close();
+
+        HistogramEqualization.applyLookupTables(clij, src, minMax, lookupTables, dst, tileSize);
+
+        lookupTables.close();
+        minMax.close();
+        return true;
+    }
+
+    @Override
+    public String getParameterHelpText() {
+        return "Image source, Image destination, Number numberOfBins, Number tileSizeX, Number tileSizeY, Number tileSizeZ, Number clipLimit";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Contrast-limited adaptive histogram equalization (CLAHE): equalizes the histograms of tiles of \n" +
+                "tileSizeX x tileSizeY (x tileSizeZ) pixels and interpolates between neighbouring tiles. Counts are \n" +
+                "limited to clipLimit times the average count per bin, e.g. 3, to limit the amplification of noise; \n" +
+                "clipLimit = 0 disables clipping. tileSizeZ is ignored for 2D images.";
+    }
+
+    @Override
+    public String getAvailableForDimensions() {
+        return "2D, 3D";
+    }
+}
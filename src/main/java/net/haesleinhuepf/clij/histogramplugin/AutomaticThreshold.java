@@ -5,9 +5,10 @@ import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
 import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.gui.Line;
 import ij.process.AutoThresholder;
-import net.haesleinhuepf.clij.kernels.Kernels;
+import ij.process.ImageProcessor;
 import net.haesleinhuepf.clij.macro.AbstractCLIJPlugin;
 import net.haesleinhuepf.clij.macro.CLIJMacroPlugin;
 import net.haesleinhuepf.clij.macro.CLIJOpenCLProcessor;
@@ -15,6 +16,8 @@ import net.haesleinhuepf.clij.macro.documentation.OffersDocumentation;
 import org.scijava.plugin.Plugin;
 
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.stream.IntStream;
 
 /**
  * AutomaticThreshold
@@ -25,20 +28,65 @@ import java.util.Arrays;
 @Plugin(type = CLIJMacroPlugin.class, name = "CLIJ_automaticThreshold")
 public class AutomaticThreshold extends AbstractCLIJPlugin implements CLIJMacroPlugin, CLIJOpenCLProcessor, OffersDocumentation {
 
+    // other methods are determined on the CPU using ImageJ's AutoThresholder
+    static final String[] DEVICE_THRESHOLD_METHODS = new String[]{"Default", "IsoData", "Mean", "Otsu"};
+
     @Override
     public boolean executeCL() {
+        return executeCL(SparseSampling.NONE);
+    }
+
+    protected boolean executeCL(SparseSampling sampling) {
         Integer numberOfBins = 256;
 
         ClearCLBuffer src = (ClearCLBuffer) (args[0]);
         ClearCLBuffer dst = (ClearCLBuffer) (args[1]);
         String selectedThresholdMethod = (String) args[2];
 
-        return applyAutomaticThreshold(clij, src, dst, numberOfBins, selectedThresholdMethod);
+        return applyAutomaticThreshold(clij, src, dst, numberOfBins, selectedThresholdMethod, sampling);
 
     }
 
     public static boolean applyAutomaticThreshold(CLIJ clij, ClearCLBuffer src, ClearCLBuffer dst, int numberOfBins, String selectedThresholdMethod)
     {
+        return applyAutomaticThreshold(clij, src, dst, numberOfBins, selectedThresholdMethod, SparseSampling.NONE);
+    }
+
+    /**
+     * Thresholds an image using a histogram of the pixels selected by sampling, e.g. for live previews. Minimum and
+     * maximum are still determined from all pixels.
+     */
+    public static boolean applyAutomaticThreshold(CLIJ clij, ClearCLBuffer src, ClearCLBuffer dst, int numberOfBins, String selectedThresholdMethod, SparseSampling sampling)
+    {
+        ClearCLBuffer partialMinMax = clij.createCLBuffer(Histogram.partialMinimumMaximumSize(src), NativeTypeEnum.Float);
+        ClearCLBuffer partialHistograms = Histogram.createPartialHistogramsBuffer(clij, src, numberOfBins);
+        ClearCLBuffer histogram = clij.createCLBuffer(new long[]{numberOfBins,1,1}, NativeTypeEnum.UnsignedInt);
+        ClearCLBuffer minMax = clij.createCLBuffer(new long[]{2, 1, 1}, NativeTypeEnum.Float);
+        ClearCLBuffer threshold = clij.createCLBuffer(new long[]{1, 1, 1}, NativeTypeEnum.Float);
+
+        boolean result = applyAutomaticThreshold(clij, src, dst, partialMinMax, minMax, partialHistograms, histogram, threshold, selectedThresholdMethod, sampling);
+
+        partialMinMax.close();
+        partialHistograms.close();
+        histogram.close();
+        minMax.close();
+        threshold.close();
+        return result;
+    }
+
+    /**
+     * Applies the threshold using given buffers for the partial min/max, range, partial histograms, histogram and
+     * threshold. The histogram buffer must be of type UnsignedInt. The buffers are not released so that they can be
+     * reused for further images of the same size.
+     */
+    static boolean applyAutomaticThreshold(CLIJ clij, ClearCLBuffer src, ClearCLBuffer dst, ClearCLBuffer partialMinMax, ClearCLBuffer minMax, ClearCLBuffer partialHistograms, ClearCLBuffer histogram, ClearCLBuffer threshold, String selectedThresholdMethod, SparseSampling sampling)
+    {
+        String method = findThresholdMethod(selectedThresholdMethod);
+        if (isAvailableOnDevice(method) && Histogram.useLocalMemoryKernel(clij, histogram.getWidth())) {
+            applyAutomaticThresholdOnDevice(clij, src, dst, partialMinMax, minMax, partialHistograms, histogram, threshold, method, sampling);
+            return true;
+        }
+
         // determine min and max intensity
         Float minimumGreyValue = 0f;
         Float maximumGreyValue = 0f;
@@ -47,8 +95,9 @@ public class AutomaticThreshold extends AbstractCLIJPlugin implements CLIJMacroP
             minimumGreyValue = 0f;
             maximumGreyValue = 255f;
         } else {
-            minimumGreyValue = new Double(Kernels.minimumOfAllPixels(clij, src)).floatValue();
-            maximumGreyValue = new Double(Kernels.maximumOfAllPixels(clij, src)).floatValue();
+            float[] minMax = Histogram.minimumMaximum(clij, src, partialMinMax);
+            minimumGreyValue = minMax[0];
+            maximumGreyValue = minMax[1];
         }
 
         if (CLIJ.debug) {
@@ -57,60 +106,282 @@ public class AutomaticThreshold extends AbstractCLIJPlugin implements CLIJMacroP
         }
 
         // determine histogram
-        ClearCLBuffer histogram = clij.createCLBuffer(new long[]{numberOfBins,1,1}, NativeTypeEnum.Float);
-        Histogram.fillHistogram(clij, src, histogram, minimumGreyValue, maximumGreyValue);
+        Histogram.fillHistogram(clij, src, partialHistograms, histogram, minimumGreyValue, maximumGreyValue, sampling);
 
-        // the histogram is written in args[1] which is supposed to be a one-dimensional image
-        ImagePlus histogramImp = clij.convert(histogram, ImagePlus.class);
-        histogram.close();
+        // integer counts are fed to the threshold method without conversion
+        int[] determinedHistogram = HistogramReadback.readInts(histogram);
 
-        // convert histogram
-        float[] determinedHistogram = (float[])(histogramImp.getProcessor().getPixels());
-        int[] convertedHistogram = new int[determinedHistogram.length];
+        float thresholdValue = determineThreshold(determinedHistogram, selectedThresholdMethod, minimumGreyValue, maximumGreyValue);
 
-        long sum = 0;
-        for (int i = 0; i < determinedHistogram.length; i++) {
-            convertedHistogram[i] = (int)determinedHistogram[i];
-            sum += convertedHistogram[i];
-        }
         if (CLIJ.debug) {
-            System.out.println("Sum: " + sum);
+            System.out.println("Threshold: " + thresholdValue);
         }
 
-        // check if given threshold method exists
-        String method = "Default";
+        // apply threshold
+        clij.op().threshold(src, dst, thresholdValue);
 
-        for (String choice : AutoThresholder.getMethods()) {
-            if (choice.toLowerCase().compareTo(selectedThresholdMethod.toLowerCase()) == 0) {
-                method = choice;
+        return true;
+    }
+
+    /**
+     * Thresholds an image with a threshold determined from the pixels inside a binary mask only. The threshold is
+     * applied to the whole image. Throws an IllegalArgumentException if the mask is empty.
+     */
+    public static boolean applyAutomaticThreshold(CLIJ clij, ClearCLBuffer src, ClearCLBuffer mask, ClearCLBuffer dst, int numberOfBins, String selectedThresholdMethod)
+    {
+        float[] minMax;
+        if (src.getNativeType() == NativeTypeEnum.UnsignedByte) {
+            minMax = new float[]{0f, 255f};
+        } else {
+            minMax = MaskedHistogram.minimumMaximum(clij, src, mask, null, null);
+            // the range of an empty mask is [Float.MAX_VALUE, -Float.MAX_VALUE]
+            if (minMax[0] > minMax[1]) {
+                throw emptyMask();
             }
         }
+
+        ClearCLBuffer histogram = clij.createCLBuffer(new long[]{numberOfBins, 1, 1}, NativeTypeEnum.UnsignedInt);
+        MaskedHistogram.fillHistogram(clij, src, mask, null, null, histogram, minMax[0], minMax[1]);
+        int[] determinedHistogram = HistogramReadback.readInts(histogram);
+        histogram.close();
+
+        long numberOfPixelsInMask = 0;
+        for (int count : determinedHistogram) {
+            numberOfPixelsInMask += count;
+        }
+        if (numberOfPixelsInMask == 0) {
+            throw emptyMask();
+        }
+
+        float thresholdValue = determineThreshold(determinedHistogram, selectedThresholdMethod, minMax[0], minMax[1]);
+
         if (CLIJ.debug) {
-            System.out.println("Threshold method: " + method);
+            System.out.println("Threshold in mask: " + thresholdValue);
         }
 
-        float threshold = new AutoThresholder().getThreshold(method, convertedHistogram);
+        clij.op().threshold(src, dst, thresholdValue);
+        return true;
+    }
 
-        // math source https://github.com/imagej/ImageJA/blob/master/src/main/java/ij/process/ImageProcessor.java#L692
-        threshold = minimumGreyValue + ((threshold + 1.0f)/255.0f)*(maximumGreyValue-minimumGreyValue);
+    private static IllegalArgumentException emptyMask() {
+        return new IllegalArgumentException("The mask does not contain any pixel; a threshold cannot be determined.");
+    }
+
+    /**
+     * Threshold methods which are implemented in threshold_methods.cl
+     */
+    static boolean isAvailableOnDevice(String method) {
+        return Arrays.asList(DEVICE_THRESHOLD_METHODS).contains(method);
+    }
+
+    /**
+     * Determines range, histogram and threshold on the GPU and applies the threshold without reading anything back.
+     * The method must be available on the device and the histogram must fit into local memory.
+     */
+    static void applyAutomaticThresholdOnDevice(CLIJ clij, ClearCLBuffer src, ClearCLBuffer dst, ClearCLBuffer partialMinMax, ClearCLBuffer minMax, ClearCLBuffer partialHistograms, ClearCLBuffer histogram, ClearCLBuffer threshold, String method, SparseSampling sampling) {
+        if (src.getNativeType() == NativeTypeEnum.UnsignedByte) {
+            Histogram.fillMinimumMaximum(clij, minMax, 0f, 255f);
+        } else {
+            Histogram.fillMinimumMaximum(clij, src, partialMinMax, minMax);
+        }
+
+        Histogram.fillHistogram(clij, src, minMax, partialHistograms, histogram, sampling);
+
+        fillThreshold(clij, histogram, minMax, threshold, method);
+
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("src", src);
+        parameters.put("thresholds", threshold);
+        parameters.put("dst", dst);
+        clij.execute(AutomaticThreshold.class,
+                "threshold.cl",
+                "threshold_from_buffer_" + src.getDimension() + "d",
+                src.getDimensions(),
+                parameters);
+    }
+
+    /**
+     * Determines the threshold grey value of a given histogram on the GPU and writes it into the float buffer
+     * threshold of size 1.
+     */
+    static void fillThreshold(CLIJ clij, ClearCLBuffer histogram, ClearCLBuffer minMax, ClearCLBuffer threshold, String method) {
+        long startTime = HistogramMetrics.start();
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("src_histogram", histogram);
+        parameters.put("min_max", minMax);
+        parameters.put("dst_threshold", threshold);
+        clij.execute(AutomaticThreshold.class,
+                "threshold_methods.cl",
+                "threshold_" + method.toLowerCase(),
+                new long[]{1, 1, 1},
+                parameters);
+        HistogramMetrics.stop(HistogramMetrics.Phase.THRESHOLD, startTime);
+    }
+
+    /**
+     * Thresholds every frame of a stack with its own automatically determined threshold. Frames are consecutive
+     * blocks of slicesPerFrame slices, e.g. slicesPerFrame = 1 thresholds every slice separately. Histograms of all
+     * frames are determined in one pass and read back in one transfer; thresholds are determined in parallel on the
+     * CPU and applied in one pass.
+     */
+    public static boolean applyAutomaticThresholdPerFrame(CLIJ clij, ClearCLBuffer src, ClearCLBuffer dst, int numberOfBins, String selectedThresholdMethod, int slicesPerFrame)
+    {
+        int numberOfFrames = HistogramPerFrame.numberOfFrames(src, slicesPerFrame);
+
+        // determine min and max intensity of all frames
+        float[][] minMax;
+        if (src.getNativeType() == NativeTypeEnum.UnsignedByte) {
+            minMax = new float[numberOfFrames][];
+            Arrays.fill(minMax, new float[]{0f, 255f});
+        } else {
+            minMax = HistogramPerFrame.minimumMaximumPerFrame(clij, src, slicesPerFrame);
+        }
+
+        float[] minMaxValues = new float[numberOfFrames * 2];
+        for (int f = 0; f < numberOfFrames; f++) {
+            minMaxValues[f * 2] = minMax[f][0];
+            minMaxValues[f * 2 + 1] = minMax[f][1];
+        }
+
+        // determine histograms
+        ClearCLBuffer minMaxBuffer = HistogramPerFrame.pushFloats(clij, minMaxValues);
+        ClearCLBuffer histograms = clij.createCLBuffer(new long[]{numberOfBins, numberOfFrames}, NativeTypeEnum.UnsignedInt);
+        HistogramPerFrame.fillHistogramPerFrame(clij, src, minMaxBuffer, histograms, slicesPerFrame);
+        int[][] determinedHistograms = HistogramReadback.rows(HistogramReadback.readInts(histograms), numberOfBins);
+        histograms.close();
+        minMaxBuffer.close();
+
+        // determine thresholds in parallel
+        final float[][] finalMinMax = minMax;
+        float[] thresholds = new float[numberOfFrames];
+        IntStream.range(0, numberOfFrames).parallel().forEach(f -> {
+            thresholds[f] = determineThreshold(determinedHistograms[f], selectedThresholdMethod, finalMinMax[f][0], finalMinMax[f][1]);
+        });
 
         if (CLIJ.debug) {
-            System.out.println("Threshold: " + threshold);
+            System.out.println("Thresholds: " + Arrays.toString(thresholds));
         }
 
-        // apply threshold
-        clij.op().threshold(src, dst, threshold);
+        // apply thresholds
+        ClearCLBuffer thresholdsBuffer = HistogramPerFrame.pushFloats(clij, thresholds);
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("src", src);
+        parameters.put("thresholds", thresholdsBuffer);
+        parameters.put("dst", dst);
+        parameters.put("slices_per_frame", slicesPerFrame);
+        clij.execute(AutomaticThreshold.class,
+                "threshold.cl",
+                "threshold_per_frame_3d",
+                src.getDimensions(),
+                parameters);
+        thresholdsBuffer.close();
 
         return true;
     }
 
+    /**
+     * Thresholds an ImagePlus and returns a binary image of the same type containing 1 for pixels above the
+     * threshold and 0 otherwise. The threshold is determined using OpenCL if a device is available and on the CPU
+     * otherwise; both return the same image.
+     */
+    public static ImagePlus applyAutomaticThreshold(ImagePlus imp, int numberOfBins, String selectedThresholdMethod) {
+        return applyAutomaticThreshold(imp, numberOfBins, selectedThresholdMethod, !Histogram.isOpenCLAvailable());
+    }
+
+    public static ImagePlus applyAutomaticThreshold(ImagePlus imp, int numberOfBins, String selectedThresholdMethod, boolean useCPU) {
+        if (!useCPU) {
+            CLIJ clij = CLIJ.getInstance();
+            ClearCLBuffer src = clij.push(imp);
+            ClearCLBuffer dst = clij.create(src);
+            applyAutomaticThreshold(clij, src, dst, numberOfBins, selectedThresholdMethod);
+            ImagePlus result = clij.pull(dst);
+            result.setTitle(imp.getTitle() + "_thresholded");
+            src.close();
+            dst.close();
+            return result;
+        }
+
+        float minimumGreyValue = 0f;
+        float maximumGreyValue = 255f;
+        if (imp.getBitDepth() != 8) {
+            float[] minMax = HistogramCPU.minimumMaximum(imp);
+            minimumGreyValue = minMax[0];
+            maximumGreyValue = minMax[1];
+        }
+
+        long[] histogram = HistogramCPU.histogram(imp, minimumGreyValue, maximumGreyValue, numberOfBins);
+        int[] convertedHistogram = new int[histogram.length];
+        for (int i = 0; i < histogram.length; i++) {
+            convertedHistogram[i] = (int)histogram[i];
+        }
+
+        float threshold = determineThreshold(convertedHistogram, selectedThresholdMethod, minimumGreyValue, maximumGreyValue);
+
+        // apply threshold
+        ImageStack stack = imp.getStack();
+        ImageStack binaryStack = new ImageStack(imp.getWidth(), imp.getHeight());
+        for (int z = 1; z <= stack.getSize(); z++) {
+            ImageProcessor ip = stack.getProcessor(z);
+            // same type as the source, like the result of the OpenCL kernel
+            ImageProcessor binary = ip.createProcessor(imp.getWidth(), imp.getHeight());
+            for (int i = 0; i < ip.getPixelCount(); i++) {
+                binary.setf(i, ip.getf(i) < threshold ? 0 : 1);
+            }
+            binaryStack.addSlice(binary);
+        }
+        return new ImagePlus(imp.getTitle() + "_thresholded", binaryStack);
+    }
+
+    /**
+     * Runs the selected ImageJ threshold method on a given histogram and converts the resulting bin index back to
+     * a grey value.
+     */
+    static float determineThreshold(int[] histogram, String selectedThresholdMethod, float minimumGreyValue, float maximumGreyValue) {
+        if (CLIJ.debug) {
+            long sum = 0;
+            for (int count : histogram) {
+                sum += count;
+            }
+            System.out.println("Sum: " + sum);
+        }
+
+        String method = findThresholdMethod(selectedThresholdMethod);
+        if (CLIJ.debug) {
+            System.out.println("Threshold method: " + method);
+        }
+
+        long startTime = HistogramMetrics.start();
+        float threshold = new AutoThresholder().getThreshold(method, histogram);
+        HistogramMetrics.stop(HistogramMetrics.Phase.THRESHOLD, startTime);
+
+        // math source https://github.com/imagej/ImageJA/blob/master/src/main/java/ij/process/ImageProcessor.java#L692
+        // generalized from 256 to any number of bins
+        return minimumGreyValue + ((threshold + 1.0f)/(histogram.length - 1.0f))*(maximumGreyValue-minimumGreyValue);
+    }
+
+    // check if given threshold method exists
+    static String findThresholdMethod(String selectedThresholdMethod) {
+        String method = "Default";
+
+        for (String choice : AutoThresholder.getMethods()) {
+            if (choice.toLowerCase().compareTo(selectedThresholdMethod.toLowerCase()) == 0) {
+                method = choice;
+            }
+        }
+        return method;
+    }
+
     @Override
     public String getDescription() {
         StringBuilder doc = new StringBuilder();
         doc.append("The automatic thresholder utilizes the threshold methods from ImageJ on a histogram determined on \n" +
                 "the GPU to create binary images as similar as possible to ImageJ 'Apply Threshold' method. Enter one \n" +
                 "of these methods in the method text field:\n" +
-                Arrays.toString(AutoThresholder.getMethods()) );
+                Arrays.toString(AutoThresholder.getMethods()) + "\n" +
+                "From Java, applyAutomaticThreshold can be called with up to 65536 bins, e.g. to threshold 16-bit \n" +
+                "images on full-resolution histograms.\n" +
+                "The methods " + Arrays.toString(DEVICE_THRESHOLD_METHODS) + " are determined on the GPU without \n" +
+                "reading the histogram back.");
         return doc.toString();
     }
 
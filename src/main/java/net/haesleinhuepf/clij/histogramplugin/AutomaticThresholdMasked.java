@@ -0,0 +1,43 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.macro.AbstractCLIJPlugin;
+import net.haesleinhuepf.clij.macro.CLIJMacroPlugin;
+import net.haesleinhuepf.clij.macro.CLIJOpenCLProcessor;
+import net.haesleinhuepf.clij.macro.documentation.OffersDocumentation;
+import org.scijava.plugin.Plugin;
+
+/**
+ * AutomaticThresholdMasked
+ */
+@Plugin(type = CLIJMacroPlugin.class, name = "CLIJ_automaticThresholdMasked")
+public class AutomaticThresholdMasked extends AbstractCLIJPlugin implements CLIJMacroPlugin, CLIJOpenCLProcessor, OffersDocumentation {
+
+    @Override
+    public boolean executeCL() {
+        Integer numberOfBins = 256;
+
+        ClearCLBuffer src = (ClearCLBuffer) (args[0]);
+        ClearCLBuffer mask = (ClearCLBuffer) (args[1]);
+        ClearCLBuffer dst = (ClearCLBuffer) (args[2]);
+        String selectedThresholdMethod = (String) args[3];
+
+        return AutomaticThreshold.applyAutomaticThreshold(clij, src, mask, dst, numberOfBins, selectedThresholdMethod);
+    }
+
+    @Override
+    public String getParameterHelpText() {
+        return "Image input, Image mask, Image destination, String method";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Applies an automatic threshold like CLIJ_automaticThreshold to the whole image, but determines the \n" +
+                "threshold only from pixels where the given binary mask image is not zero.";
+    }
+
+    @Override
+    public String getAvailableForDimensions() {
+        return "2D, 3D";
+    }
+}
@@ -0,0 +1,30 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import net.haesleinhuepf.clij.macro.CLIJMacroPlugin;
+import org.scijava.plugin.Plugin;
+
+/**
+ * AutomaticThresholdSampled
+ * <p>
+ * Thresholds an image using a histogram of every samplingStride-th pixel in every dimension, e.g. for live previews.
+ */
+@Plugin(type = CLIJMacroPlugin.class, name = "CLIJ_automaticThresholdSampled")
+public class AutomaticThresholdSampled extends AutomaticThreshold {
+
+    @Override
+    public boolean executeCL() {
+        return executeCL(SparseSampling.withStride(asInteger(args[3])));
+    }
+
+    @Override
+    public String getParameterHelpText() {
+        return super.getParameterHelpText() + ", Number samplingStride";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Applies an automatic threshold like CLIJ_automaticThreshold but determines the histogram only from \n" +
+                "every samplingStride-th pixel in X, Y and Z, e.g. 2 or 4. This is faster, but the threshold may \n" +
+                "differ slightly from the one determined from all pixels.";
+    }
+}
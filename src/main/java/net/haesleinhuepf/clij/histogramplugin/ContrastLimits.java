@@ -0,0 +1,178 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import ij.measure.ResultsTable;
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij.macro.AbstractCLIJPlugin;
+import net.haesleinhuepf.clij.macro.CLIJMacroPlugin;
+import net.haesleinhuepf.clij.macro.CLIJOpenCLProcessor;
+import net.haesleinhuepf.clij.macro.documentation.OffersDocumentation;
+import org.scijava.plugin.Plugin;
+
+import java.util.HashMap;
+
+/**
+ * ContrastLimits
+ * <p>
+ * Determines percentiles of an image, e.g. a display range from 0.1% to 99.9%. Range, histogram, cumulative
+ * histogram and percentiles are determined on the GPU; only the requested grey values are read back.
+ */
+@Plugin(type = CLIJMacroPlugin.class, name = "CLIJ_contrastLimits")
+public class ContrastLimits extends AbstractCLIJPlugin implements CLIJMacroPlugin, CLIJOpenCLProcessor, OffersDocumentation {
+
+    // number of bins summed up sequentially per work item in the first pass of the prefix sum
+    private static final int SCAN_BLOCK_SIZE = 256;
+
+    @Override
+    public boolean executeCL() {
+        ClearCLBuffer src = (ClearCLBuffer)( args[0]);
+        Float lowerPercentile = asFloat(args[1]);
+        Float upperPercentile = asFloat(args[2]);
+        Integer numberOfBins = asInteger(args[3]);
+
+        float[] limits = contrastLimits(clij, src, lowerPercentile, upperPercentile, numberOfBins);
+
+        // send result to results table
+        ResultsTable table = ResultsTable.getResultsTable();
+        table.incrementCounter();
+        table.addValue("Lower limit", limits[0]);
+        table.addValue("Upper limit", limits[1]);
+        table.show(table.getTitle());
+
+        return true;
+    }
+
+    /**
+     * Determines the grey values below which lowerPercentile and upperPercentile percent of the pixels lie, e.g.
+     * 0.1 and 99.9 for a display range which is robust against outliers.
+     */
+    public static float[] contrastLimits(CLIJ clij, ClearCLBuffer image, float lowerPercentile, float upperPercentile, int numberOfBins) {
+        return percentiles(clij, image, new float[]{lowerPercentile / 100f, upperPercentile / 100f}, numberOfBins);
+    }
+
+    /**
+     * Determines the grey values below which the given fractions (0..1) of pixels lie. The histogram is determined
+     * between minimum and maximum of the image; values are interpolated linearly within bins. Thus, the error is
+     * below (maximum - minimum) / numberOfBins; for 16-bit images, 65536 bins give exact percentiles.
+     */
+    public static float[] percentiles(CLIJ clij, ClearCLBuffer image, float[] quantiles, int numberOfBins) {
+        ClearCLBuffer partialMinMax = clij.createCLBuffer(Histogram.partialMinimumMaximumSize(image), NativeTypeEnum.Float);
+        ClearCLBuffer minMax = clij.createCLBuffer(new long[]{2, 1, 1}, NativeTypeEnum.Float);
+        ClearCLBuffer partialHistograms = Histogram.createPartialHistogramsBuffer(clij, image, numberOfBins);
+        ClearCLBuffer histogram = clij.createCLBuffer(new long[]{numberOfBins, 1, 1}, NativeTypeEnum.UnsignedInt);
+
+        Histogram.fillMinimumMaximum(clij, image, partialMinMax, minMax);
+        if (Histogram.useLocalMemoryKernel(clij, numberOfBins)) {
+            Histogram.fillHistogram(clij, image, minMax, partialHistograms, histogram);
+        } else {
+            float[] minMaxValues = HistogramReadback.readFloats(minMax);
+            Histogram.fillHistogram(clij, image, partialHistograms, histogram, minMaxValues[0], minMaxValues[1]);
+        }
+        partialMinMax.close();
+        partialHistograms.close();
+
+        ClearCLBuffer cumulativeHistogram = Histogram.createLongHistogramBuffer(clij, numberOfBins, 1);
+        fillCumulativeHistogram(clij, histogram, cumulativeHistogram);
+        histogram.close();
+
+        ClearCLBuffer quantilesBuffer = HistogramPerFrame.pushFloats(clij, quantiles);
+        ClearCLBuffer values = clij.createCLBuffer(new long[]{quantiles.length, 1, 1}, NativeTypeEnum.Float);
+        fillPercentiles(clij, cumulativeHistogram, quantilesBuffer, minMax, values);
+
+        float[] result = HistogramReadback.readFloats(values);
+
+        cumulativeHistogram.close();
+        quantilesBuffer.close();
+        values.close();
+        minMax.close();
+        return result;
+    }
+
+    /**
+     * Determines the cumulative histogram with exact 64-bit counts: entry i contains the number of pixels in bins
+     * 0 to i.
+     */
+    public static long[] cumulativeHistogram(CLIJ clij, ClearCLBuffer image, Float minGreyValue, Float maxGreyValue, int numberOfBins) {
+        ClearCLBuffer histogram = clij.createCLBuffer(new long[]{numberOfBins, 1, 1}, NativeTypeEnum.UnsignedInt);
+        Histogram.fillHistogram(clij, image, histogram, minGreyValue, maxGreyValue, numberOfBins, SparseSampling.NONE);
+
+        ClearCLBuffer cumulativeHistogram = Histogram.createLongHistogramBuffer(clij, numberOfBins, 1);
+        fillCumulativeHistogram(clij, histogram, cumulativeHistogram);
+        histogram.close();
+
+        long[] result = HistogramReadback.readLongs(cumulativeHistogram);
+        cumulativeHistogram.close();
+        return result;
+    }
+
+    /**
+     * Determines the prefix sum of a uint histogram into a 64-bit histogram as created by
+     * Histogram.createLongHistogramBuffer.
+     */
+    static void fillCumulativeHistogram(CLIJ clij, ClearCLBuffer histogram, ClearCLBuffer dstCumulativeHistogram) {
+        long numberOfBins = histogram.getWidth();
+        long numberOfBlocks = (numberOfBins + SCAN_BLOCK_SIZE - 1) / SCAN_BLOCK_SIZE;
+        ClearCLBuffer blockSums = Histogram.createLongHistogramBuffer(clij, numberOfBlocks, 1);
+
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("src_histogram", histogram);
+        parameters.put("dst_cumulative_histogram", dstCumulativeHistogram);
+        parameters.put("block_sums", blockSums);
+        parameters.put("number_of_bins", (int)numberOfBins);
+        parameters.put("block_size", SCAN_BLOCK_SIZE);
+        clij.execute(ContrastLimits.class,
+                "histogram_percentiles.cl",
+                "scan_blocks",
+                new long[]{numberOfBlocks, 1, 1},
+                parameters);
+
+        if (numberOfBlocks > 1) {
+            parameters = new HashMap<>();
+            parameters.put("dst_cumulative_histogram", dstCumulativeHistogram);
+            parameters.put("block_sums", blockSums);
+            parameters.put("block_size", SCAN_BLOCK_SIZE);
+            clij.execute(ContrastLimits.class,
+                    "histogram_percentiles.cl",
+                    "add_block_offsets",
+                    new long[]{numberOfBins, 1, 1},
+                    parameters);
+        }
+        blockSums.close();
+    }
+
+    /**
+     * Writes one grey value per entry of the float buffer quantiles into the float buffer dstValues, using the range
+     * given in the float buffer minMax.
+     */
+    static void fillPercentiles(CLIJ clij, ClearCLBuffer cumulativeHistogram, ClearCLBuffer quantiles, ClearCLBuffer minMax, ClearCLBuffer dstValues) {
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("src_cumulative_histogram", cumulativeHistogram);
+        parameters.put("quantiles", quantiles);
+        parameters.put("min_max", minMax);
+        parameters.put("dst_values", dstValues);
+        parameters.put("number_of_bins", (int)(cumulativeHistogram.getWidth() / 2));
+        clij.execute(ContrastLimits.class,
+                "histogram_percentiles.cl",
+                "percentiles",
+                new long[]{dstValues.getWidth(), 1, 1},
+                parameters);
+    }
+
+    @Override
+    public String getParameterHelpText() {
+        return "Image source, Number lowerPercentile, Number upperPercentile, Number numberOfBins";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Determines the grey values below which lowerPercentile and upperPercentile percent of the pixels of \n" +
+                "a given image lie, e.g. 0.1 and 99.9 for a display range which is robust against outliers. The \n" +
+                "limits are written to the results table; the histogram is not transferred from the GPU.";
+    }
+
+    @Override
+    public String getAvailableForDimensions() {
+        return "2D, 3D";
+    }
+}
@@ -30,14 +30,19 @@ public class FastHistogramDemo {
         Float minimumGreyValue = 0f;
         Float maximumGreyValue = 65535f;
 
-        // potential speedup by sparse sampling; enter 2 or 4 to speedup:
+        // potential speedup by sparse sampling; enter 2 or 4 to speedup. Histogram.histogram() supports this via
+        // SparseSampling and scales the counts back to full-image equivalents.
         int stepSizeXY = 1;
         int stepSizeZ = 1;
 
+        // Histogram.histogram() and AutomaticThreshold.applyAutomaticThreshold() allocate these buffers on every
+        // call. Use a HistogramContext to keep them between calls when processing many images of the same size.
         ClearCLBuffer partialHistograms = clij.createCLBuffer(new long[]{numberOfBins, 1, input.getHeight()}, NativeTypeEnum.Float);
         ClearCLBuffer dstHistogram = clij.createCLBuffer(new long[]{numberOfBins, 1, 1}, NativeTypeEnum.Float);
 
-        // we run it several times because the first iteration is usually slower than the following iterations
+        // we run it several times because the first iteration is usually slower than the following iterations: the
+        // program is compiled for this image size and number of bins. Histogram.warmUp() does this before the first
+        // image arrives.
         for (int i = 0; i < 10; i ++) {
             
             long timeStamp = System.currentTimeMillis();
@@ -47,7 +52,8 @@ public class FastHistogramDemo {
             
             timeStamp = System.currentTimeMillis();
             // determine partial histograms
-            long[] globalSizes = new long[]{src.getHeight() / stepSizeZ,1, 1};
+            // one work item per sampled row
+            long[] globalSizes = new long[]{(src.getHeight() + stepSizeXY - 1) / stepSizeXY, 1, 1};
             HashMap<String, Object> parameters = new HashMap<>();
             parameters.put("src", src);
             parameters.put("dst_histogram", partialHistograms);
@@ -0,0 +1,268 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * HeterogeneousHistogram
+ * <p>
+ * Determines the histogram of a stack on several OpenCL devices and, optionally, a pool of CPU threads at the same
+ * time. The stack is partitioned into slabs of consecutive slices, one per worker, which are processed in parallel.
+ * The exact 64-bit histograms of all slabs are summed up on the host.
+ * <p>
+ * Slab sizes are proportional to the throughput of the workers in pixels per nanosecond, measured while
+ * determining the histograms of earlier stacks. The first stack is split equally. Thus, a scheduler instance should
+ * be kept when processing many stacks.
+ * <p>
+ * Every CLIJ instance is used by one thread at a time; the same instance must not be used elsewhere while a
+ * histogram is determined. Devices can be any OpenCL devices, e.g. several GPUs or CPU devices of POCL.
+ */
+public class HeterogeneousHistogram {
+
+    // weight of the latest measurement when updating the throughput of a worker which was measured before
+    private static final double THROUGHPUT_SMOOTHING = 0.5;
+
+    private final List<CLIJ> devices;
+    private final int numberOfCPUThreads;
+
+    // pixels per nanosecond; devices first, CPU pool last; 0 if not measured yet
+    private final double[] throughputs;
+
+    /**
+     * numberOfCPUThreads = 0 uses the devices only.
+     */
+    public HeterogeneousHistogram(List<CLIJ> devices, int numberOfCPUThreads) {
+        this.devices = new ArrayList<>(new LinkedHashSet<>(devices));
+        this.numberOfCPUThreads = numberOfCPUThreads;
+        if (this.devices.isEmpty() && numberOfCPUThreads < 1) {
+            throw new IllegalArgumentException("At least one device or CPU thread is required.");
+        }
+        throughputs = new double[getNumberOfWorkers()];
+    }
+
+    public int getNumberOfWorkers() {
+        return devices.size() + (numberOfCPUThreads > 0 ? 1 : 0);
+    }
+
+    /**
+     * Measured throughputs in pixels per nanosecond in the order of the devices, followed by the CPU pool. Workers
+     * which did not determine a histogram yet have a throughput of 0.
+     */
+    public synchronized double[] getThroughputs() {
+        return Arrays.copyOf(throughputs, throughputs.length);
+    }
+
+    /**
+     * Determines the exact histogram of a stack. If minimum or maximum are null, they are determined first by all
+     * workers the same way.
+     */
+    public long[] histogram(ImagePlus imp, Float minGreyValue, Float maxGreyValue, int numberOfBins) {
+        int[] slabStarts = slabStarts(partition(imp.getStackSize()));
+
+        if (minGreyValue == null || maxGreyValue == null) {
+            float[] minMax = minimumMaximum(imp, slabStarts);
+            if (minGreyValue == null) {
+                minGreyValue = minMax[0];
+            }
+            if (maxGreyValue == null) {
+                maxGreyValue = minMax[1];
+            }
+        }
+        final float minimum = minGreyValue;
+        final float maximum = maxGreyValue;
+
+        List<long[]> slabHistograms = run(imp, slabStarts, true,
+                (clij, slab) -> Histogram.histogramLong(clij, slab, minimum, maximum, numberOfBins),
+                (slab) -> HistogramCPU.histogram(slab, minimum, maximum, numberOfBins),
+                (sum, slabHistogram) -> {
+                    for (int i = 0; i < numberOfBins; i++) {
+                        sum[i] += slabHistogram[i];
+                    }
+                    return sum;
+                });
+
+        long[] histogram = new long[numberOfBins];
+        for (long[] slabHistogram : slabHistograms) {
+            for (int i = 0; i < numberOfBins; i++) {
+                histogram[i] += slabHistogram[i];
+            }
+        }
+        return histogram;
+    }
+
+    public float[] minimumMaximum(ImagePlus imp) {
+        return minimumMaximum(imp, slabStarts(partition(imp.getStackSize())));
+    }
+
+    private float[] minimumMaximum(ImagePlus imp, int[] slabStarts) {
+        // minimum and maximum are determined at a different speed and thus not measured
+        List<float[]> slabMinMax = run(imp, slabStarts, false,
+                Histogram::minimumMaximum,
+                HistogramCPU::minimumMaximum,
+                (minMax, other) -> new float[]{Math.min(minMax[0], other[0]), Math.max(minMax[1], other[1])});
+
+        float[] minMax = new float[]{Float.MAX_VALUE, -Float.MAX_VALUE};
+        for (float[] values : slabMinMax) {
+            minMax[0] = Math.min(minMax[0], values[0]);
+            minMax[1] = Math.max(minMax[1], values[1]);
+        }
+        return minMax;
+    }
+
+    private interface DeviceTask<T> {
+        T apply(CLIJ clij, ClearCLBuffer slab);
+    }
+
+    private interface CPUTask<T> {
+        T apply(ImagePlus slab);
+    }
+
+    private interface Merge<T> {
+        T apply(T result, T other);
+    }
+
+    /**
+     * Runs the task on the slabs of all workers in parallel and, if measureThroughput is set, updates their
+     * throughputs. Slabs which are too large for the memory of a device are uploaded and processed in parts whose
+     * results are merged.
+     */
+    private <T> List<T> run(ImagePlus imp, int[] slabStarts, boolean measureThroughput, DeviceTask<T> deviceTask, CPUTask<T> cpuTask, Merge<T> merge) {
+        long pixelsPerSlice = (long)imp.getWidth() * imp.getHeight();
+        int numberOfWorkers = getNumberOfWorkers();
+
+        List<Callable<T>> tasks = new ArrayList<>();
+        for (int w = 0; w < numberOfWorkers; w++) {
+            final int worker = w;
+            final int fromSlice = slabStarts[w];
+            final int toSlice = slabStarts[w + 1];
+            if (fromSlice == toSlice) {
+                continue;
+            }
+            tasks.add(() -> {
+                long startTime = System.nanoTime();
+                T result;
+                if (worker < devices.size()) {
+                    CLIJ clij = devices.get(worker);
+                    int partDepth = StreamedHistogram.slabDepth(clij, imp);
+                    result = null;
+                    for (int z = fromSlice; z < toSlice; z += partDepth) {
+                        ClearCLBuffer part = clij.push(substack(imp, z, Math.min(z + partDepth, toSlice)));
+                        T partResult = deviceTask.apply(clij, part);
+                        part.close();
+                        result = result == null ? partResult : merge.apply(result, partResult);
+                    }
+                } else {
+                    // parallel streams started within a ForkJoinPool run in this pool
+                    ForkJoinPool pool = new ForkJoinPool(numberOfCPUThreads);
+                    try {
+                        result = pool.submit(() -> cpuTask.apply(substack(imp, fromSlice, toSlice))).get();
+                    } finally {
+                        pool.shutdown();
+                    }
+                }
+                if (measureThroughput) {
+                    updateThroughput(worker, (toSlice - fromSlice) * pixelsPerSlice, System.nanoTime() - startTime);
+                }
+                return result;
+            });
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+        try {
+            List<T> results = new ArrayList<>();
+            for (Future<T> future : executor.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * The first measurement of a worker is taken as it is; later ones are smoothed.
+     */
+    synchronized void updateThroughput(int worker, long numberOfPixels, long nanoseconds) {
+        double measured = (double)numberOfPixels / Math.max(1, nanoseconds);
+        if (throughputs[worker] == 0) {
+            throughputs[worker] = measured;
+        } else {
+            throughputs[worker] = THROUGHPUT_SMOOTHING * measured + (1 - THROUGHPUT_SMOOTHING) * throughputs[worker];
+        }
+    }
+
+    /**
+     * Number of slices per worker, proportional to the throughputs. Workers which were not measured yet are assumed
+     * as fast as the average measured worker; if none was measured, the slices are split equally. Slices which
+     * remain after rounding down go to the workers with the largest remainders.
+     */
+    synchronized int[] partition(int numberOfSlices) {
+        double measuredSum = 0;
+        int numberOfMeasuredWorkers = 0;
+        for (double throughput : throughputs) {
+            if (throughput > 0) {
+                measuredSum += throughput;
+                numberOfMeasuredWorkers++;
+            }
+        }
+        double[] weights = new double[throughputs.length];
+        double sum = 0;
+        for (int w = 0; w < throughputs.length; w++) {
+            weights[w] = throughputs[w] > 0 ? throughputs[w] : numberOfMeasuredWorkers > 0 ? measuredSum / numberOfMeasuredWorkers : 1;
+            sum += weights[w];
+        }
+
+        int[] slices = new int[throughputs.length];
+        double[] remainders = new double[throughputs.length];
+        int assigned = 0;
+        for (int w = 0; w < throughputs.length; w++) {
+            double share = numberOfSlices * weights[w] / sum;
+            slices[w] = (int)share;
+            remainders[w] = share - slices[w];
+            assigned += slices[w];
+        }
+        for (; assigned < numberOfSlices; assigned++) {
+            int largest = 0;
+            for (int w = 1; w < remainders.length; w++) {
+                if (remainders[w] > remainders[largest]) {
+                    largest = w;
+                }
+            }
+            slices[largest]++;
+            remainders[largest] = -1;
+        }
+        return slices;
+    }
+
+    private static int[] slabStarts(int[] slices) {
+        int[] starts = new int[slices.length + 1];
+        for (int w = 0; w < slices.length; w++) {
+            starts[w + 1] = starts[w] + slices[w];
+        }
+        return starts;
+    }
+
+    private static ImagePlus substack(ImagePlus imp, int fromSlice, int toSlice) {
+        ImageStack stack = imp.getStack();
+        ImageStack substack = new ImageStack(stack.getWidth(), stack.getHeight());
+        for (int z = fromSlice; z < toSlice; z++) {
+            substack.addSlice(stack.getProcessor(z + 1));
+        }
+        return new ImagePlus(imp.getTitle(), substack);
+    }
+}
@@ -2,7 +2,6 @@ package net.haesleinhuepf.clij.histogramplugin;
 
 import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
 import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
-import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.Line;
 import ij.gui.Plot;
@@ -17,6 +16,7 @@ import net.haesleinhuepf.clij.macro.documentation.OffersDocumentation;
 import org.scijava.plugin.Plugin;
 
 import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
 
 /**
  *
@@ -27,9 +27,24 @@ import java.util.HashMap;
 @Plugin(type = CLIJMacroPlugin.class, name = "CLIJ_histogram")
 public class Histogram extends AbstractCLIJPlugin implements CLIJMacroPlugin, CLIJOpenCLProcessor, OffersDocumentation {
 
+    static final int MAXIMUM_NUMBER_OF_BINS = 65536;
+    private static final long NUMBER_OF_ATOMIC_PARTIAL_HISTOGRAMS = 64;
+    // limits the size of buffers for partial histogram matrices, e.g. per frame or per label, to 64 MB
+    private static final long MAXIMUM_NUMBER_OF_PARTIAL_HISTOGRAM_ENTRIES = 16 * 1024 * 1024;
+    // images up to this size are binned and reduced in one launch
+    private static final long MAXIMUM_NUMBER_OF_PIXELS_FOR_FUSED_REDUCTION = 1024 * 1024;
+    // every work item of the local memory kernels bins this many pixels; same as in histogram.cl
+    private static final long PIXELS_PER_WORK_ITEM = 16;
+    // global sizes of the local memory kernels are multiples of this in X and Y, so that drivers can choose
+    // work-groups of up to 16 x 16 work items also for odd image sizes
+    private static final long WORK_GROUP_EDGE = 16;
 
     @Override
     public boolean executeCL() {
+        return executeCL(SparseSampling.NONE);
+    }
+
+    protected boolean executeCL(SparseSampling sampling) {
         Integer numberOfBins = asInteger(args[2]);
         Float minimumGreyValue = asFloat(args[3]);
         Float maximumGreyValue = asFloat(args[4]);
@@ -39,24 +54,24 @@ public class Histogram extends AbstractCLIJPlugin implements CLIJMacroPlugin, CL
 
         // determine min and max intensity if necessary
         if (determineMinMax) {
-            minimumGreyValue = new Double(Kernels.minimumOfAllPixels(clij, src)).floatValue();
-            maximumGreyValue = new Double(Kernels.maximumOfAllPixels(clij, src)).floatValue();
+            float[] minMax = minimumMaximum(clij, src);
+            minimumGreyValue = minMax[0];
+            maximumGreyValue = minMax[1];
         }
 
         // determine histogram
         Object[] args = openCLBufferArgs();
-        boolean result = fillHistogram(clij, src, (ClearCLBuffer)(args[1]), minimumGreyValue, maximumGreyValue);
+        boolean result = fillHistogram(clij, src, (ClearCLBuffer)(args[1]), minimumGreyValue, maximumGreyValue, sampling);
         releaseBuffers(args);
 
         // the histogram is written in args[1] which is supposed to be a one-dimensional image
-        ImagePlus histogramImp = clij.convert((ClearCLBuffer)(args[1]), ImagePlus.class);
+        float[] determinedHistogram = HistogramReadback.readAsFloats(clij, (ClearCLBuffer)(args[1]));
 
         // plot without first eleement
         //histogramImp.setRoi(new Line(1,0.5, histogramImp.getWidth(), 0.5));
         //IJ.run(histogramImp, "Plot Profile", "");
 
         // plot properly
-        float[] determinedHistogram = (float[])(histogramImp.getProcessor().getPixels());
         float[] xAxis = new float[asInteger(args[2])];
         xAxis[0] = minimumGreyValue;
         float step = (maximumGreyValue - minimumGreyValue) / (numberOfBins - 1);
@@ -79,20 +94,180 @@ public class Histogram extends AbstractCLIJPlugin implements CLIJMacroPlugin, CL
     }
 
     static boolean fillHistogram(CLIJ clij, ClearCLBuffer src, ClearCLBuffer dstHistogram, Float minimumGreyValue, Float maximumGreyValue) {
+        return fillHistogram(clij, src, dstHistogram, minimumGreyValue, maximumGreyValue, SparseSampling.NONE);
+    }
 
-        int stepSizeX = 1;
-        int stepSizeY = 1;
-        int stepSizeZ = 1;
+    static boolean fillHistogram(CLIJ clij, ClearCLBuffer src, ClearCLBuffer dstHistogram, Float minimumGreyValue, Float maximumGreyValue, SparseSampling sampling) {
+        // allocate memory for partial histograms
+        ClearCLBuffer partialHistograms = createPartialHistogramsBuffer(clij, src, dstHistogram.getWidth());
 
-        long[] globalSizes = new long[]{src.getHeight() / stepSizeZ, 1, 1};
+        boolean result = fillHistogram(clij, src, partialHistograms, dstHistogram, minimumGreyValue, maximumGreyValue, sampling);
 
-        long numberOfPartialHistograms = globalSizes[0] * globalSizes[1] * globalSizes[2];
-        long[] histogramBufferSize = new long[]{dstHistogram.getWidth(), 1, numberOfPartialHistograms};
+        partialHistograms.close();
+        return result;
+    }
 
-        long timeStamp = System.currentTimeMillis();
+    /**
+     * Determines the histogram using a given buffer for the partial histograms. The buffer must have been created
+     * by createPartialHistogramsBuffer for an image of the same size and the same number of bins.
+     */
+    static boolean fillHistogram(CLIJ clij, ClearCLBuffer src, ClearCLBuffer partialHistograms, ClearCLBuffer dstHistogram, Float minimumGreyValue, Float maximumGreyValue) {
+        return fillHistogram(clij, src, partialHistograms, dstHistogram, minimumGreyValue, maximumGreyValue, SparseSampling.NONE);
+    }
 
-        // allocate memory for partial histograms
-        ClearCLBuffer  partialHistograms = clij.createCLBuffer(histogramBufferSize, dstHistogram.getNativeType());
+    /**
+     * Determines the histogram of the pixels selected by sampling. dstHistogram may be a float histogram, a uint
+     * histogram or a 64-bit histogram as created by createLongHistogramBuffer. Counts of float histograms are scaled
+     * to full-image equivalents; integer histograms contain the exact counts of the sampled pixels.
+     */
+    static boolean fillHistogram(CLIJ clij, ClearCLBuffer src, ClearCLBuffer partialHistograms, ClearCLBuffer dstHistogram, Float minimumGreyValue, Float maximumGreyValue, SparseSampling sampling) {
+        long numberOfBins = partialHistograms.getWidth();
+        if (useLocalMemoryKernel(clij, numberOfBins)) {
+            fillHistogramUsingAtomics(clij, src, partialHistograms, dstHistogram, minimumGreyValue, maximumGreyValue, sampling, "histogram.cl", "histogram_image_local_");
+        } else if (useRowByRowKernel(clij, numberOfBins)) {
+            fillHistogramRowByRow(clij, src, partialHistograms, dstHistogram, minimumGreyValue, maximumGreyValue, sampling);
+        } else {
+            fillHistogramUsingAtomics(clij, src, partialHistograms, dstHistogram, minimumGreyValue, maximumGreyValue, sampling, "histogram_global_atomics.cl", "histogram_image_global_");
+        }
+        scaleToFullImage(clij, src, dstHistogram, sampling);
+        return true;
+    }
+
+    /**
+     * The local memory kernels keep one histogram per work-group in local memory. They can only be used if
+     * this histogram fits into the local memory of the device.
+     */
+    static boolean useLocalMemoryKernel(CLIJ clij, long numberOfBins) {
+        checkNumberOfBins(numberOfBins);
+        return useLocalMemoryKernel(clij, numberOfBins, 1);
+    }
+
+    /**
+     * Same for kernels which keep a matrix of numberOfBins x numberOfRows bins per work-group, e.g. one histogram
+     * per frame, label, channel or tile, or a joint histogram.
+     */
+    static boolean useLocalMemoryKernel(CLIJ clij, long numberOfBins, long numberOfRows) {
+        long requiredLocalMemory = numberOfBins * numberOfRows * 4; // uint per bin
+        return requiredLocalMemory <= clij.getClearCLContext().getDevice().getLocalMemorySizeInBytes();
+    }
+
+    /**
+     * The row-by-row kernels keep a private histogram per work item and are only used for up to 256 bins if the
+     * local memory kernels cannot be used. Otherwise, bins are incremented in global memory.
+     */
+    static boolean useRowByRowKernel(CLIJ clij, long numberOfBins) {
+        return numberOfBins <= 256 && !useLocalMemoryKernel(clij, numberOfBins);
+    }
+
+    private static void checkNumberOfBins(long numberOfBins) {
+        if (numberOfBins < 1 || numberOfBins > MAXIMUM_NUMBER_OF_BINS) {
+            throw new IllegalArgumentException("The number of bins must be between 1 and " + MAXIMUM_NUMBER_OF_BINS + " but was " + numberOfBins + ".");
+        }
+    }
+
+    static long[] partialHistogramsSize(CLIJ clij, ClearCLBuffer src, long numberOfBins) {
+        if (useRowByRowKernel(clij, numberOfBins)) {
+            // one partial histogram per row
+            return new long[]{numberOfBins, 1, src.getHeight()};
+        }
+        // work-groups write into a limited number of partial histograms; atomics resolve collisions. The last
+        // plane holds the work-group counter of the fused kernels.
+        return new long[]{numberOfBins, 1, numberOfAtomicPartialHistograms(src) + 1};
+    }
+
+    private static long numberOfAtomicPartialHistograms(ClearCLBuffer src) {
+        return Math.min(src.getHeight(), NUMBER_OF_ATOMIC_PARTIAL_HISTOGRAMS);
+    }
+
+    static NativeTypeEnum partialHistogramsType(CLIJ clij, long numberOfBins) {
+        // partial histograms are counted and reduced in integers
+        return NativeTypeEnum.UnsignedInt;
+    }
+
+    /**
+     * Creates a zero-initialized buffer for partial histograms. As the reduction zeroes the partial histograms
+     * after reading them, the buffer can be reused without initializing it again.
+     */
+    static ClearCLBuffer createPartialHistogramsBuffer(CLIJ clij, ClearCLBuffer src, long numberOfBins) {
+        ClearCLBuffer partialHistograms = clij.createCLBuffer(partialHistogramsSize(clij, src, numberOfBins), partialHistogramsType(clij, numberOfBins));
+        Kernels.set(clij, partialHistograms, 0f);
+        return partialHistograms;
+    }
+
+    /**
+     * Creates a zero-initialized uint buffer of size numberOfBins x numberOfRows x number of partial histograms for
+     * kernels which determine a matrix of histograms, e.g. one per frame, label, channel or tile, or a joint
+     * histogram. Partial histograms are accumulated using atomics; their number is limited such that the buffer
+     * takes at most 64 MB. Reduce them with reducePartialHistograms().
+     */
+    static ClearCLBuffer createPartialHistogramsBuffer(CLIJ clij, long numberOfBins, long numberOfRows) {
+        long numberOfPartialHistograms = Math.max(1, Math.min(NUMBER_OF_ATOMIC_PARTIAL_HISTOGRAMS, MAXIMUM_NUMBER_OF_PARTIAL_HISTOGRAM_ENTRIES / (numberOfBins * numberOfRows)));
+        ClearCLBuffer partialHistograms = clij.createCLBuffer(new long[]{numberOfBins, numberOfRows, numberOfPartialHistograms}, NativeTypeEnum.UnsignedInt);
+        Kernels.set(clij, partialHistograms, 0f);
+        return partialHistograms;
+    }
+
+    /**
+     * Sums up the first numberOfPartialHistograms planes of a uint partial histograms buffer into dstHistogram
+     * using integer accumulation. The partial histograms are zeroed afterwards.
+     */
+    static void reducePartialHistograms(CLIJ clij, ClearCLBuffer partialHistograms, ClearCLBuffer dstHistogram, long numberOfPartialHistograms) {
+        long startTime = HistogramMetrics.start();
+        if (isLongHistogram(partialHistograms, dstHistogram)) {
+            long numberOfEntries = partialHistograms.getWidth() * partialHistograms.getHeight();
+
+            HashMap<String, Object> parameters = new HashMap<>();
+            parameters.put("partial_histograms", partialHistograms);
+            parameters.put("dst_histogram_words", dstHistogram);
+            parameters.put("number_of_entries", (int)numberOfEntries);
+            parameters.put("number_of_partial_histograms", (int)numberOfPartialHistograms);
+            clij.execute(Histogram.class,
+                    "histogram_reduce_words.cl",
+                    "reduce_partial_histograms_to_words",
+                    new long[]{numberOfEntries, 1, 1},
+                    parameters);
+            HistogramMetrics.stop(HistogramMetrics.Phase.REDUCTION, startTime);
+            return;
+        }
+
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("partial_histograms", partialHistograms);
+        parameters.put("dst_histogram", dstHistogram);
+        parameters.put("number_of_partial_histograms", (int)numberOfPartialHistograms);
+        clij.execute(Histogram.class,
+                "histogram_reduce.cl",
+                "reduce_partial_histograms",
+                new long[]{dstHistogram.getWidth(), dstHistogram.getHeight(), 1},
+                parameters);
+        HistogramMetrics.stop(HistogramMetrics.Phase.REDUCTION, startTime);
+    }
+
+    static void reducePartialHistograms(CLIJ clij, ClearCLBuffer partialHistograms, ClearCLBuffer dstHistogram) {
+        reducePartialHistograms(clij, partialHistograms, dstHistogram, partialHistograms.getDepth());
+    }
+
+    /**
+     * Creates a buffer for numberOfRows 64-bit histograms, e.g. one per frame. Every count is stored as a pair of
+     * uint words (low, high); HistogramReadback.readLongs() combines them.
+     */
+    static ClearCLBuffer createLongHistogramBuffer(CLIJ clij, long numberOfBins, long numberOfRows) {
+        return clij.createCLBuffer(new long[]{numberOfBins * 2, numberOfRows, 1}, NativeTypeEnum.UnsignedInt);
+    }
+
+    /**
+     * 64-bit histograms have twice as many entries per row as the partial histograms they are reduced from.
+     */
+    static boolean isLongHistogram(ClearCLBuffer partialHistograms, ClearCLBuffer dstHistogram) {
+        return dstHistogram.getNativeType() == NativeTypeEnum.UnsignedInt && dstHistogram.getWidth() == partialHistograms.getWidth() * 2;
+    }
+
+    static void fillHistogramRowByRow(CLIJ clij, ClearCLBuffer src, ClearCLBuffer partialHistograms, ClearCLBuffer dstHistogram, Float minimumGreyValue, Float maximumGreyValue, SparseSampling sampling) {
+        int stepSizeX = sampling.getStepX();
+        int stepSizeY = sampling.getStepY();
+        int stepSizeZ = sampling.getStepZ();
+
+        // one work item per sampled row; the partial histograms of rows which are not sampled stay empty
+        long[] globalSizes = new long[]{sampling.globalSizes(src.getDimensions())[1], 1, 1};
 
         //
         HashMap<String, Object> parameters = new HashMap<>();
@@ -105,38 +280,386 @@ public class Histogram extends AbstractCLIJPlugin implements CLIJMacroPlugin, CL
         if (src.getDimension() > 2) {
             parameters.put("step_size_z", stepSizeZ);
         }
+        long startTime = HistogramMetrics.start();
         clij.execute(Histogram.class,
                 "histogram.cl",
                 "histogram_image_" + src.getDimension() + "d",
                 globalSizes,
                 parameters);
+        HistogramMetrics.stop(HistogramMetrics.Phase.BINNING, startTime);
 
-        Kernels.sumZProjection(clij, partialHistograms, dstHistogram);
-        IJ.log("Histogram generation took " + (System.currentTimeMillis() - timeStamp) + " msec");
+        reducePartialHistograms(clij, partialHistograms, dstHistogram);
+    }
 
-        partialHistograms.close();
+    static void fillHistogramUsingAtomics(CLIJ clij, ClearCLBuffer src, ClearCLBuffer partialHistograms, ClearCLBuffer dstHistogram, Float minimumGreyValue, Float maximumGreyValue, SparseSampling sampling, String programFilename, String kernelNamePrefix) {
+        long numberOfPartialHistograms = partialHistograms.getDepth() - 1;
+
+        // small images are binned and reduced in one launch; 64-bit histograms are reduced separately
+        boolean fused = kernelNamePrefix.equals("histogram_image_local_") && sampling.numberOfSampledPixels(src.getDimensions()) <= MAXIMUM_NUMBER_OF_PIXELS_FOR_FUSED_REDUCTION
+                && !isLongHistogram(partialHistograms, dstHistogram);
+        if (!fused) {
+            binUsingAtomics(clij, src, partialHistograms, numberOfPartialHistograms, minimumGreyValue, maximumGreyValue, sampling, programFilename, kernelNamePrefix);
+            reducePartialHistograms(clij, partialHistograms, dstHistogram, numberOfPartialHistograms);
+            return;
+        }
+
+        HashMap<String, Object> parameters = binningParameters(src, minimumGreyValue, maximumGreyValue, sampling, numberOfPartialHistograms);
+        parameters.put("partial_histograms", partialHistograms);
+        parameters.put("dst_histogram", dstHistogram);
+        // the fused kernel reduces as well; its duration is reported as binning
+        long startTime = HistogramMetrics.start();
+        clij.execute(Histogram.class,
+                programFilename,
+                "histogram_image_local_fused_" + src.getDimension() + "d",
+                localMemoryKernelGlobalSizes(src, sampling),
+                parameters);
+        HistogramMetrics.stop(HistogramMetrics.Phase.BINNING, startTime);
+    }
+
+    /**
+     * Adds the histogram of src to the first numberOfPartialHistograms uint partial histograms without reducing them.
+     */
+    private static void binUsingAtomics(CLIJ clij, ClearCLBuffer src, ClearCLBuffer partialHistograms, long numberOfPartialHistograms, Float minimumGreyValue, Float maximumGreyValue, SparseSampling sampling, String programFilename, String kernelNamePrefix) {
+        HashMap<String, Object> parameters = binningParameters(src, minimumGreyValue, maximumGreyValue, sampling, numberOfPartialHistograms);
+        parameters.put("dst_histogram", partialHistograms);
+        long[] globalSizes = kernelNamePrefix.startsWith("histogram_image_local_") ? localMemoryKernelGlobalSizes(src, sampling)
+                // one work item per sampled pixel
+                : sampling.globalSizes(src.getDimensions());
+        long startTime = HistogramMetrics.start();
+        clij.execute(Histogram.class,
+                programFilename,
+                kernelNamePrefix + src.getDimension() + "d",
+                globalSizes,
+                parameters);
+        HistogramMetrics.stop(HistogramMetrics.Phase.BINNING, startTime);
+    }
+
+    /**
+     * Work items of the local memory kernels bin PIXELS_PER_WORK_ITEM sampled pixels of a row each.
+     */
+    static long[] localMemoryKernelGlobalSizes(ClearCLBuffer src, SparseSampling sampling) {
+        long[] globalSizes = sampling.globalSizes(src.getDimensions());
+        globalSizes[0] = roundUp((globalSizes[0] + PIXELS_PER_WORK_ITEM - 1) / PIXELS_PER_WORK_ITEM, WORK_GROUP_EDGE);
+        globalSizes[1] = roundUp(globalSizes[1], WORK_GROUP_EDGE);
+        return globalSizes;
+    }
+
+    private static long roundUp(long value, long multiple) {
+        return (value + multiple - 1) / multiple * multiple;
+    }
+
+    private static HashMap<String, Object> binningParameters(ClearCLBuffer src, Float minimumGreyValue, Float maximumGreyValue, SparseSampling sampling, long numberOfPartialHistograms) {
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("src", src);
+        parameters.put("minimum", minimumGreyValue);
+        parameters.put("maximum", maximumGreyValue);
+        parameters.put("step_size_x", sampling.getStepX());
+        parameters.put("step_size_y", sampling.getStepY());
+        if (src.getDimension() > 2) {
+            parameters.put("step_size_z", sampling.getStepZ());
+        }
+        parameters.put("number_of_partial_histograms", (int)numberOfPartialHistograms);
+        return parameters;
+    }
+
+    /**
+     * Adds the histogram of src to partial histograms as created by createPartialHistogramsBuffer(clij, numberOfBins,
+     * 1) without reducing them. The histograms of several images, e.g. the slabs of a stack, are accumulated this way
+     * and reduced once with reducePartialHistograms(). Every partial histogram counts up to 2^32 - 1 per bin.
+     */
+    static void accumulatePartialHistograms(CLIJ clij, ClearCLBuffer src, ClearCLBuffer partialHistograms, Float minimumGreyValue, Float maximumGreyValue) {
+        if (useLocalMemoryKernel(clij, partialHistograms.getWidth())) {
+            binUsingAtomics(clij, src, partialHistograms, partialHistograms.getDepth(), minimumGreyValue, maximumGreyValue, SparseSampling.NONE, "histogram.cl", "histogram_image_local_");
+        } else {
+            // the row-by-row kernels overwrite their partial histograms and thus cannot accumulate
+            binUsingAtomics(clij, src, partialHistograms, partialHistograms.getDepth(), minimumGreyValue, maximumGreyValue, SparseSampling.NONE, "histogram_global_atomics.cl", "histogram_image_global_");
+        }
+    }
+
+    private static void scaleToFullImage(CLIJ clij, ClearCLBuffer src, ClearCLBuffer dstHistogram, SparseSampling sampling) {
+        // integer histograms keep exact counts; threshold methods do not depend on the scale
+        if (sampling.isSparse() && dstHistogram.getNativeType() == NativeTypeEnum.Float) {
+            Kernels.multiplyImageAndScalar(clij, dstHistogram, dstHistogram, sampling.scaleFactor(src));
+        }
+    }
+
+    /**
+     * Determines minimum and maximum intensity of an image in one pass over the image and with one read back.
+     */
+    public static float[] minimumMaximum(CLIJ clij, ClearCLBuffer src) {
+        ClearCLBuffer partialMinMax = clij.createCLBuffer(partialMinimumMaximumSize(src), NativeTypeEnum.Float);
+        float[] minMax = minimumMaximum(clij, src, partialMinMax);
+        partialMinMax.close();
+        return minMax;
+    }
+
+    static float[] minimumMaximum(CLIJ clij, ClearCLBuffer src, ClearCLBuffer partialMinMax) {
+        long startTime = HistogramMetrics.start();
+        fillPartialMinimumMaximum(clij, src, partialMinMax);
+        HistogramMetrics.stop(HistogramMetrics.Phase.MINIMUM_MAXIMUM, startTime);
+
+        float[] partialMinMaxValues = HistogramReadback.readFloats(partialMinMax);
+
+        float[] minMax = new float[]{partialMinMaxValues[0], partialMinMaxValues[1]};
+        for (int i = 2; i < partialMinMaxValues.length; i += 2) {
+            minMax[0] = Math.min(minMax[0], partialMinMaxValues[i]);
+            minMax[1] = Math.max(minMax[1], partialMinMaxValues[i + 1]);
+        }
+        return minMax;
+    }
+
+    static long[] partialMinimumMaximumSize(ClearCLBuffer src) {
+        return new long[]{2, src.getHeight()};
+    }
+
+    private static void fillPartialMinimumMaximum(CLIJ clij, ClearCLBuffer src, ClearCLBuffer partialMinMax) {
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("src", src);
+        parameters.put("dst_min_max", partialMinMax);
+        clij.execute(Histogram.class,
+                "minimum_maximum.cl",
+                "minimum_maximum_" + src.getDimension() + "d",
+                new long[]{src.getHeight(), 1, 1},
+                parameters);
+    }
+
+    /**
+     * Determines the histogram between minimum and maximum intensity of the image in two passes. The range is
+     * determined and kept on the GPU so that the histogram pass starts without host synchronisation. If the local
+     * memory kernels cannot be used, the range is read back and the histogram determined as usual.
+     */
+    static boolean fillHistogramAutoRange(CLIJ clij, ClearCLBuffer src, ClearCLBuffer partialMinMax, ClearCLBuffer minMax, ClearCLBuffer partialHistograms, ClearCLBuffer dstHistogram) {
+        return fillHistogramAutoRange(clij, src, partialMinMax, minMax, partialHistograms, dstHistogram, SparseSampling.NONE);
+    }
+
+    static boolean fillHistogramAutoRange(CLIJ clij, ClearCLBuffer src, ClearCLBuffer partialMinMax, ClearCLBuffer minMax, ClearCLBuffer partialHistograms, ClearCLBuffer dstHistogram, SparseSampling sampling) {
+        if (!useLocalMemoryKernel(clij, partialHistograms.getWidth())) {
+            float[] minMaxValues = minimumMaximum(clij, src, partialMinMax);
+            return fillHistogram(clij, src, partialHistograms, dstHistogram, minMaxValues[0], minMaxValues[1], sampling);
+        }
+
+        fillMinimumMaximum(clij, src, partialMinMax, minMax);
+        return fillHistogram(clij, src, minMax, partialHistograms, dstHistogram, sampling);
+    }
+
+    /**
+     * Determines minimum and maximum of an image and writes them into the float buffer minMax of size 2 without
+     * reading them back.
+     */
+    static void fillMinimumMaximum(CLIJ clij, ClearCLBuffer src, ClearCLBuffer partialMinMax, ClearCLBuffer minMax) {
+        long startTime = HistogramMetrics.start();
+        fillPartialMinimumMaximum(clij, src, partialMinMax);
+
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("src_partial_min_max", partialMinMax);
+        parameters.put("dst_min_max", minMax);
+        parameters.put("number_of_partial_min_max", (int)partialMinMax.getHeight());
+        clij.execute(Histogram.class,
+                "minimum_maximum_reduce.cl",
+                "minimum_maximum_reduce",
+                new long[]{1, 1, 1},
+                parameters);
+        HistogramMetrics.stop(HistogramMetrics.Phase.MINIMUM_MAXIMUM, startTime);
+    }
+
+    /**
+     * Writes a given range into the float buffer minMax of size 2.
+     */
+    static void fillMinimumMaximum(CLIJ clij, ClearCLBuffer minMax, Float minimumGreyValue, Float maximumGreyValue) {
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("dst_min_max", minMax);
+        parameters.put("minimum", minimumGreyValue);
+        parameters.put("maximum", maximumGreyValue);
+        clij.execute(Histogram.class,
+                "minimum_maximum_reduce.cl",
+                "set_minimum_maximum",
+                new long[]{1, 1, 1},
+                parameters);
+    }
+
+    /**
+     * Determines the histogram between minimum and maximum as given in the float buffer minMax. Only supported if
+     * the local memory kernels can be used.
+     */
+    static boolean fillHistogram(CLIJ clij, ClearCLBuffer src, ClearCLBuffer minMax, ClearCLBuffer partialHistograms, ClearCLBuffer dstHistogram) {
+        return fillHistogram(clij, src, minMax, partialHistograms, dstHistogram, SparseSampling.NONE);
+    }
+
+    static boolean fillHistogram(CLIJ clij, ClearCLBuffer src, ClearCLBuffer minMax, ClearCLBuffer partialHistograms, ClearCLBuffer dstHistogram, SparseSampling sampling) {
+        if (!useLocalMemoryKernel(clij, partialHistograms.getWidth())) {
+            throw new IllegalArgumentException("Histograms with " + partialHistograms.getWidth() + " bins do not fit into local memory and thus need minimum and maximum on the host.");
+        }
+        long numberOfPartialHistograms = partialHistograms.getDepth() - 1;
+
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("src", src);
+        parameters.put("min_max", minMax);
+        parameters.put("dst_histogram", partialHistograms);
+        parameters.put("step_size_x", sampling.getStepX());
+        parameters.put("step_size_y", sampling.getStepY());
+        if (src.getDimension() > 2) {
+            parameters.put("step_size_z", sampling.getStepZ());
+        }
+        parameters.put("number_of_partial_histograms", (int)numberOfPartialHistograms);
+        long startTime = HistogramMetrics.start();
+        clij.execute(Histogram.class,
+                "histogram.cl",
+                "histogram_image_local_range_" + src.getDimension() + "d",
+                localMemoryKernelGlobalSizes(src, sampling),
+                parameters);
+        HistogramMetrics.stop(HistogramMetrics.Phase.BINNING, startTime);
+
+        reducePartialHistograms(clij, partialHistograms, dstHistogram, numberOfPartialHistograms);
+        scaleToFullImage(clij, src, dstHistogram, sampling);
         return true;
     }
 
     public static float[] histogram(CLIJ clij, ClearCLBuffer image, Float minGreyValue, Float maxGreyValue, int numberOfBins) {
+        return histogram(clij, image, minGreyValue, maxGreyValue, numberOfBins, SparseSampling.NONE);
+    }
+
+    /**
+     * Determines the histogram of the pixels selected by sampling, e.g. SparseSampling.withStride(4). Counts are
+     * scaled to full-image equivalents; minimum and maximum are determined from all pixels if not given.
+     */
+    public static float[] histogram(CLIJ clij, ClearCLBuffer image, Float minGreyValue, Float maxGreyValue, int numberOfBins, SparseSampling sampling) {
         ClearCLBuffer histogram = clij.createCLBuffer(new long[]{numberOfBins, 1, 1}, NativeTypeEnum.Float);
+        fillHistogram(clij, image, histogram, minGreyValue, maxGreyValue, numberOfBins, sampling);
 
-        if (minGreyValue == null) {
-            minGreyValue = new Double(Kernels.minimumOfAllPixels(clij, image)).floatValue();
-        }
-        if (maxGreyValue == null) {
-            maxGreyValue = new Double(Kernels.maximumOfAllPixels(clij, image)).floatValue();
-        }
+        float[] determinedHistogram = HistogramReadback.readFloats(histogram);
+        histogram.close();
+        return determinedHistogram;
+    }
 
-        Histogram.fillHistogram(clij, image, histogram, minGreyValue, maxGreyValue);
+    /**
+     * Determines the histogram and reads it back asynchronously. Only the transfer of the result is asynchronous:
+     * CLIJ launches kernels blocking, so range and histogram are determined on the calling thread before this
+     * method returns. The future completes on a readback thread of HistogramReadback once the histogram arrived.
+     */
+    public static CompletableFuture<float[]> histogramAsync(CLIJ clij, ClearCLBuffer image, Float minGreyValue, Float maxGreyValue, int numberOfBins) {
+        ClearCLBuffer histogram = clij.createCLBuffer(new long[]{numberOfBins, 1, 1}, NativeTypeEnum.Float);
+        fillHistogram(clij, image, histogram, minGreyValue, maxGreyValue, numberOfBins, SparseSampling.NONE);
+
+        return HistogramReadback.readFloatsAsync(clij, histogram, new float[numberOfBins]).thenApply((determinedHistogram) -> {
+            histogram.close();
+            return determinedHistogram;
+        });
+    }
 
-        ImagePlus histogramImp = clij.convert(histogram, ImagePlus.class);
+    /**
+     * Determines the histogram with exact integer counts up to 2^31 - 1 per bin. Counts are read back directly into
+     * the result without conversion to float.
+     */
+    public static int[] histogramInt(CLIJ clij, ClearCLBuffer image, Float minGreyValue, Float maxGreyValue, int numberOfBins) {
+        ClearCLBuffer histogram = clij.createCLBuffer(new long[]{numberOfBins, 1, 1}, NativeTypeEnum.UnsignedInt);
+        fillHistogram(clij, image, histogram, minGreyValue, maxGreyValue, numberOfBins, SparseSampling.NONE);
+
+        int[] determinedHistogram = HistogramReadback.readInts(histogram);
         histogram.close();
+        return determinedHistogram;
+    }
+
+    /**
+     * Determines the histogram with exact 64-bit counts, e.g. for images with more than 2^31 pixels.
+     */
+    public static long[] histogramLong(CLIJ clij, ClearCLBuffer image, Float minGreyValue, Float maxGreyValue, int numberOfBins) {
+        ClearCLBuffer histogram = createLongHistogramBuffer(clij, numberOfBins, 1);
+        fillHistogram(clij, image, histogram, minGreyValue, maxGreyValue, numberOfBins, SparseSampling.NONE);
 
-        float[] determinedHistogram = (float[])(histogramImp.getProcessor().getPixels());
+        long[] determinedHistogram = HistogramReadback.readLongs(histogram);
+        histogram.close();
         return determinedHistogram;
     }
 
+    /**
+     * Determines the histogram into a float, uint or 64-bit histogram buffer. If minimum or maximum are null, they
+     * are determined from the image.
+     */
+    static void fillHistogram(CLIJ clij, ClearCLBuffer image, ClearCLBuffer histogram, Float minGreyValue, Float maxGreyValue, int numberOfBins, SparseSampling sampling) {
+        ClearCLBuffer partialHistograms = createPartialHistogramsBuffer(clij, image, numberOfBins);
+
+        if (minGreyValue == null && maxGreyValue == null) {
+            ClearCLBuffer partialMinMax = clij.createCLBuffer(partialMinimumMaximumSize(image), NativeTypeEnum.Float);
+            ClearCLBuffer minMax = clij.createCLBuffer(new long[]{2, 1, 1}, NativeTypeEnum.Float);
+            fillHistogramAutoRange(clij, image, partialMinMax, minMax, partialHistograms, histogram, sampling);
+            partialMinMax.close();
+            minMax.close();
+        } else {
+            if (minGreyValue == null || maxGreyValue == null) {
+                float[] minMax = minimumMaximum(clij, image);
+                if (minGreyValue == null) {
+                    minGreyValue = minMax[0];
+                }
+                if (maxGreyValue == null) {
+                    maxGreyValue = minMax[1];
+                }
+            }
+            Histogram.fillHistogram(clij, image, partialHistograms, histogram, minGreyValue, maxGreyValue, sampling);
+        }
+        partialHistograms.close();
+    }
+
+    /**
+     * Determines grey values below which the given fractions (0..1) of pixels lie; see ContrastLimits.
+     */
+    public static float[] percentiles(CLIJ clij, ClearCLBuffer image, float[] quantiles, int numberOfBins) {
+        return ContrastLimits.percentiles(clij, image, quantiles, numberOfBins);
+    }
+
+    /**
+     * Builds the histogram programs for the given pixel types, image sizes and numbers of bins before the first image
+     * is processed; see HistogramProgramCache.
+     */
+    public static void warmUp(CLIJ clij, NativeTypeEnum[] types, long[][] imageSizes, int[] numbersOfBins) {
+        HistogramProgramCache.warmUp(clij, types, imageSizes, numbersOfBins);
+    }
+
+    /**
+     * Determines the histograms of all channels stored along Z in one pass; see HistogramPerChannel.
+     */
+    public static int[][] histogramPerChannel(CLIJ clij, ClearCLBuffer image, int numberOfChannels, boolean channelsInterleaved, int numberOfBins) {
+        return HistogramPerChannel.histogramPerChannel(clij, image, numberOfChannels, channelsInterleaved, null, null, numberOfBins);
+    }
+
+    /**
+     * Determines the histogram of all pixels where mask is not zero; see MaskedHistogram for regions of interest.
+     */
+    public static float[] histogram(CLIJ clij, ClearCLBuffer image, ClearCLBuffer mask, Float minGreyValue, Float maxGreyValue, int numberOfBins) {
+        return MaskedHistogram.histogram(clij, image, mask, minGreyValue, maxGreyValue, numberOfBins);
+    }
+
+    /**
+     * Determines the histogram of an ImagePlus. The histogram is determined using OpenCL if a device is available
+     * and on the CPU otherwise.
+     */
+    public static long[] histogram(ImagePlus imp, Float minGreyValue, Float maxGreyValue, int numberOfBins) {
+        return histogram(imp, minGreyValue, maxGreyValue, numberOfBins, !isOpenCLAvailable());
+    }
+
+    public static long[] histogram(ImagePlus imp, Float minGreyValue, Float maxGreyValue, int numberOfBins, boolean useCPU) {
+        if (useCPU) {
+            return HistogramCPU.histogram(imp, minGreyValue, maxGreyValue, numberOfBins);
+        }
+
+        CLIJ clij = CLIJ.getInstance();
+        ClearCLBuffer image = clij.push(imp);
+        long[] determinedHistogram = histogramLong(clij, image, minGreyValue, maxGreyValue, numberOfBins);
+        image.close();
+        return determinedHistogram;
+    }
+
+    private static Boolean openCLAvailable = null;
+    static boolean isOpenCLAvailable() {
+        if (openCLAvailable == null) {
+            try {
+                openCLAvailable = CLIJ.getAvailableDeviceNames().size() > 0;
+            } catch (Throwable e) {
+                openCLAvailable = false;
+            }
+        }
+        return openCLAvailable;
+    }
+
     @Override
     public String getParameterHelpText() {
         return "Image source, Image destination, Number numberOfBins, Number minimumGreyValue, Number maximumGreyValue, Boolean determineMinAndMax";
@@ -144,7 +667,7 @@ public class Histogram extends AbstractCLIJPlugin implements CLIJMacroPlugin, CL
 
     @Override
     public String getDescription() {
-        return "Determines the histogram of a given image.";
+        return "Determines the histogram of a given image. Up to " + MAXIMUM_NUMBER_OF_BINS + " bins are supported.";
     }
 
     @Override
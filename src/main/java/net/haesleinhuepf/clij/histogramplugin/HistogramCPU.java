@@ -0,0 +1,211 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.util.Util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * HistogramCPU
+ * <p>
+ * Determines histograms on the CPU without any OpenCL device. Pixel arrays are split into blocks of rows which are
+ * binned in parallel into thread-local histograms which are merged in the end. Bin indices are computed exactly like
+ * in histogram.cl so that results are identical to the ones determined on the GPU.
+ */
+public class HistogramCPU {
+
+    private static final int ROWS_PER_BLOCK = 64;
+
+    public static long[] histogram(ImagePlus imp, Float minimumGreyValue, Float maximumGreyValue, int numberOfBins) {
+        return histogram(blocksOf(imp), minimumGreyValue, maximumGreyValue, numberOfBins);
+    }
+
+    public static long[] histogram(ImageProcessor ip, Float minimumGreyValue, Float maximumGreyValue, int numberOfBins) {
+        List<PixelBlock> blocks = new ArrayList<>();
+        addBlocks(blocks, ip.getPixels(), ip.getWidth(), ip.getWidth() * ip.getHeight(), true);
+        return histogram(blocks, minimumGreyValue, maximumGreyValue, numberOfBins);
+    }
+
+    public static <T extends RealType<T>> long[] histogram(RandomAccessibleInterval<T> rai, Float minimumGreyValue, Float maximumGreyValue, int numberOfBins) {
+        return histogram(blocksOf(rai), minimumGreyValue, maximumGreyValue, numberOfBins);
+    }
+
+    public static float[] minimumMaximum(ImagePlus imp) {
+        return minimumMaximum(blocksOf(imp));
+    }
+
+    public static <T extends RealType<T>> float[] minimumMaximum(RandomAccessibleInterval<T> rai) {
+        return minimumMaximum(blocksOf(rai));
+    }
+
+    /**
+     * Same computation as in histogram.cl: (value - minimum) * numberOfBins / range in float precision, rounded
+     * towards zero and saturated.
+     */
+    static int binIndex(float value, float minimum, float range, int numberOfBins) {
+        int index = (int)((value - minimum) * (float)numberOfBins / range);
+        if (index < 0) {
+            return 0;
+        }
+        if (index >= numberOfBins) {
+            return numberOfBins - 1;
+        }
+        return index;
+    }
+
+    private static long[] histogram(List<PixelBlock> blocks, Float minimumGreyValue, Float maximumGreyValue, int numberOfBins) {
+        if (minimumGreyValue == null || maximumGreyValue == null) {
+            float[] minMax = minimumMaximum(blocks);
+            if (minimumGreyValue == null) {
+                minimumGreyValue = minMax[0];
+            }
+            if (maximumGreyValue == null) {
+                maximumGreyValue = minMax[1];
+            }
+        }
+        final float minimum = minimumGreyValue;
+        final float range = maximumGreyValue - minimumGreyValue;
+
+        return blocks.parallelStream().collect(
+                () -> new long[numberOfBins],
+                (histogram, block) -> block.addTo(histogram, minimum, range),
+                (histogram, other) -> {
+                    for (int i = 0; i < histogram.length; i++) {
+                        histogram[i] += other[i];
+                    }
+                });
+    }
+
+    private static float[] minimumMaximum(List<PixelBlock> blocks) {
+        return blocks.parallelStream().collect(
+                () -> new float[]{Float.MAX_VALUE, -Float.MAX_VALUE},
+                (minMax, block) -> block.updateMinimumMaximum(minMax),
+                (minMax, other) -> {
+                    minMax[0] = Math.min(minMax[0], other[0]);
+                    minMax[1] = Math.max(minMax[1], other[1]);
+                });
+    }
+
+    private static List<PixelBlock> blocksOf(ImagePlus imp) {
+        List<PixelBlock> blocks = new ArrayList<>();
+        ImageStack stack = imp.getStack();
+        for (int z = 1; z <= stack.getSize(); z++) {
+            addBlocks(blocks, stack.getPixels(z), stack.getWidth(), stack.getWidth() * stack.getHeight(), true);
+        }
+        return blocks;
+    }
+
+    private static <T extends RealType<T>> List<PixelBlock> blocksOf(RandomAccessibleInterval<T> rai) {
+        T type = Util.getTypeFromInterval(rai);
+        boolean unsigned = !(type instanceof ByteType || type instanceof ShortType);
+        int width = (int)rai.dimension(0);
+
+        List<PixelBlock> blocks = new ArrayList<>();
+        if (rai instanceof ArrayImg && ((ArrayImg) rai).update(null) instanceof ArrayDataAccess) {
+            ArrayDataAccess access = (ArrayDataAccess) ((ArrayImg) rai).update(null);
+            addBlocks(blocks, access.getCurrentStorageArray(), width, access.getArrayLength(), unsigned);
+        } else if (rai instanceof PlanarImg) {
+            PlanarImg planarImg = (PlanarImg) rai;
+            for (int z = 0; z < planarImg.numSlices(); z++) {
+                ArrayDataAccess access = (ArrayDataAccess) planarImg.getPlane(z);
+                addBlocks(blocks, access.getCurrentStorageArray(), width, access.getArrayLength(), unsigned);
+            }
+        } else {
+            // neither array nor planar: let ImageJ materialize slice by slice
+            return blocksOf(ImageJFunctions.wrap(rai, "histogram"));
+        }
+        return blocks;
+    }
+
+    private static void addBlocks(List<PixelBlock> blocks, Object pixels, int width, int numberOfPixels, boolean unsigned) {
+        if (!(pixels instanceof byte[] || pixels instanceof short[] || pixels instanceof float[])) {
+            throw new IllegalArgumentException("Only 8-bit, 16-bit and 32-bit images are supported.");
+        }
+        int blockSize = width * ROWS_PER_BLOCK;
+        for (int from = 0; from < numberOfPixels; from += blockSize) {
+            blocks.add(new PixelBlock(pixels, from, Math.min(from + blockSize, numberOfPixels), unsigned));
+        }
+    }
+
+    private static class PixelBlock {
+        private final Object pixels;
+        private final int from;
+        private final int to;
+        private final boolean unsigned;
+
+        PixelBlock(Object pixels, int from, int to, boolean unsigned) {
+            this.pixels = pixels;
+            this.from = from;
+            this.to = to;
+            this.unsigned = unsigned;
+        }
+
+        void addTo(long[] histogram, float minimum, float range) {
+            int numberOfBins = histogram.length;
+            if (pixels instanceof byte[]) {
+                byte[] array = (byte[]) pixels;
+                if (unsigned) {
+                    for (int i = from; i < to; i++) {
+                        histogram[binIndex(array[i] & 0xff, minimum, range, numberOfBins)]++;
+                    }
+                } else {
+                    for (int i = from; i < to; i++) {
+                        histogram[binIndex(array[i], minimum, range, numberOfBins)]++;
+                    }
+                }
+            } else if (pixels instanceof short[]) {
+                short[] array = (short[]) pixels;
+                if (unsigned) {
+                    for (int i = from; i < to; i++) {
+                        histogram[binIndex(array[i] & 0xffff, minimum, range, numberOfBins)]++;
+                    }
+                } else {
+                    for (int i = from; i < to; i++) {
+                        histogram[binIndex(array[i], minimum, range, numberOfBins)]++;
+                    }
+                }
+            } else {
+                float[] array = (float[]) pixels;
+                for (int i = from; i < to; i++) {
+                    histogram[binIndex(array[i], minimum, range, numberOfBins)]++;
+                }
+            }
+        }
+
+        void updateMinimumMaximum(float[] minMax) {
+            float minimum = minMax[0];
+            float maximum = minMax[1];
+            for (int i = from; i < to; i++) {
+                float value = valueAt(i);
+                if (value < minimum) {
+                    minimum = value;
+                }
+                if (value > maximum) {
+                    maximum = value;
+                }
+            }
+            minMax[0] = minimum;
+            minMax[1] = maximum;
+        }
+
+        private float valueAt(int i) {
+            if (pixels instanceof byte[]) {
+                return unsigned ? ((byte[]) pixels)[i] & 0xff : ((byte[]) pixels)[i];
+            } else if (pixels instanceof short[]) {
+                return unsigned ? ((short[]) pixels)[i] & 0xffff : ((short[]) pixels)[i];
+            }
+            return ((float[]) pixels)[i];
+        }
+    }
+}
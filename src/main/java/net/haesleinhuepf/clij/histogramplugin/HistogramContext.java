@@ -0,0 +1,156 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij.kernels.Kernels;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * HistogramContext
+ * <p>
+ * Keeps the buffers for partial histograms and histograms allocated between calls. When processing many images of
+ * the same size, repeated calls of histogram() and threshold() do not allocate any memory on the GPU. Buffers are
+ * pooled by their size (number of bins, number of partial histograms) and type. The pool holds at most a given
+ * number of buffers; when images of many sizes pass through, the least recently used buffers are closed. Call
+ * close() to release all of them.
+ * <p>
+ * A context may be shared between threads; its calls are serialized.
+ */
+public class HistogramContext implements AutoCloseable {
+
+    // the most buffers a single call of histogram() or threshold() uses
+    static final int MINIMUM_NUMBER_OF_BUFFERS = 5;
+
+    private static final int DEFAULT_MAXIMUM_NUMBER_OF_BUFFERS = 32;
+
+    private final CLIJ clij;
+    private final LinkedHashMap<String, ClearCLBuffer> buffers;
+
+    public HistogramContext(CLIJ clij) {
+        this(clij, DEFAULT_MAXIMUM_NUMBER_OF_BUFFERS);
+    }
+
+    /**
+     * Creates a context which keeps at most maximumNumberOfBuffers buffers, at least 5.
+     */
+    public HistogramContext(CLIJ clij, int maximumNumberOfBuffers) {
+        if (maximumNumberOfBuffers < MINIMUM_NUMBER_OF_BUFFERS) {
+            throw new IllegalArgumentException("A histogram context needs at least " + MINIMUM_NUMBER_OF_BUFFERS + " buffers, but was limited to " + maximumNumberOfBuffers + ".");
+        }
+        this.clij = clij;
+        // in access order, so that the eldest entry is the least recently used buffer
+        this.buffers = new LinkedHashMap<String, ClearCLBuffer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ClearCLBuffer> eldest) {
+                if (size() > maximumNumberOfBuffers) {
+                    eldest.getValue().close();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public float[] histogram(ClearCLBuffer image, Float minGreyValue, Float maxGreyValue, int numberOfBins) {
+        return histogram(image, minGreyValue, maxGreyValue, numberOfBins, SparseSampling.NONE);
+    }
+
+    public float[] histogram(ClearCLBuffer image, Float minGreyValue, Float maxGreyValue, int numberOfBins, SparseSampling sampling) {
+        return histogram(image, minGreyValue, maxGreyValue, sampling, new float[numberOfBins]);
+    }
+
+    /**
+     * Determines a histogram with as many bins as the given array has elements and copies it into the array. When
+     * the same array is passed for every image, nothing is allocated on the host either.
+     */
+    public synchronized float[] histogram(ClearCLBuffer image, Float minGreyValue, Float maxGreyValue, SparseSampling sampling, float[] result) {
+        int numberOfBins = result.length;
+        ClearCLBuffer histogram = getHistogramBuffer(numberOfBins, NativeTypeEnum.Float);
+        ClearCLBuffer partialHistograms = getPartialHistogramsBuffer(image, numberOfBins);
+
+        if (minGreyValue == null && maxGreyValue == null) {
+            Histogram.fillHistogramAutoRange(clij, image, getPartialMinimumMaximumBuffer(image), getMinimumMaximumBuffer(), partialHistograms, histogram, sampling);
+        } else {
+            if (minGreyValue == null || maxGreyValue == null) {
+                float[] minMax = Histogram.minimumMaximum(clij, image, getPartialMinimumMaximumBuffer(image));
+                if (minGreyValue == null) {
+                    minGreyValue = minMax[0];
+                }
+                if (maxGreyValue == null) {
+                    maxGreyValue = minMax[1];
+                }
+            }
+            Histogram.fillHistogram(clij, image, partialHistograms, histogram, minGreyValue, maxGreyValue, sampling);
+        }
+
+        return HistogramReadback.readFloats(histogram, result);
+    }
+
+    public boolean threshold(ClearCLBuffer src, ClearCLBuffer dst, int numberOfBins, String selectedThresholdMethod) {
+        return threshold(src, dst, numberOfBins, selectedThresholdMethod, SparseSampling.NONE);
+    }
+
+    public synchronized boolean threshold(ClearCLBuffer src, ClearCLBuffer dst, int numberOfBins, String selectedThresholdMethod, SparseSampling sampling) {
+        return AutomaticThreshold.applyAutomaticThreshold(clij, src, dst, getPartialMinimumMaximumBuffer(src), getMinimumMaximumBuffer(), getPartialHistogramsBuffer(src, numberOfBins), getHistogramBuffer(numberOfBins, NativeTypeEnum.UnsignedInt), getBuffer(new long[]{1, 1, 1}, NativeTypeEnum.Float), selectedThresholdMethod, sampling);
+    }
+
+    ClearCLBuffer getPartialHistogramsBuffer(ClearCLBuffer src, long numberOfBins) {
+        // zero-initialized once; the reduction leaves them zeroed
+        return getZeroedBuffer(Histogram.partialHistogramsSize(clij, src, numberOfBins), Histogram.partialHistogramsType(clij, numberOfBins));
+    }
+
+    ClearCLBuffer getPartialMinimumMaximumBuffer(ClearCLBuffer src) {
+        return getBuffer(Histogram.partialMinimumMaximumSize(src), NativeTypeEnum.Float);
+    }
+
+    ClearCLBuffer getMinimumMaximumBuffer() {
+        return getBuffer(new long[]{2, 1, 1}, NativeTypeEnum.Float);
+    }
+
+    ClearCLBuffer getHistogramBuffer(long numberOfBins, NativeTypeEnum type) {
+        return getBuffer(new long[]{numberOfBins, 1, 1}, type);
+    }
+
+    /**
+     * Returns a buffer of the given size and type; it is only allocated on the first request or after it was
+     * evicted from the pool.
+     */
+    synchronized ClearCLBuffer getBuffer(long[] dimensions, NativeTypeEnum type) {
+        String key = Arrays.toString(dimensions) + type;
+        ClearCLBuffer buffer = buffers.get(key);
+        if (buffer == null) {
+            buffer = clij.createCLBuffer(dimensions, type);
+            buffers.put(key, buffer);
+        }
+        return buffer;
+    }
+
+    synchronized ClearCLBuffer getZeroedBuffer(long[] dimensions, NativeTypeEnum type) {
+        boolean allocated = buffers.containsKey(Arrays.toString(dimensions) + type);
+        ClearCLBuffer buffer = getBuffer(dimensions, type);
+        if (!allocated) {
+            Kernels.set(clij, buffer, 0f);
+        }
+        return buffer;
+    }
+
+    synchronized int getNumberOfBuffers() {
+        return buffers.size();
+    }
+
+    public CLIJ getCLIJ() {
+        return clij;
+    }
+
+    @Override
+    public synchronized void close() {
+        for (ClearCLBuffer buffer : buffers.values()) {
+            buffer.close();
+        }
+        buffers.clear();
+    }
+}
@@ -0,0 +1,123 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij.macro.AbstractCLIJPlugin;
+import net.haesleinhuepf.clij.macro.CLIJMacroPlugin;
+import net.haesleinhuepf.clij.macro.CLIJOpenCLProcessor;
+import net.haesleinhuepf.clij.macro.documentation.OffersDocumentation;
+import org.scijava.plugin.Plugin;
+
+import java.util.HashMap;
+
+/**
+ * HistogramEqualization
+ * <p>
+ * Equalizes the histogram of an image on the GPU: every pixel is mapped to its position in the cumulative
+ * histogram, scaled to the range of the image. Range, histogram, lookup table and mapping stay on the GPU; nothing
+ * is read back.
+ */
+@Plugin(type = CLIJMacroPlugin.class, name = "CLIJ_histogramEqualization")
+public class HistogramEqualization extends AbstractCLIJPlugin implements CLIJMacroPlugin, CLIJOpenCLProcessor, OffersDocumentation {
+
+    @Override
+    public boolean executeCL() {
+        ClearCLBuffer src = (ClearCLBuffer) (args[0]);
+        ClearCLBuffer dst = (ClearCLBuffer) (args[1]);
+        Integer numberOfBins = asInteger(args[2]);
+
+        return equalizeHistogram(clij, src, dst, numberOfBins);
+    }
+
+    public static boolean equalizeHistogram(CLIJ clij, ClearCLBuffer src, ClearCLBuffer dst, int numberOfBins) {
+        ClearCLBuffer partialMinMax = clij.createCLBuffer(Histogram.partialMinimumMaximumSize(src), NativeTypeEnum.Float);
+        ClearCLBuffer minMax = clij.createCLBuffer(new long[]{2, 1, 1}, NativeTypeEnum.Float);
+        ClearCLBuffer histogram = clij.createCLBuffer(new long[]{numberOfBins, 1, 1}, NativeTypeEnum.UnsignedInt);
+
+        // one tile covering the whole image
+        int[] tileSize = LocalAutomaticThreshold.tileSize(src, (int)src.getWidth(), (int)src.getHeight(), src.getDimension() > 2 ? (int)src.getDepth() : 1);
+
+        Histogram.fillMinimumMaximum(clij, src, partialMinMax, minMax);
+        partialMinMax.close();
+        if (Histogram.useLocalMemoryKernel(clij, numberOfBins)) {
+            ClearCLBuffer partialHistograms = Histogram.createPartialHistogramsBuffer(clij, src, numberOfBins);
+            Histogram.fillHistogram(clij, src, minMax, partialHistograms, histogram);
+            partialHistograms.close();
+        } else {
+            // too many bins for local memory; the tile histogram kernel bins in global memory within the range on the GPU
+            LocalAutomaticThreshold.fillTileHistograms(clij, src, minMax, histogram, tileSize, LocalAutomaticThreshold.numberOfTiles(src, tileSize));
+        }
+
+        ClearCLBuffer lut = clij.createCLBuffer(new long[]{numberOfBins, 1, 1}, NativeTypeEnum.Float);
+        fillLookupTables(clij, histogram, lut, 0f);
+        histogram.close();
+
+        applyLookupTables(clij, src, minMax, lut, dst, tileSize);
+
+        lut.close();
+        minMax.close();
+        return true;
+    }
+
+    /**
+     * Converts every row of a uint histogram matrix into a normalized cumulative histogram, clipping counts at
+     * clipLimit times the average count per bin if clipLimit is larger than 0.
+     */
+    static void fillLookupTables(CLIJ clij, ClearCLBuffer histograms, ClearCLBuffer dstLookupTables, float clipLimit) {
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("src_histograms", histograms);
+        parameters.put("dst_luts", dstLookupTables);
+        parameters.put("number_of_bins", (int)histograms.getWidth());
+        parameters.put("clip_limit", clipLimit);
+        clij.execute(HistogramEqualization.class,
+                "histogram_lut.cl",
+                "histograms_to_luts",
+                new long[]{histograms.getHeight(), 1, 1},
+                parameters);
+    }
+
+    /**
+     * Maps every pixel using the lookup tables of the surrounding tiles; see histogram_equalization.cl.
+     */
+    static void applyLookupTables(CLIJ clij, ClearCLBuffer src, ClearCLBuffer minMax, ClearCLBuffer lookupTables, ClearCLBuffer dst, int[] tileSize) {
+        int[] numberOfTiles = LocalAutomaticThreshold.numberOfTiles(src, tileSize);
+
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("src", src);
+        parameters.put("min_max", minMax);
+        parameters.put("luts", lookupTables);
+        parameters.put("dst", dst);
+        parameters.put("number_of_bins", (int)lookupTables.getWidth());
+        parameters.put("tile_size_x", tileSize[0]);
+        parameters.put("tile_size_y", tileSize[1]);
+        parameters.put("tiles_x", numberOfTiles[0]);
+        parameters.put("tiles_y", numberOfTiles[1]);
+        if (src.getDimension() > 2) {
+            parameters.put("tile_size_z", tileSize[2]);
+            parameters.put("tiles_z", numberOfTiles[2]);
+        }
+        clij.execute(HistogramEqualization.class,
+                "histogram_equalization.cl",
+                "apply_luts_" + src.getDimension() + "d",
+                src.getDimensions(),
+                parameters);
+    }
+
+    @Override
+    public String getParameterHelpText() {
+        return "Image source, Image destination, Number numberOfBins";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Equalizes the histogram of an image: every pixel is replaced by the fraction of pixels in its bin \n" +
+                "and all lower bins, scaled to the range between minimum and maximum of the image. \n" +
+                "All steps run on the GPU.";
+    }
+
+    @Override
+    public String getAvailableForDimensions() {
+        return "2D, 3D";
+    }
+}
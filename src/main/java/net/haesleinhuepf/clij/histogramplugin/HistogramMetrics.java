@@ -0,0 +1,168 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * HistogramMetrics
+ * <p>
+ * Reports how long the phases of histogram determination and thresholding take and how many bytes are transferred
+ * between host and device. Listeners are registered globally; as long as none is registered, measuring a phase
+ * costs one volatile read and no time stamps are taken.
+ * <p>
+ * Kernels are started by CLIJ.execute, which waits for the kernel to finish. Thus, the reported durations of GPU
+ * phases are device execution times including launch overhead. Readback durations include the transfer only.
+ * <p>
+ * Usage:
+ * <pre>
+ * HistogramMetrics.LatencyRecorder recorder = new HistogramMetrics.LatencyRecorder();
+ * HistogramMetrics.addListener(recorder);
+ * ... determine histograms ...
+ * long[] binningLatencies = recorder.getLatencyHistogram(HistogramMetrics.Phase.BINNING);
+ * </pre>
+ */
+public final class HistogramMetrics {
+
+    public enum Phase {
+        /** Determining minimum and maximum intensity on the GPU */
+        MINIMUM_MAXIMUM,
+        /** Sorting pixels into partial histograms */
+        BINNING,
+        /** Summing up partial histograms */
+        REDUCTION,
+        /** Copying histograms or ranges from the device to the host */
+        READBACK,
+        /** Copying ranges or thresholds from the host to the device */
+        UPLOAD,
+        /** Determining a threshold from a histogram, on the host or on the GPU */
+        THRESHOLD
+    }
+
+    public interface Listener {
+        /**
+         * Called after a phase has finished, on the thread which executed it. bytes is the number of bytes
+         * transferred for READBACK and UPLOAD and 0 otherwise.
+         */
+        void phaseCompleted(Phase phase, long nanoseconds, long bytes);
+    }
+
+    private static final Listener[] NO_LISTENERS = new Listener[0];
+    private static volatile Listener[] listeners = NO_LISTENERS;
+
+    private HistogramMetrics() {
+    }
+
+    public static synchronized void addListener(Listener listener) {
+        Listener[] extended = new Listener[listeners.length + 1];
+        System.arraycopy(listeners, 0, extended, 0, listeners.length);
+        extended[listeners.length] = listener;
+        listeners = extended;
+    }
+
+    public static synchronized void removeListener(Listener listener) {
+        Listener[] current = listeners;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == listener) {
+                Listener[] reduced = new Listener[current.length - 1];
+                System.arraycopy(current, 0, reduced, 0, i);
+                System.arraycopy(current, i + 1, reduced, i, current.length - i - 1);
+                listeners = reduced.length > 0 ? reduced : NO_LISTENERS;
+                return;
+            }
+        }
+    }
+
+    public static boolean isEnabled() {
+        return listeners.length > 0;
+    }
+
+    /**
+     * Returns the time stamp to be passed to stop(), or 0 if no listener is registered.
+     */
+    static long start() {
+        return listeners.length > 0 ? System.nanoTime() : 0;
+    }
+
+    static void stop(Phase phase, long startTime) {
+        stop(phase, startTime, 0);
+    }
+
+    static void stop(Phase phase, long startTime, long bytes) {
+        Listener[] current = listeners;
+        if (current.length == 0 || startTime == 0) {
+            return;
+        }
+        long nanoseconds = System.nanoTime() - startTime;
+        for (Listener listener : current) {
+            listener.phaseCompleted(phase, nanoseconds, bytes);
+        }
+    }
+
+    /**
+     * Collects count, total duration, transferred bytes and a latency histogram per phase. Entry i of a latency
+     * histogram counts the durations between 2^i and 2^(i+1) - 1 nanoseconds, so that it can be exported to
+     * monitoring systems with exponential buckets. The recorder is thread-safe and does not allocate while
+     * recording.
+     */
+    public static class LatencyRecorder implements Listener {
+
+        public static final int NUMBER_OF_LATENCY_BUCKETS = 64;
+
+        private final int numberOfPhases = Phase.values().length;
+        private final AtomicLongArray counts = new AtomicLongArray(numberOfPhases);
+        private final AtomicLongArray nanoseconds = new AtomicLongArray(numberOfPhases);
+        private final AtomicLongArray bytes = new AtomicLongArray(numberOfPhases);
+        private final AtomicLongArray latencyBuckets = new AtomicLongArray(numberOfPhases * NUMBER_OF_LATENCY_BUCKETS);
+
+        @Override
+        public void phaseCompleted(Phase phase, long nanoseconds, long bytes) {
+            int p = phase.ordinal();
+            counts.incrementAndGet(p);
+            this.nanoseconds.addAndGet(p, nanoseconds);
+            this.bytes.addAndGet(p, bytes);
+            latencyBuckets.incrementAndGet(p * NUMBER_OF_LATENCY_BUCKETS + bucket(nanoseconds));
+        }
+
+        static int bucket(long nanoseconds) {
+            return nanoseconds <= 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanoseconds);
+        }
+
+        public long getCount(Phase phase) {
+            return counts.get(phase.ordinal());
+        }
+
+        public long getTotalNanoseconds(Phase phase) {
+            return nanoseconds.get(phase.ordinal());
+        }
+
+        public long getBytes(Phase phase) {
+            return bytes.get(phase.ordinal());
+        }
+
+        /**
+         * Bytes per second transferred in READBACK or UPLOAD phases, or 0 if nothing was recorded.
+         */
+        public double getThroughput(Phase phase) {
+            long time = getTotalNanoseconds(phase);
+            return time > 0 ? getBytes(phase) * 1e9 / time : 0;
+        }
+
+        public long[] getLatencyHistogram(Phase phase) {
+            long[] result = new long[NUMBER_OF_LATENCY_BUCKETS];
+            for (int i = 0; i < NUMBER_OF_LATENCY_BUCKETS; i++) {
+                result[i] = latencyBuckets.get(phase.ordinal() * NUMBER_OF_LATENCY_BUCKETS + i);
+            }
+            return result;
+        }
+
+        public void reset() {
+            for (int i = 0; i < latencyBuckets.length(); i++) {
+                latencyBuckets.set(i, 0);
+            }
+            for (int p = 0; p < numberOfPhases; p++) {
+                counts.set(p, 0);
+                nanoseconds.set(p, 0);
+                bytes.set(p, 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import ij.measure.ResultsTable;
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij.kernels.Kernels;
+import net.haesleinhuepf.clij.macro.AbstractCLIJPlugin;
+import net.haesleinhuepf.clij.macro.CLIJMacroPlugin;
+import net.haesleinhuepf.clij.macro.CLIJOpenCLProcessor;
+import net.haesleinhuepf.clij.macro.documentation.OffersDocumentation;
+import org.scijava.plugin.Plugin;
+
+import java.util.HashMap;
+
+/**
+ * HistogramPerChannel
+ * <p>
+ * Determines the histograms of all channels of a multi-channel stack in one read of the image. Channels are stored
+ * along Z, either interleaved slice by slice as in ImageJ hyperstacks (c0, c1, c2, c0, c1, ...) or one after
+ * another. Every channel is binned between its own minimum and maximum. The result is an image of size
+ * numberOfBins x numberOfChannels.
+ */
+@Plugin(type = CLIJMacroPlugin.class, name = "CLIJ_histogramPerChannel")
+public class HistogramPerChannel extends AbstractCLIJPlugin implements CLIJMacroPlugin, CLIJOpenCLProcessor, OffersDocumentation {
+
+    @Override
+    public boolean executeCL() {
+        Integer numberOfBins = asInteger(args[2]);
+        Integer numberOfChannels = asInteger(args[3]);
+        Boolean channelsInterleaved = asBoolean(args[4]);
+
+        ClearCLBuffer src = (ClearCLBuffer)( args[0]);
+        ClearCLBuffer dst = (ClearCLBuffer)( args[1]);
+
+        int slicesPerChannel = slicesPerChannel(src, numberOfChannels, channelsInterleaved);
+        float[][] minMax = minimumMaximumPerChannel(clij, src, numberOfChannels, slicesPerChannel);
+        boolean result = fillHistogramPerChannel(clij, src, minMax, dst, slicesPerChannel);
+
+        float[][] determinedHistograms = HistogramPerFrame.readHistograms(clij, dst);
+
+        // send result to results table; one column per channel
+        ResultsTable table = ResultsTable.getResultsTable();
+        for (int i = 0 ; i < numberOfBins; i ++) {
+            table.incrementCounter();
+            table.addValue("Bin", i);
+            for (int c = 0; c < determinedHistograms.length; c++) {
+                table.addValue("Channel " + (c + 1), determinedHistograms[c][i]);
+            }
+        }
+        table.show(table.getTitle());
+
+        return result;
+    }
+
+    /**
+     * Determines the histograms of all channels. minGreyValues and maxGreyValues contain one value per channel; if
+     * they are null, minimum and maximum of every channel are determined. The result is indexed [channel][bin].
+     */
+    public static int[][] histogramPerChannel(CLIJ clij, ClearCLBuffer image, int numberOfChannels, boolean channelsInterleaved, float[] minGreyValues, float[] maxGreyValues, int numberOfBins) {
+        int slicesPerChannel = slicesPerChannel(image, numberOfChannels, channelsInterleaved);
+
+        float[][] minMax;
+        if (minGreyValues == null || maxGreyValues == null) {
+            minMax = minimumMaximumPerChannel(clij, image, numberOfChannels, slicesPerChannel);
+        } else {
+            minMax = new float[numberOfChannels][];
+            for (int c = 0; c < numberOfChannels; c++) {
+                minMax[c] = new float[]{minGreyValues[c], maxGreyValues[c]};
+            }
+        }
+
+        ClearCLBuffer histograms = clij.createCLBuffer(new long[]{numberOfBins, numberOfChannels}, NativeTypeEnum.UnsignedInt);
+        fillHistogramPerChannel(clij, image, minMax, histograms, slicesPerChannel);
+
+        int[][] result = HistogramReadback.rows(HistogramReadback.readInts(histograms), numberOfBins);
+        histograms.close();
+        return result;
+    }
+
+    /**
+     * Determines minimum and maximum of every channel in one pass and with one read back. The result contains
+     * [minimum, maximum] per channel.
+     */
+    public static float[][] minimumMaximumPerChannel(CLIJ clij, ClearCLBuffer image, int numberOfChannels, boolean channelsInterleaved) {
+        return minimumMaximumPerChannel(clij, image, numberOfChannels, slicesPerChannel(image, numberOfChannels, channelsInterleaved));
+    }
+
+    static float[][] minimumMaximumPerChannel(CLIJ clij, ClearCLBuffer src, int numberOfChannels, int slicesPerChannel) {
+        ClearCLBuffer partialMinMax = clij.createCLBuffer(new long[]{2, src.getHeight(), numberOfChannels}, NativeTypeEnum.Float);
+
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("src", src);
+        parameters.put("dst_min_max", partialMinMax);
+        parameters.put("slices_per_channel", slicesPerChannel);
+        parameters.put("number_of_channels", numberOfChannels);
+        clij.execute(HistogramPerChannel.class,
+                "minimum_maximum.cl",
+                "minimum_maximum_per_channel_3d",
+                new long[]{src.getHeight(), numberOfChannels, 1},
+                parameters);
+
+        int valuesPerChannel = (int)(2 * src.getHeight());
+        float[][] partialMinMaxValues = HistogramReadback.rows(HistogramReadback.readFloats(partialMinMax), valuesPerChannel);
+        partialMinMax.close();
+
+        float[][] minMax = new float[numberOfChannels][];
+        for (int c = 0; c < numberOfChannels; c++) {
+            float[] values = partialMinMaxValues[c];
+            minMax[c] = new float[]{values[0], values[1]};
+            for (int i = 2; i < valuesPerChannel; i += 2) {
+                minMax[c][0] = Math.min(minMax[c][0], values[i]);
+                minMax[c][1] = Math.max(minMax[c][1], values[i + 1]);
+            }
+        }
+        return minMax;
+    }
+
+    static boolean fillHistogramPerChannel(CLIJ clij, ClearCLBuffer src, float[][] minMax, ClearCLBuffer dstHistograms, int slicesPerChannel) {
+        long numberOfBins = dstHistograms.getWidth();
+        long numberOfChannels = dstHistograms.getHeight();
+        float[] minMaxValues = new float[(int)numberOfChannels * 2];
+        for (int c = 0; c < numberOfChannels; c++) {
+            minMaxValues[c * 2] = minMax[c][0];
+            minMaxValues[c * 2 + 1] = minMax[c][1];
+        }
+        ClearCLBuffer minMaxBuffer = HistogramPerFrame.pushFloats(clij, minMaxValues);
+
+        ClearCLBuffer partialHistograms = Histogram.createPartialHistogramsBuffer(clij, numberOfBins, numberOfChannels);
+        long numberOfPartialHistograms = partialHistograms.getDepth();
+
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("src", src);
+        parameters.put("min_max", minMaxBuffer);
+        parameters.put("dst_histograms", partialHistograms);
+        parameters.put("slices_per_channel", slicesPerChannel);
+        parameters.put("number_of_partial_histograms", (int)numberOfPartialHistograms);
+        if (Histogram.useLocalMemoryKernel(clij, numberOfBins, numberOfChannels)) {
+            clij.execute(HistogramPerChannel.class,
+                    "histogram_per_channel.cl",
+                    "histogram_per_channel_local_3d",
+                    src.getDimensions(),
+                    parameters);
+        } else {
+            clij.execute(HistogramPerChannel.class,
+                    "histogram_per_channel_global_atomics.cl",
+                    "histogram_per_channel_global_3d",
+                    src.getDimensions(),
+                    parameters);
+        }
+
+        Histogram.reducePartialHistograms(clij, partialHistograms, dstHistograms);
+
+        partialHistograms.close();
+        minMaxBuffer.close();
+        return true;
+    }
+
+    static int slicesPerChannel(ClearCLBuffer src, int numberOfChannels, boolean channelsInterleaved) {
+        if (src.getDimension() < 3 || numberOfChannels < 1 || src.getDepth() % numberOfChannels != 0) {
+            throw new IllegalArgumentException("The number of slices (" + (src.getDimension() < 3 ? 1 : src.getDepth()) + ") must be a multiple of the number of channels (" + numberOfChannels + ").");
+        }
+        return channelsInterleaved ? 1 : (int)(src.getDepth() / numberOfChannels);
+    }
+
+    @Override
+    public String getParameterHelpText() {
+        return "Image source, Image destination, Number numberOfBins, Number numberOfChannels, Boolean channelsInterleaved";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Determines the histograms of all channels of a multi-channel stack in one pass. Channels are stored \n" +
+                "along Z, either interleaved slice by slice as in ImageJ hyperstacks (channelsInterleaved = true) or \n" +
+                "one after another. Every channel is binned between its own minimum and maximum. The destination \n" +
+                "image has a width of numberOfBins and a height of numberOfChannels.";
+    }
+
+    @Override
+    public String getAvailableForDimensions() {
+        return "3D";
+    }
+
+    @Override
+    public ClearCLBuffer createOutputBufferFromSource(ClearCLBuffer input) {
+        Integer numberOfBins = asInteger(args[2]);
+        Integer numberOfChannels = asInteger(args[3]);
+
+        return clij.createCLBuffer(new long[]{numberOfBins, numberOfChannels}, NativeTypeEnum.Float);
+    }
+}
@@ -0,0 +1,261 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import ij.ImagePlus;
+import ij.measure.ResultsTable;
+import ij.process.FloatProcessor;
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij.macro.AbstractCLIJPlugin;
+import net.haesleinhuepf.clij.macro.CLIJMacroPlugin;
+import net.haesleinhuepf.clij.macro.CLIJOpenCLProcessor;
+import net.haesleinhuepf.clij.macro.documentation.OffersDocumentation;
+import org.scijava.plugin.Plugin;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * HistogramPerFrame
+ * <p>
+ * Determines the histograms of all frames of a time series in one kernel launch and reads them back in one
+ * transfer. The result is an image of size numberOfBins x numberOfFrames.
+ */
+@Plugin(type = CLIJMacroPlugin.class, name = "CLIJ_histogramPerFrame")
+public class HistogramPerFrame extends AbstractCLIJPlugin implements CLIJMacroPlugin, CLIJOpenCLProcessor, OffersDocumentation {
+
+    @Override
+    public boolean executeCL() {
+        Integer numberOfBins = asInteger(args[2]);
+        Float minimumGreyValue = asFloat(args[3]);
+        Float maximumGreyValue = asFloat(args[4]);
+        Boolean determineMinMax = asBoolean(args[5]);
+
+        ClearCLBuffer src = (ClearCLBuffer)( args[0]);
+        ClearCLBuffer dst = (ClearCLBuffer)( args[1]);
+
+        if (determineMinMax) {
+            float[] minMax = Histogram.minimumMaximum(clij, src);
+            minimumGreyValue = minMax[0];
+            maximumGreyValue = minMax[1];
+        }
+
+        // every slice is a frame
+        boolean result = fillHistogramPerFrame(clij, src, dst, minimumGreyValue, maximumGreyValue, 1);
+
+        float[][] determinedHistograms = readHistograms(clij, dst);
+
+        // send result to results table
+        float step = (maximumGreyValue - minimumGreyValue) / (numberOfBins - 1);
+        ResultsTable table = ResultsTable.getResultsTable();
+        for (int i = 0 ; i < numberOfBins; i ++) {
+            table.incrementCounter();
+            table.addValue("Grey value", minimumGreyValue + i * step);
+            for (int f = 0; f < determinedHistograms.length; f++) {
+                table.addValue("Frame " + (f + 1), determinedHistograms[f][i]);
+            }
+        }
+        table.show(table.getTitle());
+
+        return result;
+    }
+
+    /**
+     * Determines histograms of all frames of an image. Frames are consecutive blocks of slicesPerFrame slices. All
+     * frames are binned between the same minimum and maximum; if they are null, minimum and maximum of the whole image
+     * are used.
+     */
+    public static float[][] histogramPerFrame(CLIJ clij, ClearCLBuffer image, Float minGreyValue, Float maxGreyValue, int numberOfBins, int slicesPerFrame) {
+        if (minGreyValue == null || maxGreyValue == null) {
+            float[] minMax = Histogram.minimumMaximum(clij, image);
+            if (minGreyValue == null) {
+                minGreyValue = minMax[0];
+            }
+            if (maxGreyValue == null) {
+                maxGreyValue = minMax[1];
+            }
+        }
+
+        long numberOfFrames = numberOfFrames(image, slicesPerFrame);
+        ClearCLBuffer histograms = clij.createCLBuffer(new long[]{numberOfBins, numberOfFrames}, NativeTypeEnum.Float);
+        fillHistogramPerFrame(clij, image, histograms, minGreyValue, maxGreyValue, slicesPerFrame);
+
+        float[][] result = readHistograms(clij, histograms);
+        histograms.close();
+        return result;
+    }
+
+    /**
+     * Determines histograms of a list of images, e.g. the frames of a time series which are kept in separate
+     * buffers. Every frame is binned directly into its row of one partial histogram matrix, which is reduced and
+     * read back once; nothing is copied. All frames are binned between the same minimum and maximum; if they are
+     * null, minimum and maximum of all frames are used.
+     */
+    public static float[][] histogramPerFrame(CLIJ clij, List<ClearCLBuffer> frames, Float minGreyValue, Float maxGreyValue, int numberOfBins) {
+        if (minGreyValue == null || maxGreyValue == null) {
+            float[] minMax = {Float.MAX_VALUE, -Float.MAX_VALUE};
+            for (ClearCLBuffer frame : frames) {
+                float[] frameMinMax = Histogram.minimumMaximum(clij, frame);
+                minMax[0] = Math.min(minMax[0], frameMinMax[0]);
+                minMax[1] = Math.max(minMax[1], frameMinMax[1]);
+            }
+            if (minGreyValue == null) {
+                minGreyValue = minMax[0];
+            }
+            if (maxGreyValue == null) {
+                maxGreyValue = minMax[1];
+            }
+        }
+
+        ClearCLBuffer minMax = pushFloats(clij, new float[]{minGreyValue, maxGreyValue});
+        ClearCLBuffer partialHistograms = Histogram.createPartialHistogramsBuffer(clij, numberOfBins, frames.size());
+        long numberOfPartialHistograms = partialHistograms.getDepth();
+        for (int f = 0; f < frames.size(); f++) {
+            ClearCLBuffer frame = frames.get(f);
+
+            HashMap<String, Object> parameters = new HashMap<>();
+            parameters.put("src", frame);
+            parameters.put("min_max", minMax);
+            parameters.put("dst_histograms", partialHistograms);
+            parameters.put("frame", f);
+            parameters.put("number_of_partial_histograms", (int)numberOfPartialHistograms);
+            clij.execute(HistogramPerFrame.class,
+                    "histogram_per_frame.cl",
+                    "histogram_of_frame_" + frame.getDimension() + "d",
+                    frame.getDimensions(),
+                    parameters);
+        }
+        minMax.close();
+
+        ClearCLBuffer histograms = clij.createCLBuffer(new long[]{numberOfBins, frames.size()}, NativeTypeEnum.Float);
+        Histogram.reducePartialHistograms(clij, partialHistograms, histograms);
+        partialHistograms.close();
+
+        float[][] result = readHistograms(clij, histograms);
+        histograms.close();
+        return result;
+    }
+
+    static boolean fillHistogramPerFrame(CLIJ clij, ClearCLBuffer src, ClearCLBuffer dstHistograms, Float minimumGreyValue, Float maximumGreyValue, int slicesPerFrame) {
+        int numberOfFrames = (int)dstHistograms.getHeight();
+        float[] minMax = new float[numberOfFrames * 2];
+        for (int f = 0; f < numberOfFrames; f++) {
+            minMax[f * 2] = minimumGreyValue;
+            minMax[f * 2 + 1] = maximumGreyValue;
+        }
+
+        ClearCLBuffer minMaxBuffer = pushFloats(clij, minMax);
+        boolean result = fillHistogramPerFrame(clij, src, minMaxBuffer, dstHistograms, slicesPerFrame);
+        minMaxBuffer.close();
+        return result;
+    }
+
+    /**
+     * Determines histograms of all frames using minimum and maximum of every frame as given in the float buffer
+     * minMax: [min_0, max_0, min_1, max_1, ...]
+     */
+    static boolean fillHistogramPerFrame(CLIJ clij, ClearCLBuffer src, ClearCLBuffer minMax, ClearCLBuffer dstHistograms, int slicesPerFrame) {
+        long numberOfBins = dstHistograms.getWidth();
+        long numberOfFrames = numberOfFrames(src, slicesPerFrame);
+        if (dstHistograms.getHeight() != numberOfFrames) {
+            throw new IllegalArgumentException("The histograms image must have one row per frame (" + numberOfFrames + ") but has " + dstHistograms.getHeight() + ".");
+        }
+        ClearCLBuffer partialHistograms = Histogram.createPartialHistogramsBuffer(clij, numberOfBins, numberOfFrames);
+        long numberOfPartialHistograms = partialHistograms.getDepth();
+
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("src", src);
+        parameters.put("min_max", minMax);
+        parameters.put("dst_histograms", partialHistograms);
+        parameters.put("slices_per_frame", slicesPerFrame);
+        parameters.put("number_of_partial_histograms", (int)numberOfPartialHistograms);
+        clij.execute(HistogramPerFrame.class,
+                "histogram_per_frame.cl",
+                "histogram_per_frame_3d",
+                new long[]{src.getWidth(), src.getHeight(), src.getDepth()},
+                parameters);
+
+        Histogram.reducePartialHistograms(clij, partialHistograms, dstHistograms);
+
+        partialHistograms.close();
+        return true;
+    }
+
+    /**
+     * Determines minimum and maximum of every frame in one pass and with one read back. The result contains
+     * [minimum, maximum] per frame.
+     */
+    public static float[][] minimumMaximumPerFrame(CLIJ clij, ClearCLBuffer src, int slicesPerFrame) {
+        long numberOfFrames = numberOfFrames(src, slicesPerFrame);
+        ClearCLBuffer partialMinMax = clij.createCLBuffer(new long[]{2, src.getHeight(), numberOfFrames}, NativeTypeEnum.Float);
+
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("src", src);
+        parameters.put("dst_min_max", partialMinMax);
+        parameters.put("slices_per_frame", slicesPerFrame);
+        clij.execute(HistogramPerFrame.class,
+                "minimum_maximum.cl",
+                "minimum_maximum_per_frame_3d",
+                new long[]{src.getHeight(), numberOfFrames, 1},
+                parameters);
+
+        int valuesPerFrame = (int)(2 * src.getHeight());
+        float[][] partialMinMaxValues = HistogramReadback.rows(HistogramReadback.readFloats(partialMinMax), valuesPerFrame);
+        partialMinMax.close();
+
+        float[][] minMax = new float[(int)numberOfFrames][];
+        for (int f = 0; f < numberOfFrames; f++) {
+            float[] values = partialMinMaxValues[f];
+            minMax[f] = new float[]{values[0], values[1]};
+            for (int i = 2; i < valuesPerFrame; i += 2) {
+                minMax[f][0] = Math.min(minMax[f][0], values[i]);
+                minMax[f][1] = Math.max(minMax[f][1], values[i + 1]);
+            }
+        }
+        return minMax;
+    }
+
+    static int numberOfFrames(ClearCLBuffer src, int slicesPerFrame) {
+        long depth = src.getDimension() < 3 ? 1 : src.getDepth();
+        if (slicesPerFrame < 1 || depth % slicesPerFrame != 0) {
+            throw new IllegalArgumentException("The number of slices (" + depth + ") must be a multiple of the number of slices per frame (" + slicesPerFrame + ").");
+        }
+        return (int)(depth / slicesPerFrame);
+    }
+
+    static float[][] readHistograms(CLIJ clij, ClearCLBuffer histograms) {
+        return HistogramReadback.rows(HistogramReadback.readAsFloats(clij, histograms), (int)histograms.getWidth());
+    }
+
+    static ClearCLBuffer pushFloats(CLIJ clij, float[] values) {
+        long startTime = HistogramMetrics.start();
+        ImagePlus imp = new ImagePlus("values", new FloatProcessor(values.length, 1, values));
+        ClearCLBuffer buffer = clij.convert(imp, ClearCLBuffer.class);
+        HistogramMetrics.stop(HistogramMetrics.Phase.UPLOAD, startTime, values.length * 4L);
+        return buffer;
+    }
+
+    @Override
+    public String getParameterHelpText() {
+        return "Image source, Image destination, Number numberOfBins, Number minimumGreyValue, Number maximumGreyValue, Boolean determineMinAndMax";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Determines the histograms of all slices of a given stack, e.g. of all frames of a 2D time-lapse, in one \n" +
+                "pass. The destination image has a width of numberOfBins and a height corresponding to the number of \n" +
+                "slices. All slices are binned between the same minimum and maximum.";
+    }
+
+    @Override
+    public String getAvailableForDimensions() {
+        return "3D";
+    }
+
+    @Override
+    public ClearCLBuffer createOutputBufferFromSource(ClearCLBuffer input) {
+        Integer numberOfBins = asInteger(args[2]);
+
+        return clij.createCLBuffer(new long[]{numberOfBins, input.getDepth()}, NativeTypeEnum.Float);
+    }
+}
@@ -0,0 +1,169 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import ij.measure.ResultsTable;
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij.kernels.Kernels;
+import net.haesleinhuepf.clij.macro.AbstractCLIJPlugin;
+import net.haesleinhuepf.clij.macro.CLIJMacroPlugin;
+import net.haesleinhuepf.clij.macro.CLIJOpenCLProcessor;
+import net.haesleinhuepf.clij.macro.documentation.OffersDocumentation;
+import org.scijava.plugin.Plugin;
+
+import java.util.HashMap;
+
+/**
+ * HistogramPerLabel
+ * <p>
+ * Determines the histograms of all labels of a label map in one pass over the intensity image. The result is an
+ * image of size numberOfBins x numberOfLabels where row 0 contains the histogram of the background. All labels are
+ * binned between the same minimum and maximum.
+ */
+@Plugin(type = CLIJMacroPlugin.class, name = "CLIJ_histogramPerLabel")
+public class HistogramPerLabel extends AbstractCLIJPlugin implements CLIJMacroPlugin, CLIJOpenCLProcessor, OffersDocumentation {
+
+    @Override
+    public boolean executeCL() {
+        Integer numberOfBins = asInteger(args[3]);
+        Float minimumGreyValue = asFloat(args[4]);
+        Float maximumGreyValue = asFloat(args[5]);
+        Boolean determineMinMax = asBoolean(args[6]);
+
+        ClearCLBuffer src = (ClearCLBuffer)( args[0]);
+        ClearCLBuffer labelMap = (ClearCLBuffer)( args[1]);
+        ClearCLBuffer dst = (ClearCLBuffer)( args[2]);
+
+        if (determineMinMax) {
+            minimumGreyValue = null;
+            maximumGreyValue = null;
+        }
+        boolean result = fillHistogramPerLabel(clij, src, labelMap, dst, minimumGreyValue, maximumGreyValue);
+
+        float[][] determinedHistograms = HistogramPerFrame.readHistograms(clij, dst);
+
+        // send result to results table; one row per label
+        ResultsTable table = ResultsTable.getResultsTable();
+        for (int label = 0; label < determinedHistograms.length; label++) {
+            table.incrementCounter();
+            table.addValue("Label", label);
+            for (int i = 0; i < numberOfBins; i++) {
+                table.addValue("Bin " + i, determinedHistograms[label][i]);
+            }
+        }
+        table.show(table.getTitle());
+
+        return result;
+    }
+
+    /**
+     * Determines the histograms of all labels. If minimum or maximum are null, minimum and maximum of the whole
+     * image are used. The result contains one histogram per label including the background label 0.
+     */
+    public static float[][] histogramPerLabel(CLIJ clij, ClearCLBuffer image, ClearCLBuffer labelMap, Float minGreyValue, Float maxGreyValue, int numberOfBins) {
+        ClearCLBuffer histograms = histogramPerLabelBuffer(clij, image, labelMap, minGreyValue, maxGreyValue, numberOfBins);
+        float[][] result = HistogramPerFrame.readHistograms(clij, histograms);
+        histograms.close();
+        return result;
+    }
+
+    /**
+     * Same as histogramPerLabel but the numberOfBins x numberOfLabels matrix stays on the GPU.
+     */
+    public static ClearCLBuffer histogramPerLabelBuffer(CLIJ clij, ClearCLBuffer image, ClearCLBuffer labelMap, Float minGreyValue, Float maxGreyValue, int numberOfBins) {
+        MaskedHistogram.checkMask(image, labelMap);
+        ClearCLBuffer histograms = clij.createCLBuffer(new long[]{numberOfBins, numberOfLabels(clij, labelMap)}, NativeTypeEnum.Float);
+        fillHistogramPerLabel(clij, image, labelMap, histograms, minGreyValue, maxGreyValue);
+        return histograms;
+    }
+
+    static long numberOfLabels(CLIJ clij, ClearCLBuffer labelMap) {
+        return (long)Kernels.maximumOfAllPixels(clij, labelMap) + 1;
+    }
+
+    static boolean fillHistogramPerLabel(CLIJ clij, ClearCLBuffer src, ClearCLBuffer labelMap, ClearCLBuffer dstHistograms, Float minimumGreyValue, Float maximumGreyValue) {
+        // the kernels read the label of every pixel of src
+        MaskedHistogram.checkMask(src, labelMap);
+
+        // minimum and maximum stay on the GPU
+        ClearCLBuffer minMax = clij.createCLBuffer(new long[]{2, 1, 1}, NativeTypeEnum.Float);
+        if (minimumGreyValue == null && maximumGreyValue == null) {
+            ClearCLBuffer partialMinMax = clij.createCLBuffer(Histogram.partialMinimumMaximumSize(src), NativeTypeEnum.Float);
+            Histogram.fillMinimumMaximum(clij, src, partialMinMax, minMax);
+            partialMinMax.close();
+        } else if (minimumGreyValue == null || maximumGreyValue == null) {
+            // one bound is given; the other one is read back and combined with it on the host
+            float[] minMaxValues = Histogram.minimumMaximum(clij, src);
+            Histogram.fillMinimumMaximum(clij, minMax,
+                    minimumGreyValue != null ? minimumGreyValue : minMaxValues[0],
+                    maximumGreyValue != null ? maximumGreyValue : minMaxValues[1]);
+        } else {
+            Histogram.fillMinimumMaximum(clij, minMax, minimumGreyValue, maximumGreyValue);
+        }
+
+        // the kernels read labels as uint
+        ClearCLBuffer labels = labelMap;
+        if (labelMap.getNativeType() != NativeTypeEnum.UnsignedInt) {
+            labels = clij.createCLBuffer(labelMap.getDimensions(), NativeTypeEnum.UnsignedInt);
+            Kernels.copy(clij, labelMap, labels);
+        }
+
+        long numberOfBins = dstHistograms.getWidth();
+        long numberOfLabels = dstHistograms.getHeight();
+        ClearCLBuffer partialHistograms = Histogram.createPartialHistogramsBuffer(clij, numberOfBins, numberOfLabels);
+        long numberOfPartialHistograms = partialHistograms.getDepth();
+
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("src", src);
+        parameters.put("labels", labels);
+        parameters.put("min_max", minMax);
+        parameters.put("dst_histograms", partialHistograms);
+        parameters.put("number_of_partial_histograms", (int)numberOfPartialHistograms);
+        if (Histogram.useLocalMemoryKernel(clij, numberOfBins, numberOfLabels)) {
+            clij.execute(HistogramPerLabel.class,
+                    "histogram_per_label.cl",
+                    "histogram_per_label_local_" + src.getDimension() + "d",
+                    src.getDimensions(),
+                    parameters);
+        } else {
+            clij.execute(HistogramPerLabel.class,
+                    "histogram_per_label_global_atomics.cl",
+                    "histogram_per_label_global_" + src.getDimension() + "d",
+                    src.getDimensions(),
+                    parameters);
+        }
+
+        Histogram.reducePartialHistograms(clij, partialHistograms, dstHistograms);
+
+        partialHistograms.close();
+        minMax.close();
+        if (labels != labelMap) {
+            labels.close();
+        }
+        return true;
+    }
+
+    @Override
+    public String getParameterHelpText() {
+        return "Image source, Image labelMap, Image destination, Number numberOfBins, Number minimumGreyValue, Number maximumGreyValue, Boolean determineMinAndMax";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Determines the histograms of all labels in a label map in one pass over the given intensity image. \n" +
+                "The destination image has a width of numberOfBins and a height of the maximum label + 1; row 0 \n" +
+                "contains the histogram of the background. All labels are binned between the same minimum and maximum.";
+    }
+
+    @Override
+    public String getAvailableForDimensions() {
+        return "2D, 3D";
+    }
+
+    @Override
+    public ClearCLBuffer createOutputBufferFromSource(ClearCLBuffer input) {
+        Integer numberOfBins = asInteger(args[3]);
+
+        return clij.createCLBuffer(new long[]{numberOfBins, numberOfLabels(clij, (ClearCLBuffer) args[1])}, NativeTypeEnum.Float);
+    }
+}
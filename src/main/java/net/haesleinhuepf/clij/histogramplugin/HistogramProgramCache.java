@@ -0,0 +1,229 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij.kernels.Kernels;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * HistogramProgramCache
+ * <p>
+ * Builds the histogram programs before the first image is processed. CLIJ compiles a program per combination of
+ * pixel type, image size and number of bins, because these are passed as defines, and keeps it for the lifetime
+ * of the CLIJ instance. warmUp() runs the histogram kernels once on a scratch image of every given configuration,
+ * so that later calls on the same CLIJ instance find their programs built. Other instances build their programs
+ * again, even on the same device.
+ * <p>
+ * Configurations which were warmed up are appended to a file, by default ~/.clij/histogram-programs.txt or the
+ * file given by the system property clij.histogram.programs, keyed by device name, device version and a hash of the
+ * kernel sources. warmUpRecordedConfigurations() builds all of them again in a
+ * new JVM, e.g. at the start of a batch job; sources or devices which changed in the meantime are ignored. The
+ * program binaries themselves are kept by the OpenCL driver cache if the driver provides one.
+ */
+public final class HistogramProgramCache {
+
+    private static final String[] PROGRAM_FILENAMES = {
+            "histogram.cl",
+            "histogram_global_atomics.cl",
+            "histogram_reduce.cl",
+            "histogram_reduce_words.cl",
+            "minimum_maximum.cl",
+            "minimum_maximum_reduce.cl"
+    };
+
+    static final String RECORDED_CONFIGURATIONS_PROPERTY = "clij.histogram.programs";
+
+    // configurations built per CLIJ instance, e.g. "<device key>\tUnsignedShort\t512,512,1\t256"; programs belong
+    // to the instance, so another instance on the same device builds them again
+    private static final Map<CLIJ, Set<String>> builtConfigurations = new WeakHashMap<>();
+
+    private static String sourceHash;
+
+    private HistogramProgramCache() {
+    }
+
+    /**
+     * Builds the histogram programs for every combination of pixel type, image size (e.g. {512, 512} or
+     * {512, 512, 100}) and number of bins, and records the configurations on disk.
+     */
+    public static void warmUp(CLIJ clij, NativeTypeEnum[] types, long[][] imageSizes, int[] numbersOfBins) {
+        String deviceKey = deviceKey(clij);
+        Set<String> builtConfigurations = builtConfigurations(clij);
+        List<String> newConfigurations = new ArrayList<>();
+        for (NativeTypeEnum type : types) {
+            for (long[] imageSize : imageSizes) {
+                for (int numberOfBins : numbersOfBins) {
+                    String configuration = configuration(deviceKey, type, imageSize, numberOfBins);
+                    if (builtConfigurations.add(configuration)) {
+                        build(clij, type, imageSize, numberOfBins);
+                        newConfigurations.add(configuration);
+                    }
+                }
+            }
+        }
+        record(newConfigurations);
+    }
+
+    /**
+     * Builds all configurations recorded for the current device and kernel sources, e.g. by an earlier JVM. Returns
+     * the number of configurations built.
+     */
+    public static int warmUpRecordedConfigurations(CLIJ clij) {
+        String deviceKey = deviceKey(clij);
+        Set<String> builtConfigurations = builtConfigurations(clij);
+        int count = 0;
+        for (String line : readRecordedConfigurations()) {
+            String[] fields = line.split("\t");
+            if (fields.length != 4 || !fields[0].equals(deviceKey) || builtConfigurations.contains(line)) {
+                continue;
+            }
+            NativeTypeEnum type;
+            long[] imageSize;
+            int numberOfBins;
+            try {
+                type = NativeTypeEnum.valueOf(fields[1]);
+                imageSize = Arrays.stream(fields[2].split(",")).mapToLong(Long::parseLong).toArray();
+                numberOfBins = Integer.parseInt(fields[3]);
+            } catch (IllegalArgumentException e) {
+                // corrupt or written by another version; skipped
+                continue;
+            }
+            if (builtConfigurations.add(line)) {
+                build(clij, type, imageSize, numberOfBins);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static Set<String> builtConfigurations(CLIJ clij) {
+        synchronized (builtConfigurations) {
+            return builtConfigurations.computeIfAbsent(clij, (key) -> Collections.synchronizedSet(new HashSet<>()));
+        }
+    }
+
+    /**
+     * Runs the kernels which Histogram uses for the given configuration: with and without given range, and with
+     * float and integer results.
+     */
+    private static void build(CLIJ clij, NativeTypeEnum type, long[] imageSize, int numberOfBins) {
+        ClearCLBuffer image = clij.createCLBuffer(imageSize, type);
+        Kernels.set(clij, image, 0f);
+
+        Histogram.histogram(clij, image, null, null, numberOfBins);
+        Histogram.histogram(clij, image, 0f, 1f, numberOfBins);
+        Histogram.histogramInt(clij, image, null, null, numberOfBins);
+
+        image.close();
+    }
+
+    /**
+     * Appends the configurations which are not in the file yet, e.g. recorded by another JVM.
+     */
+    static synchronized void record(List<String> configurations) {
+        Set<String> newConfigurations = new LinkedHashSet<>(configurations);
+        newConfigurations.removeAll(readRecordedConfigurations());
+        if (newConfigurations.isEmpty()) {
+            return;
+        }
+        File file = recordedConfigurationsFile();
+        try {
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+            Files.write(file.toPath(), newConfigurations, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            // the cache is an optimization only; programs are built on demand anyway
+            if (CLIJ.debug) {
+                System.out.println("Could not record histogram programs: " + e.getMessage());
+            }
+        }
+    }
+
+    static Set<String> readRecordedConfigurations() {
+        File file = recordedConfigurationsFile();
+        if (!file.exists()) {
+            return Collections.emptySet();
+        }
+        try {
+            return new LinkedHashSet<>(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            return Collections.emptySet();
+        }
+    }
+
+    static File recordedConfigurationsFile() {
+        String path = System.getProperty(RECORDED_CONFIGURATIONS_PROPERTY);
+        if (path != null && !path.isEmpty()) {
+            return new File(path);
+        }
+        return new File(System.getProperty("user.home"), ".clij" + File.separator + "histogram-programs.txt");
+    }
+
+    static String configuration(String deviceKey, NativeTypeEnum type, long[] imageSize, int numberOfBins) {
+        StringBuilder size = new StringBuilder();
+        for (long dimension : imageSize) {
+            size.append(size.length() > 0 ? "," : "").append(dimension);
+        }
+        return deviceKey + "\t" + type + "\t" + size + "\t" + numberOfBins;
+    }
+
+    static String deviceKey(CLIJ clij) {
+        return hash(clij.getGPUName() + "\n" + clij.getClearCLContext().getDevice().getVersion() + "\n" + sourceHash());
+    }
+
+    private static synchronized String sourceHash() {
+        if (sourceHash == null) {
+            StringBuilder sources = new StringBuilder();
+            for (String programFilename : PROGRAM_FILENAMES) {
+                try (InputStream stream = Histogram.class.getResourceAsStream(programFilename)) {
+                    if (stream != null) {
+                        ByteArrayOutputStream content = new ByteArrayOutputStream();
+                        byte[] chunk = new byte[4096];
+                        for (int length = stream.read(chunk); length > 0; length = stream.read(chunk)) {
+                            content.write(chunk, 0, length);
+                        }
+                        sources.append(new String(content.toByteArray(), StandardCharsets.UTF_8));
+                    }
+                } catch (IOException e) {
+                    sources.append(programFilename);
+                }
+            }
+            sourceHash = hash(sources.toString());
+        }
+        return sourceHash;
+    }
+
+    private static String hash(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder result = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                result.append(String.format("%02x", digest[i]));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(text.hashCode());
+        }
+    }
+}
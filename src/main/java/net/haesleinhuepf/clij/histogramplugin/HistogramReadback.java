@@ -0,0 +1,219 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij.kernels.Kernels;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * HistogramReadback
+ * <p>
+ * Reads histograms from the GPU without creating an ImagePlus. The static methods copy the buffer directly into
+ * a given or new primitive array. Counts are not converted on the way, so integer counts stay exact. An instance
+ * keeps a direct ByteBuffer which is reused when reading many histograms of the same size. The async methods
+ * queue the copy and return immediately, so that the calling thread is not blocked while the histogram is
+ * transferred. Waiting for the transfer happens on threads of this class, not in the common ForkJoinPool.
+ */
+public class HistogramReadback {
+
+    // waiting for the queue blocks a thread; parallel streams, e.g. of HistogramCPU, keep the common pool for them
+    private static final ExecutorService READBACK_EXECUTOR = Executors.newCachedThreadPool((runnable) -> {
+        Thread thread = new Thread(runnable, "histogram-readback");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ByteBuffer buffer;
+
+    /**
+     * Copies the given buffer into the direct ByteBuffer of this instance and returns it. It is only reallocated if
+     * a larger buffer is read, and it is overwritten by the next call.
+     */
+    public synchronized ByteBuffer read(ClearCLBuffer histogram) {
+        int sizeInBytes = (int)sizeInBytes(histogram);
+        if (buffer == null || buffer.capacity() < sizeInBytes) {
+            buffer = allocateDirect(sizeInBytes);
+        }
+        buffer.clear();
+        buffer.limit(sizeInBytes);
+        long startTime = HistogramMetrics.start();
+        histogram.writeTo(buffer, true);
+        HistogramMetrics.stop(HistogramMetrics.Phase.READBACK, startTime, sizeInBytes);
+        buffer.rewind();
+        return buffer;
+    }
+
+    /**
+     * Reads a float histogram into the given array, which must have at least as many elements as the histogram.
+     */
+    public static float[] readFloats(ClearCLBuffer histogram, float[] values) {
+        checkType(histogram, NativeTypeEnum.Float);
+        checkLength(histogram, values.length);
+        long startTime = HistogramMetrics.start();
+        histogram.writeTo(FloatBuffer.wrap(values), true);
+        HistogramMetrics.stop(HistogramMetrics.Phase.READBACK, startTime, sizeInBytes(histogram));
+        return values;
+    }
+
+    public static float[] readFloats(ClearCLBuffer histogram) {
+        return readFloats(histogram, new float[(int)numberOfEntries(histogram)]);
+    }
+
+    /**
+     * Reads a histogram of any pixel type as floats, e.g. an existing 16-bit image passed as destination from a
+     * macro. Histograms of other types than float are converted on the GPU first.
+     */
+    public static float[] readAsFloats(CLIJ clij, ClearCLBuffer histogram) {
+        if (histogram.getNativeType() == NativeTypeEnum.Float) {
+            return readFloats(histogram);
+        }
+        ClearCLBuffer floatHistogram = clij.createCLBuffer(histogram.getDimensions(), NativeTypeEnum.Float);
+        Kernels.copy(clij, histogram, floatHistogram);
+        float[] values = readFloats(floatHistogram);
+        floatHistogram.close();
+        return values;
+    }
+
+    /**
+     * Reads a uint histogram, e.g. of size numberOfBins x 1 x 1, into the given array. Counts above
+     * Integer.MAX_VALUE appear negative; use 64-bit histograms for images with more than 2^31 pixels.
+     */
+    public static int[] readInts(ClearCLBuffer histogram, int[] values) {
+        checkType(histogram, NativeTypeEnum.UnsignedInt);
+        checkLength(histogram, values.length);
+        long startTime = HistogramMetrics.start();
+        histogram.writeTo(IntBuffer.wrap(values), true);
+        HistogramMetrics.stop(HistogramMetrics.Phase.READBACK, startTime, sizeInBytes(histogram));
+        return values;
+    }
+
+    public static int[] readInts(ClearCLBuffer histogram) {
+        return readInts(histogram, new int[(int)numberOfEntries(histogram)]);
+    }
+
+    /**
+     * Reads a 64-bit histogram stored as pairs of uint words (low, high), as created by
+     * Histogram.createLongHistogramBuffer().
+     */
+    public static long[] readLongs(ClearCLBuffer histogramWords) {
+        return readLongs(histogramWords, new long[(int)(numberOfEntries(histogramWords) / 2)]);
+    }
+
+    public static long[] readLongs(ClearCLBuffer histogramWords, long[] values) {
+        checkType(histogramWords, NativeTypeEnum.UnsignedInt);
+        checkLength(histogramWords, values.length * 2);
+        ByteBuffer words = allocateDirect(sizeInBytes(histogramWords));
+        long startTime = HistogramMetrics.start();
+        histogramWords.writeTo(words, true);
+        HistogramMetrics.stop(HistogramMetrics.Phase.READBACK, startTime, sizeInBytes(histogramWords));
+        combineWords(words.asIntBuffer(), values);
+        return values;
+    }
+
+    /**
+     * Queues copying a float histogram into the given array and returns without waiting. The future completes
+     * when the queue has finished, i.e. also after all work queued in the meantime. The histogram buffer must not
+     * be changed or released before.
+     */
+    public static CompletableFuture<float[]> readFloatsAsync(CLIJ clij, ClearCLBuffer histogram, float[] values) {
+        checkType(histogram, NativeTypeEnum.Float);
+        checkLength(histogram, values.length);
+        return readAsync(clij, histogram).thenApply((staging) -> {
+            staging.asFloatBuffer().get(values, 0, (int)numberOfEntries(histogram));
+            return values;
+        });
+    }
+
+    public static CompletableFuture<int[]> readIntsAsync(CLIJ clij, ClearCLBuffer histogram, int[] values) {
+        checkType(histogram, NativeTypeEnum.UnsignedInt);
+        checkLength(histogram, values.length);
+        return readAsync(clij, histogram).thenApply((staging) -> {
+            staging.asIntBuffer().get(values, 0, (int)numberOfEntries(histogram));
+            return values;
+        });
+    }
+
+    public static CompletableFuture<long[]> readLongsAsync(CLIJ clij, ClearCLBuffer histogramWords, long[] values) {
+        checkType(histogramWords, NativeTypeEnum.UnsignedInt);
+        checkLength(histogramWords, values.length * 2);
+        return readAsync(clij, histogramWords).thenApply((staging) -> {
+            combineWords(staging.asIntBuffer(), values);
+            return values;
+        });
+    }
+
+    /**
+     * Non-blocking reads need memory which is not moved by the garbage collector; thus, every asynchronous read
+     * gets its own direct staging buffer.
+     */
+    private static CompletableFuture<ByteBuffer> readAsync(CLIJ clij, ClearCLBuffer histogram) {
+        ByteBuffer staging = allocateDirect(sizeInBytes(histogram));
+        // reported from queuing until the copy has arrived, including work queued in the meantime
+        long startTime = HistogramMetrics.start();
+        histogram.writeTo(staging, false);
+        return CompletableFuture.supplyAsync(() -> {
+            clij.getClearCLContext().getDefaultQueue().waitToFinish();
+            HistogramMetrics.stop(HistogramMetrics.Phase.READBACK, startTime, staging.capacity());
+            return staging;
+        }, READBACK_EXECUTOR);
+    }
+
+    private static void combineWords(IntBuffer words, long[] values) {
+        for (int i = 0; i < values.length; i++) {
+            long low = words.get(i * 2) & 0xFFFFFFFFL;
+            long high = words.get(i * 2 + 1) & 0xFFFFFFFFL;
+            values[i] = (high << 32) | low;
+        }
+    }
+
+    /**
+     * Splits a histogram matrix of size numberOfBins x numberOfRows, e.g. the histograms of all frames, into rows.
+     */
+    static int[][] rows(int[] values, int numberOfBins) {
+        int[][] result = new int[values.length / numberOfBins][numberOfBins];
+        for (int r = 0; r < result.length; r++) {
+            System.arraycopy(values, r * numberOfBins, result[r], 0, numberOfBins);
+        }
+        return result;
+    }
+
+    static float[][] rows(float[] values, int numberOfBins) {
+        float[][] result = new float[values.length / numberOfBins][numberOfBins];
+        for (int r = 0; r < result.length; r++) {
+            System.arraycopy(values, r * numberOfBins, result[r], 0, numberOfBins);
+        }
+        return result;
+    }
+
+    static long numberOfEntries(ClearCLBuffer buffer) {
+        return SparseSampling.NONE.numberOfSampledPixels(buffer.getDimensions());
+    }
+
+    private static long sizeInBytes(ClearCLBuffer buffer) {
+        return numberOfEntries(buffer) * buffer.getNativeType().getSizeInBytes();
+    }
+
+    private static ByteBuffer allocateDirect(long sizeInBytes) {
+        return ByteBuffer.allocateDirect((int)sizeInBytes).order(ByteOrder.nativeOrder());
+    }
+
+    private static void checkType(ClearCLBuffer histogram, NativeTypeEnum type) {
+        if (histogram.getNativeType() != type) {
+            throw new IllegalArgumentException("The histogram must be of type " + type + " but the given buffer is of type " + histogram.getNativeType() + ".");
+        }
+    }
+
+    private static void checkLength(ClearCLBuffer histogram, long length) {
+        if (length < numberOfEntries(histogram)) {
+            throw new IllegalArgumentException("The array must have at least " + numberOfEntries(histogram) + " elements but has " + length + ".");
+        }
+    }
+}
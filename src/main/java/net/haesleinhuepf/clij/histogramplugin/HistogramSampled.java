@@ -0,0 +1,30 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import net.haesleinhuepf.clij.macro.CLIJMacroPlugin;
+import org.scijava.plugin.Plugin;
+
+/**
+ * HistogramSampled
+ * <p>
+ * Determines the histogram of every samplingStride-th pixel in every dimension. Counts are scaled to full-image
+ * equivalents.
+ */
+@Plugin(type = CLIJMacroPlugin.class, name = "CLIJ_histogramSampled")
+public class HistogramSampled extends Histogram {
+
+    @Override
+    public boolean executeCL() {
+        return executeCL(SparseSampling.withStride(asInteger(args[6])));
+    }
+
+    @Override
+    public String getParameterHelpText() {
+        return super.getParameterHelpText() + ", Number samplingStride";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Determines the histogram of a given image taking only every samplingStride-th pixel in X, Y and Z \n" +
+                "into account, e.g. 2 or 4 for previews. Counts are scaled to the number of pixels of the whole image.";
+    }
+}
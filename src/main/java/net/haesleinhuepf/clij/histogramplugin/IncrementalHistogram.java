@@ -0,0 +1,184 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij.kernels.Kernels;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * IncrementalHistogram
+ * <p>
+ * Keeps a running histogram of a stream of frames on the GPU, e.g. for display contrast and auto-exposure during
+ * acquisition. Per added frame, only the histogram of this frame is determined:
+ * <ul>
+ * <li>slidingWindow() sums up the histograms of the last windowLength frames. Frame histograms are kept in a ring
+ * buffer; the histogram of the frame leaving the window is subtracted when a new one is added.</li>
+ * <li>exponentiallyDecayed() multiplies the accumulated histogram with a decay factor before adding the new
+ * frame.</li>
+ * </ul>
+ * All frames are binned between the same minimum and maximum. Call close() to release the GPU buffers.
+ */
+public class IncrementalHistogram implements AutoCloseable {
+
+    private final CLIJ clij;
+    private final int numberOfBins;
+    private final float minimumGreyValue;
+    private final float maximumGreyValue;
+    private final int windowLength;
+    private final float decayFactor;
+
+    private final ClearCLBuffer frameHistogram;
+    private final ClearCLBuffer windowHistograms;
+    private final ClearCLBuffer histogram;
+    private ClearCLBuffer partialHistograms = null;
+    private long[] frameDimensions = null;
+
+    private long numberOfAddedFrames = 0;
+
+    private IncrementalHistogram(CLIJ clij, int numberOfBins, float minimumGreyValue, float maximumGreyValue, int windowLength, float decayFactor) {
+        this.clij = clij;
+        this.numberOfBins = numberOfBins;
+        this.minimumGreyValue = minimumGreyValue;
+        this.maximumGreyValue = maximumGreyValue;
+        this.windowLength = windowLength;
+        this.decayFactor = decayFactor;
+
+        frameHistogram = clij.createCLBuffer(new long[]{numberOfBins, 1, 1}, NativeTypeEnum.UnsignedInt);
+        if (isSlidingWindow()) {
+            windowHistograms = clij.createCLBuffer(new long[]{numberOfBins, 1, windowLength}, NativeTypeEnum.UnsignedInt);
+            histogram = clij.createCLBuffer(new long[]{numberOfBins, 1, 1}, NativeTypeEnum.UnsignedInt);
+        } else {
+            windowHistograms = null;
+            histogram = clij.createCLBuffer(new long[]{numberOfBins, 1, 1}, NativeTypeEnum.Float);
+        }
+        reset();
+    }
+
+    /**
+     * Sums up the histograms of the last windowLength added frames.
+     */
+    public static IncrementalHistogram slidingWindow(CLIJ clij, int numberOfBins, float minimumGreyValue, float maximumGreyValue, int windowLength) {
+        if (windowLength < 1) {
+            throw new IllegalArgumentException("The window length must be at least 1 but was " + windowLength + ".");
+        }
+        return new IncrementalHistogram(clij, numberOfBins, minimumGreyValue, maximumGreyValue, windowLength, 1f);
+    }
+
+    /**
+     * Accumulates the histograms of all added frames; before a frame is added, the accumulated counts are multiplied
+     * with decayFactor. A frame added n frames ago thus contributes with a weight of decayFactor^n.
+     */
+    public static IncrementalHistogram exponentiallyDecayed(CLIJ clij, int numberOfBins, float minimumGreyValue, float maximumGreyValue, float decayFactor) {
+        if (decayFactor <= 0 || decayFactor > 1) {
+            throw new IllegalArgumentException("The decay factor must be in (0, 1] but was " + decayFactor + ".");
+        }
+        return new IncrementalHistogram(clij, numberOfBins, minimumGreyValue, maximumGreyValue, 0, decayFactor);
+    }
+
+    /**
+     * Determines the histogram of the given frame and updates the running histogram. Frames may be 2D or 3D; the
+     * buffer for partial histograms is reused as long as the frame size does not change.
+     */
+    public synchronized void add(ClearCLBuffer frame) {
+        if (partialHistograms == null || !Arrays.equals(frameDimensions, frame.getDimensions())) {
+            if (partialHistograms != null) {
+                partialHistograms.close();
+            }
+            partialHistograms = Histogram.createPartialHistogramsBuffer(clij, frame, numberOfBins);
+            frameDimensions = frame.getDimensions();
+        }
+        Histogram.fillHistogram(clij, frame, partialHistograms, frameHistogram, minimumGreyValue, maximumGreyValue);
+
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("frame_histogram", frameHistogram);
+        if (isSlidingWindow()) {
+            parameters.put("window_histograms", windowHistograms);
+            parameters.put("sum_histogram", histogram);
+            parameters.put("slot", (int)(numberOfAddedFrames % windowLength));
+            parameters.put("number_of_bins", numberOfBins);
+            clij.execute(IncrementalHistogram.class,
+                    "incremental_histogram.cl",
+                    "slide_window",
+                    new long[]{numberOfBins, 1, 1},
+                    parameters);
+        } else {
+            parameters.put("decayed_histogram", histogram);
+            parameters.put("decay_factor", decayFactor);
+            clij.execute(IncrementalHistogram.class,
+                    "incremental_histogram.cl",
+                    "decay_histogram",
+                    new long[]{numberOfBins, 1, 1},
+                    parameters);
+        }
+        numberOfAddedFrames++;
+    }
+
+    /**
+     * Reads the running histogram into the given array which must have numberOfBins elements.
+     */
+    public synchronized float[] getHistogram(float[] result) {
+        if (isSlidingWindow()) {
+            int[] counts = HistogramReadback.readInts(histogram);
+            for (int i = 0; i < counts.length; i++) {
+                result[i] = counts[i] & 0xFFFFFFFFL;
+            }
+            return result;
+        }
+        return HistogramReadback.readFloats(histogram, result);
+    }
+
+    public float[] getHistogram() {
+        return getHistogram(new float[numberOfBins]);
+    }
+
+    /**
+     * The running histogram on the GPU: a uint buffer for sliding windows, a float buffer for decayed histograms.
+     * It is updated by add() and must not be released.
+     */
+    public ClearCLBuffer getHistogramBuffer() {
+        return histogram;
+    }
+
+    /**
+     * Number of frames added since creation or the last reset(). Sliding windows contain the last
+     * min(numberOfAddedFrames, windowLength) of them.
+     */
+    public synchronized long getNumberOfAddedFrames() {
+        return numberOfAddedFrames;
+    }
+
+    /**
+     * Removes all frames.
+     */
+    public synchronized void reset() {
+        Kernels.set(clij, histogram, 0f);
+        if (windowHistograms != null) {
+            Kernels.set(clij, windowHistograms, 0f);
+        }
+        numberOfAddedFrames = 0;
+    }
+
+    private boolean isSlidingWindow() {
+        return windowLength > 0;
+    }
+
+    public int getNumberOfBins() {
+        return numberOfBins;
+    }
+
+    @Override
+    public synchronized void close() {
+        frameHistogram.close();
+        histogram.close();
+        if (windowHistograms != null) {
+            windowHistograms.close();
+        }
+        if (partialHistograms != null) {
+            partialHistograms.close();
+            partialHistograms = null;
+        }
+    }
+}
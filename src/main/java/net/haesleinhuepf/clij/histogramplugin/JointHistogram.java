@@ -0,0 +1,182 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij.kernels.Kernels;
+import net.haesleinhuepf.clij.macro.AbstractCLIJPlugin;
+import net.haesleinhuepf.clij.macro.CLIJMacroPlugin;
+import net.haesleinhuepf.clij.macro.CLIJOpenCLProcessor;
+import net.haesleinhuepf.clij.macro.documentation.OffersDocumentation;
+import org.scijava.plugin.Plugin;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * JointHistogram
+ * <p>
+ * Determines the joint histogram of two images of the same size, e.g. of two channels for colocalization analysis
+ * and 2D scatter plots. The result is an image of size numberOfBinsA x numberOfBinsB where pixel (a, b) counts the
+ * pixels whose grey value in the first image falls into bin a and whose grey value in the second image falls into
+ * bin b. Optionally, only pixels inside a binary mask are counted.
+ */
+@Plugin(type = CLIJMacroPlugin.class, name = "CLIJ_jointHistogram")
+public class JointHistogram extends AbstractCLIJPlugin implements CLIJMacroPlugin, CLIJOpenCLProcessor, OffersDocumentation {
+
+    @Override
+    public boolean executeCL() {
+        Integer numberOfBinsA = asInteger(args[3]);
+        Integer numberOfBinsB = asInteger(args[4]);
+        Float minimumGreyValueA = asFloat(args[5]);
+        Float maximumGreyValueA = asFloat(args[6]);
+        Float minimumGreyValueB = asFloat(args[7]);
+        Float maximumGreyValueB = asFloat(args[8]);
+        Boolean determineMinMax = asBoolean(args[9]);
+
+        ClearCLBuffer srcA = (ClearCLBuffer)( args[0]);
+        ClearCLBuffer srcB = (ClearCLBuffer)( args[1]);
+        ClearCLBuffer dst = (ClearCLBuffer)( args[2]);
+
+        if (determineMinMax) {
+            float[] minMaxA = Histogram.minimumMaximum(clij, srcA);
+            float[] minMaxB = Histogram.minimumMaximum(clij, srcB);
+            minimumGreyValueA = minMaxA[0];
+            maximumGreyValueA = minMaxA[1];
+            minimumGreyValueB = minMaxB[0];
+            maximumGreyValueB = minMaxB[1];
+        }
+
+        return fillJointHistogram(clij, srcA, srcB, null, dst, minimumGreyValueA, maximumGreyValueA, minimumGreyValueB, maximumGreyValueB);
+    }
+
+    /**
+     * Determines the joint histogram of two images. mask may be null to count all pixels. If a minimum or maximum
+     * is null, it is determined from the respective image. The result is indexed [binB][binA].
+     */
+    public static int[][] jointHistogram(CLIJ clij, ClearCLBuffer imageA, ClearCLBuffer imageB, ClearCLBuffer mask, Float minGreyValueA, Float maxGreyValueA, Float minGreyValueB, Float maxGreyValueB, int numberOfBinsA, int numberOfBinsB) {
+        ClearCLBuffer histogram = jointHistogramBuffer(clij, imageA, imageB, mask, minGreyValueA, maxGreyValueA, minGreyValueB, maxGreyValueB, numberOfBinsA, numberOfBinsB);
+        int[][] result = HistogramReadback.rows(HistogramReadback.readInts(histogram), numberOfBinsA);
+        histogram.close();
+        return result;
+    }
+
+    /**
+     * Same as jointHistogram but the uint numberOfBinsA x numberOfBinsB matrix stays on the GPU, e.g. for display as
+     * scatter plot.
+     */
+    public static ClearCLBuffer jointHistogramBuffer(CLIJ clij, ClearCLBuffer imageA, ClearCLBuffer imageB, ClearCLBuffer mask, Float minGreyValueA, Float maxGreyValueA, Float minGreyValueB, Float maxGreyValueB, int numberOfBinsA, int numberOfBinsB) {
+        if (minGreyValueA == null || maxGreyValueA == null) {
+            float[] minMax = Histogram.minimumMaximum(clij, imageA);
+            minGreyValueA = minGreyValueA != null ? minGreyValueA : minMax[0];
+            maxGreyValueA = maxGreyValueA != null ? maxGreyValueA : minMax[1];
+        }
+        if (minGreyValueB == null || maxGreyValueB == null) {
+            float[] minMax = Histogram.minimumMaximum(clij, imageB);
+            minGreyValueB = minGreyValueB != null ? minGreyValueB : minMax[0];
+            maxGreyValueB = maxGreyValueB != null ? maxGreyValueB : minMax[1];
+        }
+
+        ClearCLBuffer histogram = clij.createCLBuffer(new long[]{numberOfBinsA, numberOfBinsB}, NativeTypeEnum.UnsignedInt);
+        fillJointHistogram(clij, imageA, imageB, mask, histogram, minGreyValueA, maxGreyValueA, minGreyValueB, maxGreyValueB);
+        return histogram;
+    }
+
+    static boolean fillJointHistogram(CLIJ clij, ClearCLBuffer srcA, ClearCLBuffer srcB, ClearCLBuffer mask, ClearCLBuffer dstHistogram, Float minimumGreyValueA, Float maximumGreyValueA, Float minimumGreyValueB, Float maximumGreyValueB) {
+        if (!Arrays.equals(srcA.getDimensions(), srcB.getDimensions())) {
+            throw new IllegalArgumentException("Both images must have the same size.");
+        }
+        MaskedHistogram.checkMask(srcA, mask);
+
+        // both images are read with the same pixel type; images of different types are converted to float
+        ClearCLBuffer convertedA = srcA;
+        ClearCLBuffer convertedB = srcB;
+        if (srcB.getNativeType() != srcA.getNativeType()) {
+            convertedA = floatCopy(clij, srcA);
+            convertedB = floatCopy(clij, srcB);
+        }
+        ClearCLBuffer byteMask = MaskedHistogram.byteMask(clij, mask);
+
+        long numberOfBinsA = dstHistogram.getWidth();
+        long numberOfBinsB = dstHistogram.getHeight();
+        ClearCLBuffer partialHistograms = Histogram.createPartialHistogramsBuffer(clij, numberOfBinsA, numberOfBinsB);
+        long numberOfPartialHistograms = partialHistograms.getDepth();
+
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("src", convertedA);
+        parameters.put("src1", convertedB);
+        if (byteMask != null) {
+            parameters.put("mask", byteMask);
+        }
+        parameters.put("dst_histogram", partialHistograms);
+        parameters.put("minimum_a", minimumGreyValueA);
+        parameters.put("maximum_a", maximumGreyValueA);
+        parameters.put("minimum_b", minimumGreyValueB);
+        parameters.put("maximum_b", maximumGreyValueB);
+        parameters.put("number_of_partial_histograms", (int)numberOfPartialHistograms);
+
+        String kernelName = (byteMask != null ? "masked_" : "") + srcA.getDimension() + "d";
+        if (Histogram.useLocalMemoryKernel(clij, numberOfBinsA, numberOfBinsB)) {
+            clij.execute(JointHistogram.class,
+                    "joint_histogram.cl",
+                    "joint_histogram_local_" + kernelName,
+                    srcA.getDimensions(),
+                    parameters);
+        } else {
+            clij.execute(JointHistogram.class,
+                    "joint_histogram_global_atomics.cl",
+                    "joint_histogram_global_" + kernelName,
+                    srcA.getDimensions(),
+                    parameters);
+        }
+
+        Histogram.reducePartialHistograms(clij, partialHistograms, dstHistogram);
+
+        partialHistograms.close();
+        if (convertedA != srcA) {
+            convertedA.close();
+        }
+        if (convertedB != srcB) {
+            convertedB.close();
+        }
+        if (byteMask != null && byteMask != mask) {
+            byteMask.close();
+        }
+        return true;
+    }
+
+    private static ClearCLBuffer floatCopy(CLIJ clij, ClearCLBuffer src) {
+        if (src.getNativeType() == NativeTypeEnum.Float) {
+            return src;
+        }
+        ClearCLBuffer copy = clij.createCLBuffer(src.getDimensions(), NativeTypeEnum.Float);
+        Kernels.copy(clij, src, copy);
+        return copy;
+    }
+
+    @Override
+    public String getParameterHelpText() {
+        return "Image source1, Image source2, Image destination, Number numberOfBinsA, Number numberOfBinsB, Number minimumGreyValueA, Number maximumGreyValueA, Number minimumGreyValueB, Number maximumGreyValueB, Boolean determineMinAndMax";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Determines the joint histogram of two images of the same size, e.g. of two channels for \n" +
+                "colocalization analysis. The destination image has a width of numberOfBinsA and a height of \n" +
+                "numberOfBinsB; pixel (a, b) contains the number of pixels whose grey value in source1 falls into \n" +
+                "bin a and whose grey value in source2 falls into bin b.";
+    }
+
+    @Override
+    public String getAvailableForDimensions() {
+        return "2D, 3D";
+    }
+
+    @Override
+    public ClearCLBuffer createOutputBufferFromSource(ClearCLBuffer input) {
+        Integer numberOfBinsA = asInteger(args[3]);
+        Integer numberOfBinsB = asInteger(args[4]);
+
+        return clij.createCLBuffer(new long[]{numberOfBinsA, numberOfBinsB}, NativeTypeEnum.Float);
+    }
+}
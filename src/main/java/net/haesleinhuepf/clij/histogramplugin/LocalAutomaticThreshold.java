@@ -0,0 +1,209 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import ij.process.AutoThresholder;
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij.kernels.Kernels;
+import net.haesleinhuepf.clij.macro.AbstractCLIJPlugin;
+import net.haesleinhuepf.clij.macro.CLIJMacroPlugin;
+import net.haesleinhuepf.clij.macro.CLIJOpenCLProcessor;
+import net.haesleinhuepf.clij.macro.documentation.OffersDocumentation;
+import org.scijava.plugin.Plugin;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.stream.IntStream;
+
+/**
+ * LocalAutomaticThreshold
+ * <p>
+ * Thresholds unevenly illuminated images with one automatic threshold per tile. The histograms of all tiles are
+ * determined in one pass over the image. Thresholds are determined on the GPU for the methods supported there and
+ * in parallel on the CPU otherwise. They are interpolated linearly between tile centres and applied in one pass.
+ */
+@Plugin(type = CLIJMacroPlugin.class, name = "CLIJ_localAutomaticThreshold")
+public class LocalAutomaticThreshold extends AbstractCLIJPlugin implements CLIJMacroPlugin, CLIJOpenCLProcessor, OffersDocumentation {
+
+    @Override
+    public boolean executeCL() {
+        ClearCLBuffer src = (ClearCLBuffer) (args[0]);
+        ClearCLBuffer dst = (ClearCLBuffer) (args[1]);
+        String selectedThresholdMethod = (String) args[2];
+        Integer numberOfBins = asInteger(args[3]);
+        Integer tileSizeX = asInteger(args[4]);
+        Integer tileSizeY = asInteger(args[5]);
+        Integer tileSizeZ = asInteger(args[6]);
+
+        return applyLocalAutomaticThreshold(clij, src, dst, numberOfBins, selectedThresholdMethod, tileSizeX, tileSizeY, tileSizeZ);
+    }
+
+    /**
+     * Thresholds an image with thresholds determined per tile of tileSizeX x tileSizeY (x tileSizeZ) pixels.
+     * tileSizeZ is ignored for 2D images.
+     */
+    public static boolean applyLocalAutomaticThreshold(CLIJ clij, ClearCLBuffer src, ClearCLBuffer dst, int numberOfBins, String selectedThresholdMethod, int tileSizeX, int tileSizeY, int tileSizeZ) {
+        int[] tileSize = tileSize(src, tileSizeX, tileSizeY, tileSizeZ);
+        int[] numberOfTiles = numberOfTiles(src, tileSize);
+
+        ClearCLBuffer thresholds = clij.createCLBuffer(new long[]{(long)numberOfTiles[0] * numberOfTiles[1] * numberOfTiles[2], 1, 1}, NativeTypeEnum.Float);
+        fillLocalThresholds(clij, src, thresholds, numberOfBins, selectedThresholdMethod, tileSize);
+
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("src", src);
+        parameters.put("thresholds", thresholds);
+        parameters.put("dst", dst);
+        parameters.put("tile_size_x", tileSize[0]);
+        parameters.put("tile_size_y", tileSize[1]);
+        parameters.put("tiles_x", numberOfTiles[0]);
+        parameters.put("tiles_y", numberOfTiles[1]);
+        if (src.getDimension() > 2) {
+            parameters.put("tile_size_z", tileSize[2]);
+            parameters.put("tiles_z", numberOfTiles[2]);
+        }
+        clij.execute(LocalAutomaticThreshold.class,
+                "threshold.cl",
+                "threshold_interpolated_" + src.getDimension() + "d",
+                src.getDimensions(),
+                parameters);
+
+        thresholds.close();
+        return true;
+    }
+
+    /**
+     * Determines the threshold of every tile; tile (tx, ty, tz) is entry tx + (ty + tz * tilesY) * tilesX.
+     */
+    public static float[] localThresholds(CLIJ clij, ClearCLBuffer src, int numberOfBins, String selectedThresholdMethod, int tileSizeX, int tileSizeY, int tileSizeZ) {
+        int[] tileSize = tileSize(src, tileSizeX, tileSizeY, tileSizeZ);
+        int[] numberOfTiles = numberOfTiles(src, tileSize);
+
+        ClearCLBuffer thresholds = clij.createCLBuffer(new long[]{(long)numberOfTiles[0] * numberOfTiles[1] * numberOfTiles[2], 1, 1}, NativeTypeEnum.Float);
+        fillLocalThresholds(clij, src, thresholds, numberOfBins, selectedThresholdMethod, tileSize);
+        float[] result = HistogramReadback.readFloats(thresholds);
+        thresholds.close();
+        return result;
+    }
+
+    /**
+     * Writes the threshold of every tile into the float buffer dstThresholds with one entry per tile.
+     */
+    private static void fillLocalThresholds(CLIJ clij, ClearCLBuffer src, ClearCLBuffer dstThresholds, int numberOfBins, String selectedThresholdMethod, int[] tileSize) {
+        int[] numberOfTiles = numberOfTiles(src, tileSize);
+        long totalNumberOfTiles = (long)numberOfTiles[0] * numberOfTiles[1] * numberOfTiles[2];
+
+        // all tiles are binned within the range of the whole image, which stays on the GPU
+        ClearCLBuffer minMax = clij.createCLBuffer(new long[]{2, 1, 1}, NativeTypeEnum.Float);
+        if (src.getNativeType() == NativeTypeEnum.UnsignedByte) {
+            Histogram.fillMinimumMaximum(clij, minMax, 0f, 255f);
+        } else {
+            ClearCLBuffer partialMinMax = clij.createCLBuffer(Histogram.partialMinimumMaximumSize(src), NativeTypeEnum.Float);
+            Histogram.fillMinimumMaximum(clij, src, partialMinMax, minMax);
+            partialMinMax.close();
+        }
+
+        ClearCLBuffer histograms = clij.createCLBuffer(new long[]{numberOfBins, totalNumberOfTiles}, NativeTypeEnum.UnsignedInt);
+        fillTileHistograms(clij, src, minMax, histograms, tileSize, numberOfTiles);
+
+        String method = AutomaticThreshold.findThresholdMethod(selectedThresholdMethod);
+        if (AutomaticThreshold.isAvailableOnDevice(method)) {
+            // one work item per tile
+            long startTime = HistogramMetrics.start();
+            HashMap<String, Object> parameters = new HashMap<>();
+            parameters.put("src_histogram", histograms);
+            parameters.put("min_max", minMax);
+            parameters.put("dst_threshold", dstThresholds);
+            clij.execute(AutomaticThreshold.class,
+                    "threshold_methods.cl",
+                    "threshold_" + method.toLowerCase(),
+                    new long[]{totalNumberOfTiles, 1, 1},
+                    parameters);
+            HistogramMetrics.stop(HistogramMetrics.Phase.THRESHOLD, startTime);
+        } else {
+            float[] minMaxValues = HistogramReadback.readFloats(minMax);
+            int[][] determinedHistograms = HistogramReadback.rows(HistogramReadback.readInts(histograms), numberOfBins);
+
+            float[] thresholds = new float[(int)totalNumberOfTiles];
+            IntStream.range(0, thresholds.length).parallel().forEach(t -> {
+                thresholds[t] = AutomaticThreshold.determineThreshold(determinedHistograms[t], method, minMaxValues[0], minMaxValues[1]);
+            });
+            if (CLIJ.debug) {
+                System.out.println("Thresholds: " + Arrays.toString(thresholds));
+            }
+
+            long startTime = HistogramMetrics.start();
+            dstThresholds.readFrom(FloatBuffer.wrap(thresholds), true);
+            HistogramMetrics.stop(HistogramMetrics.Phase.UPLOAD, startTime, thresholds.length * 4L);
+        }
+
+        histograms.close();
+        minMax.close();
+    }
+
+    static void fillTileHistograms(CLIJ clij, ClearCLBuffer src, ClearCLBuffer minMax, ClearCLBuffer dstHistograms, int[] tileSize, int[] numberOfTiles) {
+        long numberOfBins = dstHistograms.getWidth();
+        long totalNumberOfTiles = dstHistograms.getHeight();
+        ClearCLBuffer partialHistograms = Histogram.createPartialHistogramsBuffer(clij, numberOfBins, totalNumberOfTiles);
+        long numberOfPartialHistograms = partialHistograms.getDepth();
+
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("src", src);
+        parameters.put("min_max", minMax);
+        parameters.put("dst_histograms", partialHistograms);
+        parameters.put("tile_size_x", tileSize[0]);
+        parameters.put("tile_size_y", tileSize[1]);
+        parameters.put("tiles_x", numberOfTiles[0]);
+        if (src.getDimension() > 2) {
+            parameters.put("tile_size_z", tileSize[2]);
+            parameters.put("tiles_y", numberOfTiles[1]);
+        }
+        parameters.put("number_of_partial_histograms", (int)numberOfPartialHistograms);
+        long startTime = HistogramMetrics.start();
+        clij.execute(LocalAutomaticThreshold.class,
+                "histogram_per_tile.cl",
+                "histogram_per_tile_" + src.getDimension() + "d",
+                src.getDimensions(),
+                parameters);
+        HistogramMetrics.stop(HistogramMetrics.Phase.BINNING, startTime);
+
+        Histogram.reducePartialHistograms(clij, partialHistograms, dstHistograms);
+        partialHistograms.close();
+    }
+
+    static int[] tileSize(ClearCLBuffer src, int tileSizeX, int tileSizeY, int tileSizeZ) {
+        if (tileSizeX < 1 || tileSizeY < 1 || (src.getDimension() > 2 && tileSizeZ < 1)) {
+            throw new IllegalArgumentException("Tile sizes must be at least 1.");
+        }
+        return new int[]{tileSizeX, tileSizeY, src.getDimension() > 2 ? tileSizeZ : 1};
+    }
+
+    static int[] numberOfTiles(ClearCLBuffer src, int[] tileSize) {
+        long depth = src.getDimension() > 2 ? src.getDepth() : 1;
+        return new int[]{
+                (int)((src.getWidth() + tileSize[0] - 1) / tileSize[0]),
+                (int)((src.getHeight() + tileSize[1] - 1) / tileSize[1]),
+                (int)((depth + tileSize[2] - 1) / tileSize[2])
+        };
+    }
+
+    @Override
+    public String getParameterHelpText() {
+        return "Image input, Image destination, String method, Number numberOfBins, Number tileSizeX, Number tileSizeY, Number tileSizeZ";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Thresholds an image with one automatic threshold per tile of tileSizeX x tileSizeY (x tileSizeZ) \n" +
+                "pixels, e.g. for unevenly illuminated samples. Thresholds are interpolated linearly between tile \n" +
+                "centres; tiles at the border may be smaller if the image size is no multiple of the tile size. Enter one of these methods in the method text field:\n" +
+                Arrays.toString(AutoThresholder.getMethods()) + "\n" +
+                "The methods " + Arrays.toString(AutomaticThreshold.DEVICE_THRESHOLD_METHODS) + " are determined on \n" +
+                "the GPU without reading the histograms back. tileSizeZ is ignored for 2D images.";
+    }
+
+    @Override
+    public String getAvailableForDimensions() {
+        return "2D, 3D";
+    }
+}
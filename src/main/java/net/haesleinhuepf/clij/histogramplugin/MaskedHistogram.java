@@ -0,0 +1,246 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import ij.measure.ResultsTable;
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij.kernels.Kernels;
+import net.haesleinhuepf.clij.macro.AbstractCLIJPlugin;
+import net.haesleinhuepf.clij.macro.CLIJMacroPlugin;
+import net.haesleinhuepf.clij.macro.CLIJOpenCLProcessor;
+import net.haesleinhuepf.clij.macro.documentation.OffersDocumentation;
+import org.scijava.plugin.Plugin;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * MaskedHistogram
+ * <p>
+ * Determines histograms of the pixels inside a binary mask and/or a rectangular / box region of interest. Pixels
+ * outside are skipped within the histogram pass, so that neither cropped nor multiplied copies of the image are
+ * necessary.
+ */
+@Plugin(type = CLIJMacroPlugin.class, name = "CLIJ_histogramMasked")
+public class MaskedHistogram extends AbstractCLIJPlugin implements CLIJMacroPlugin, CLIJOpenCLProcessor, OffersDocumentation {
+
+    @Override
+    public boolean executeCL() {
+        Integer numberOfBins = asInteger(args[3]);
+        Float minimumGreyValue = asFloat(args[4]);
+        Float maximumGreyValue = asFloat(args[5]);
+        Boolean determineMinMax = asBoolean(args[6]);
+
+        ClearCLBuffer src = (ClearCLBuffer)( args[0]);
+        ClearCLBuffer mask = (ClearCLBuffer)( args[1]);
+        ClearCLBuffer dst = (ClearCLBuffer)( args[2]);
+
+        if (determineMinMax) {
+            float[] minMax = minimumMaximum(clij, src, mask, null, null);
+            minimumGreyValue = minMax[0];
+            maximumGreyValue = minMax[1];
+        }
+
+        boolean result = fillHistogram(clij, src, mask, null, null, dst, minimumGreyValue, maximumGreyValue);
+
+        float[] determinedHistogram = HistogramReadback.readAsFloats(clij, dst);
+
+        // send result to results table
+        float step = (maximumGreyValue - minimumGreyValue) / (numberOfBins - 1);
+        ResultsTable table = ResultsTable.getResultsTable();
+        for (int i = 0 ; i < numberOfBins; i ++) {
+            table.incrementCounter();
+            table.addValue("Grey value", minimumGreyValue + i * step);
+            table.addValue("Number of pixels", determinedHistogram[i]);
+        }
+        table.show(table.getTitle());
+
+        return result;
+    }
+
+    /**
+     * Determines the histogram of all pixels where mask is not zero. If minimum or maximum are null, they are
+     * determined inside the mask.
+     */
+    public static float[] histogram(CLIJ clij, ClearCLBuffer image, ClearCLBuffer mask, Float minGreyValue, Float maxGreyValue, int numberOfBins) {
+        return histogram(clij, image, mask, null, null, minGreyValue, maxGreyValue, numberOfBins);
+    }
+
+    /**
+     * Determines the histogram of a rectangle / box starting at roiOffset with size roiSize. If minimum or maximum
+     * are null, they are determined inside the region.
+     */
+    public static float[] histogram(CLIJ clij, ClearCLBuffer image, long[] roiOffset, long[] roiSize, Float minGreyValue, Float maxGreyValue, int numberOfBins) {
+        return histogram(clij, image, null, roiOffset, roiSize, minGreyValue, maxGreyValue, numberOfBins);
+    }
+
+    /**
+     * Determines the histogram of all pixels inside the region of interest where the mask is not zero. mask may be
+     * null to take all pixels of the region into account; roiOffset and roiSize may be null to take the whole image.
+     */
+    public static float[] histogram(CLIJ clij, ClearCLBuffer image, ClearCLBuffer mask, long[] roiOffset, long[] roiSize, Float minGreyValue, Float maxGreyValue, int numberOfBins) {
+        if (minGreyValue == null || maxGreyValue == null) {
+            float[] minMax = minimumMaximum(clij, image, mask, roiOffset, roiSize);
+            if (minGreyValue == null) {
+                minGreyValue = minMax[0];
+            }
+            if (maxGreyValue == null) {
+                maxGreyValue = minMax[1];
+            }
+        }
+
+        ClearCLBuffer histogram = clij.createCLBuffer(new long[]{numberOfBins, 1, 1}, NativeTypeEnum.Float);
+        fillHistogram(clij, image, mask, roiOffset, roiSize, histogram, minGreyValue, maxGreyValue);
+
+        float[] determinedHistogram = HistogramReadback.readFloats(histogram);
+        histogram.close();
+        return determinedHistogram;
+    }
+
+    static boolean fillHistogram(CLIJ clij, ClearCLBuffer src, ClearCLBuffer mask, long[] roiOffset, long[] roiSize, ClearCLBuffer dstHistogram, Float minimumGreyValue, Float maximumGreyValue) {
+        if (roiOffset == null || roiSize == null) {
+            roiOffset = new long[src.getDimension()];
+            roiSize = src.getDimensions();
+        }
+        checkRoi(src, roiOffset, roiSize);
+        checkMask(src, mask);
+        ClearCLBuffer byteMask = byteMask(clij, mask);
+
+        ClearCLBuffer partialHistograms = Histogram.createPartialHistogramsBuffer(clij, dstHistogram.getWidth(), 1);
+        long numberOfPartialHistograms = partialHistograms.getDepth();
+
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("src", src);
+        if (byteMask != null) {
+            parameters.put("mask", byteMask);
+        }
+        parameters.put("dst_histogram", partialHistograms);
+        parameters.put("minimum", minimumGreyValue);
+        parameters.put("maximum", maximumGreyValue);
+        putOffsets(parameters, roiOffset);
+        parameters.put("number_of_partial_histograms", (int)numberOfPartialHistograms);
+        clij.execute(MaskedHistogram.class,
+                "histogram_masked.cl",
+                (byteMask != null ? "histogram_masked_" : "histogram_box_") + src.getDimension() + "d",
+                roiSize,
+                parameters);
+
+        Histogram.reducePartialHistograms(clij, partialHistograms, dstHistogram);
+
+        partialHistograms.close();
+        if (byteMask != null && byteMask != mask) {
+            byteMask.close();
+        }
+        return true;
+    }
+
+    /**
+     * Determines minimum and maximum of all pixels inside the region of interest where the mask is not zero. If
+     * there are no such pixels, the result is [Float.MAX_VALUE, -Float.MAX_VALUE].
+     */
+    public static float[] minimumMaximum(CLIJ clij, ClearCLBuffer src, ClearCLBuffer mask, long[] roiOffset, long[] roiSize) {
+        if (roiOffset == null || roiSize == null) {
+            roiOffset = new long[src.getDimension()];
+            roiSize = src.getDimensions();
+        }
+        checkRoi(src, roiOffset, roiSize);
+        checkMask(src, mask);
+        ClearCLBuffer byteMask = byteMask(clij, mask);
+
+        ClearCLBuffer partialMinMax = clij.createCLBuffer(new long[]{2, roiSize[1]}, NativeTypeEnum.Float);
+
+        HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put("src", src);
+        if (byteMask != null) {
+            parameters.put("mask", byteMask);
+        }
+        parameters.put("dst_min_max", partialMinMax);
+        putOffsets(parameters, roiOffset);
+        parameters.put("region_width", (int)roiSize[0]);
+        if (src.getDimension() > 2) {
+            parameters.put("region_depth", (int)roiSize[2]);
+        }
+        clij.execute(MaskedHistogram.class,
+                "histogram_masked.cl",
+                (byteMask != null ? "minimum_maximum_masked_" : "minimum_maximum_box_") + src.getDimension() + "d",
+                new long[]{roiSize[1], 1, 1},
+                parameters);
+
+        float[] partialMinMaxValues = HistogramReadback.readFloats(partialMinMax);
+        partialMinMax.close();
+        if (byteMask != null && byteMask != mask) {
+            byteMask.close();
+        }
+
+        float[] minMax = new float[]{Float.MAX_VALUE, -Float.MAX_VALUE};
+        for (int i = 0; i < partialMinMaxValues.length; i += 2) {
+            minMax[0] = Math.min(minMax[0], partialMinMaxValues[i]);
+            minMax[1] = Math.max(minMax[1], partialMinMaxValues[i + 1]);
+        }
+        return minMax;
+    }
+
+    /**
+     * The kernels read masks as uchar; masks of other types are converted.
+     */
+    static ClearCLBuffer byteMask(CLIJ clij, ClearCLBuffer mask) {
+        if (mask == null || mask.getNativeType() == NativeTypeEnum.UnsignedByte) {
+            return mask;
+        }
+        ClearCLBuffer byteMask = clij.createCLBuffer(mask.getDimensions(), NativeTypeEnum.UnsignedByte);
+        Kernels.copy(clij, mask, byteMask);
+        return byteMask;
+    }
+
+    private static void putOffsets(HashMap<String, Object> parameters, long[] roiOffset) {
+        parameters.put("offset_x", (int)roiOffset[0]);
+        parameters.put("offset_y", (int)roiOffset[1]);
+        if (roiOffset.length > 2) {
+            parameters.put("offset_z", (int)roiOffset[2]);
+        }
+    }
+
+    /**
+     * The kernels index the mask with the coordinates of the image; a mask of another size would be read out of bounds.
+     */
+    static void checkMask(ClearCLBuffer src, ClearCLBuffer mask) {
+        if (mask != null && !Arrays.equals(src.getDimensions(), mask.getDimensions())) {
+            throw new IllegalArgumentException("Mask and image must have the same size, but the mask has size " + Arrays.toString(mask.getDimensions()) + " and the image " + Arrays.toString(src.getDimensions()) + ".");
+        }
+    }
+
+    private static void checkRoi(ClearCLBuffer src, long[] roiOffset, long[] roiSize) {
+        long[] dimensions = src.getDimensions();
+        if (roiOffset.length != dimensions.length || roiSize.length != dimensions.length) {
+            throw new IllegalArgumentException("Region of interest and image must have the same dimensionality.");
+        }
+        for (int d = 0; d < dimensions.length; d++) {
+            if (roiOffset[d] < 0 || roiSize[d] < 1 || roiOffset[d] + roiSize[d] > dimensions[d]) {
+                throw new IllegalArgumentException("The region of interest must be inside the image.");
+            }
+        }
+    }
+
+    @Override
+    public String getParameterHelpText() {
+        return "Image source, Image mask, Image destination, Number numberOfBins, Number minimumGreyValue, Number maximumGreyValue, Boolean determineMinAndMax";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Determines the histogram of all pixels of a given image where a given binary mask image is not zero. \n" +
+                "If determineMinAndMax is true, minimum and maximum are determined inside the mask.";
+    }
+
+    @Override
+    public String getAvailableForDimensions() {
+        return "2D, 3D";
+    }
+
+    @Override
+    public ClearCLBuffer createOutputBufferFromSource(ClearCLBuffer input) {
+        Integer numberOfBins = asInteger(args[3]);
+
+        return clij.createCLBuffer(new long[]{numberOfBins, 1, 1}, NativeTypeEnum.Float);
+    }
+}
@@ -0,0 +1,109 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+
+/**
+ * SparseSampling
+ * <p>
+ * Describes which pixels are taken into account when determining a histogram: every stepX-th pixel in X, every
+ * stepY-th row and every stepZ-th slice. Counts of sparsely sampled histograms are scaled back to full-image
+ * equivalents, so that they can be compared with (and thresholded like) histograms of all pixels. This is meant
+ * for previews where speed matters more than exact counts; standardErrors() estimates how far the scaled counts
+ * may be off.
+ */
+public class SparseSampling {
+
+    public static final SparseSampling NONE = new SparseSampling(1, 1, 1);
+
+    private final int stepX;
+    private final int stepY;
+    private final int stepZ;
+
+    public SparseSampling(int stepX, int stepY, int stepZ) {
+        if (stepX < 1 || stepY < 1 || stepZ < 1) {
+            throw new IllegalArgumentException("Sampling steps must be at least 1 but were " + stepX + ", " + stepY + ", " + stepZ + ".");
+        }
+        this.stepX = stepX;
+        this.stepY = stepY;
+        this.stepZ = stepZ;
+    }
+
+    /**
+     * Samples every stride-th pixel in every dimension.
+     */
+    public static SparseSampling withStride(int stride) {
+        return new SparseSampling(stride, stride, stride);
+    }
+
+    /**
+     * Determines the smallest stride, equal in all dimensions of the image, with which at most numberOfPixels
+     * pixels are sampled.
+     */
+    public static SparseSampling withPixelBudget(ClearCLBuffer src, long numberOfPixels) {
+        if (numberOfPixels < 1) {
+            throw new IllegalArgumentException("The pixel budget must be at least 1 but was " + numberOfPixels + ".");
+        }
+        long[] dimensions = src.getDimensions();
+        int stride = (int)Math.max(1, Math.floor(Math.pow((double)NONE.numberOfSampledPixels(dimensions) / numberOfPixels, 1.0 / dimensions.length)));
+        while (withStride(stride).numberOfSampledPixels(dimensions) > numberOfPixels) {
+            stride++;
+        }
+        return withStride(stride);
+    }
+
+    public int getStepX() {
+        return stepX;
+    }
+
+    public int getStepY() {
+        return stepY;
+    }
+
+    public int getStepZ() {
+        return stepZ;
+    }
+
+    public boolean isSparse() {
+        return stepX > 1 || stepY > 1 || stepZ > 1;
+    }
+
+    /**
+     * Number of sampled pixels per dimension; kernels taking step sizes are started with these global sizes.
+     */
+    long[] globalSizes(long[] dimensions) {
+        int[] steps = new int[]{stepX, stepY, stepZ};
+        long[] globalSizes = new long[dimensions.length];
+        for (int d = 0; d < dimensions.length; d++) {
+            globalSizes[d] = (dimensions[d] + steps[d] - 1) / steps[d];
+        }
+        return globalSizes;
+    }
+
+    long numberOfSampledPixels(long[] dimensions) {
+        long numberOfPixels = 1;
+        for (long size : globalSizes(dimensions)) {
+            numberOfPixels *= size;
+        }
+        return numberOfPixels;
+    }
+
+    /**
+     * Factor from sampled counts to full-image equivalents. It is exactly the ratio of all pixels to sampled pixels,
+     * so that a scaled histogram sums up to the number of pixels in the image.
+     */
+    public float scaleFactor(ClearCLBuffer src) {
+        return (float)((double)NONE.numberOfSampledPixels(src.getDimensions()) / numberOfSampledPixels(src.getDimensions()));
+    }
+
+    /**
+     * Estimates the standard error of every bin of a scaled histogram. The sampled count n of a bin is treated as
+     * Poisson distributed; its scaled count n * scaleFactor then has a standard error of sqrt(n) * scaleFactor.
+     */
+    public static float[] standardErrors(float[] scaledHistogram, float scaleFactor) {
+        float[] errors = new float[scaledHistogram.length];
+        for (int i = 0; i < errors.length; i++) {
+            errors[i] = (float)Math.sqrt(scaledHistogram[i] * scaleFactor);
+        }
+        return errors;
+    }
+}
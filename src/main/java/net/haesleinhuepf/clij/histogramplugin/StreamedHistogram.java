@@ -0,0 +1,219 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.type.numeric.RealType;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * StreamedHistogram
+ * <p>
+ * Determines histograms of stacks which don't fit into GPU memory, e.g. virtual stacks. The stack is uploaded in
+ * slabs of slices sized according to the memory of the device. All slabs are binned into the same integer partial
+ * histograms on the GPU, which are reduced and read back as exact 64-bit counts once in the end. While a slab is
+ * uploaded and processed on the GPU, the next slab is read from the stack into a second host buffer. Upload and
+ * processing of consecutive slabs do not overlap, as there is one slab buffer on the device.
+ */
+public class StreamedHistogram {
+
+    // slabs, partial histograms and the driver share the GPU memory; a slab may take this fraction of it
+    private static final double FRACTION_OF_GLOBAL_MEMORY_PER_SLAB = 0.25;
+    // slabs are read into two direct host buffers, which are indexed by int
+    private static final long MAXIMUM_HOST_BUFFER_SIZE = Integer.MAX_VALUE / 2;
+    // uint partial histograms are reduced before any of their bins could exceed 2^32 - 1
+    private static final long MAXIMUM_PIXELS_PER_REDUCTION = 0xFFFFFFFFL;
+
+    public static <T extends RealType<T>> long[] histogram(CLIJ clij, RandomAccessibleInterval<T> rai, Float minGreyValue, Float maxGreyValue, int numberOfBins) {
+        return histogram(clij, ImageJFunctions.wrap(rai, "stream"), minGreyValue, maxGreyValue, numberOfBins);
+    }
+
+    /**
+     * Determines the exact histogram of a stack with 64-bit counts.
+     */
+    public static long[] histogram(CLIJ clij, ImagePlus imp, Float minGreyValue, Float maxGreyValue, int numberOfBins) {
+        return histogram(clij, imp, minGreyValue, maxGreyValue, numberOfBins, slabDepth(clij, imp));
+    }
+
+    static long[] histogram(CLIJ clij, ImagePlus imp, Float minGreyValue, Float maxGreyValue, int numberOfBins, int slabDepth) {
+        if (minGreyValue == null || maxGreyValue == null) {
+            float[] minMax = minimumMaximum(clij, imp, slabDepth);
+            if (minGreyValue == null) {
+                minGreyValue = minMax[0];
+            }
+            if (maxGreyValue == null) {
+                maxGreyValue = minMax[1];
+            }
+        }
+        final float minimumGreyValue = minGreyValue;
+        final float maximumGreyValue = maxGreyValue;
+
+        // all slabs are binned into the same uint partial histograms, which are reduced into 64-bit words
+        ClearCLBuffer partialHistograms = Histogram.createPartialHistogramsBuffer(clij, numberOfBins, 1);
+        ClearCLBuffer histogramWords = Histogram.createLongHistogramBuffer(clij, numberOfBins, 1);
+
+        final long[] histogram = new long[numberOfBins];
+        final long[] pixelsSinceReduction = {0};
+        forEachSlab(clij, imp, slabDepth, (slab) -> {
+            long numberOfPixels = slab.getWidth() * slab.getHeight() * slab.getDepth();
+            // a partial histogram could overflow if more pixels were binned without reduction
+            if (pixelsSinceReduction[0] + numberOfPixels > MAXIMUM_PIXELS_PER_REDUCTION) {
+                addReducedHistogram(clij, partialHistograms, histogramWords, histogram);
+                pixelsSinceReduction[0] = 0;
+            }
+            Histogram.accumulatePartialHistograms(clij, slab, partialHistograms, minimumGreyValue, maximumGreyValue);
+            pixelsSinceReduction[0] += numberOfPixels;
+        });
+        addReducedHistogram(clij, partialHistograms, histogramWords, histogram);
+
+        partialHistograms.close();
+        histogramWords.close();
+
+        return histogram;
+    }
+
+    private static void addReducedHistogram(CLIJ clij, ClearCLBuffer partialHistograms, ClearCLBuffer histogramWords, long[] histogram) {
+        Histogram.reducePartialHistograms(clij, partialHistograms, histogramWords);
+        long[] counts = HistogramReadback.readLongs(histogramWords);
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] += counts[i];
+        }
+    }
+
+    /**
+     * Determines minimum and maximum of a stack slab by slab.
+     */
+    public static float[] minimumMaximum(CLIJ clij, ImagePlus imp) {
+        return minimumMaximum(clij, imp, slabDepth(clij, imp));
+    }
+
+    static float[] minimumMaximum(CLIJ clij, ImagePlus imp, int slabDepth) {
+        final float[] minMax = new float[]{Float.MAX_VALUE, -Float.MAX_VALUE};
+        final ClearCLBuffer[] partialMinMax = {null};
+        forEachSlab(clij, imp, slabDepth, (slab) -> {
+            if (partialMinMax[0] == null) {
+                partialMinMax[0] = clij.createCLBuffer(Histogram.partialMinimumMaximumSize(slab), NativeTypeEnum.Float);
+            }
+            float[] slabMinMax = Histogram.minimumMaximum(clij, slab, partialMinMax[0]);
+            minMax[0] = Math.min(minMax[0], slabMinMax[0]);
+            minMax[1] = Math.max(minMax[1], slabMinMax[1]);
+        });
+        if (partialMinMax[0] != null) {
+            partialMinMax[0].close();
+        }
+        return minMax;
+    }
+
+    static int slabDepth(CLIJ clij, ImagePlus imp) {
+        long bytesPerSlice = (long)imp.getWidth() * imp.getHeight() * (imp.getBitDepth() / 8);
+        return slabDepth(bytesPerSlice, imp.getStackSize(),
+                clij.getClearCLContext().getDevice().getMaxMemoryAllocationSizeInBytes(),
+                clij.getClearCLContext().getDevice().getGlobalMemorySizeInBytes());
+    }
+
+    static int slabDepth(long bytesPerSlice, int stackSize, long maximumAllocationSize, long globalMemorySize) {
+        long maximumSlabSize = Math.min(MAXIMUM_HOST_BUFFER_SIZE, Math.min(
+                maximumAllocationSize,
+                (long)(globalMemorySize * FRACTION_OF_GLOBAL_MEMORY_PER_SLAB)));
+        return (int)Math.max(1, Math.min(stackSize, maximumSlabSize / bytesPerSlice));
+    }
+
+    /**
+     * Uploads the stack slab by slab and hands every slab to the slabConsumer. Slabs are read from the stack into
+     * two alternating host buffers by a background thread. Uploads are enqueued without blocking; as the queue is
+     * in order, processing of a slab starts after its upload finished.
+     */
+    private static void forEachSlab(CLIJ clij, ImagePlus imp, int slabDepth, Consumer<ClearCLBuffer> slabConsumer) {
+        final ImageStack stack = imp.getStack();
+        final int depth = stack.getSize();
+        final NativeTypeEnum type = nativeTypeOf(imp);
+        final long bytesPerSlab = (long)stack.getWidth() * stack.getHeight() * (imp.getBitDepth() / 8) * slabDepth;
+        if (bytesPerSlab > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Slabs of " + slabDepth + " slices with " + bytesPerSlab + " bytes exceed the size of host buffers.");
+        }
+
+        ByteBuffer[] hostBuffers = new ByteBuffer[]{
+                ByteBuffer.allocateDirect((int)bytesPerSlab).order(ByteOrder.nativeOrder()),
+                ByteBuffer.allocateDirect((int)bytesPerSlab).order(ByteOrder.nativeOrder())
+        };
+        ClearCLBuffer slab = clij.createCLBuffer(new long[]{stack.getWidth(), stack.getHeight(), slabDepth}, type);
+        ClearCLBuffer lastSlab = null;
+
+        ExecutorService prefetcher = Executors.newSingleThreadExecutor();
+        try {
+            Future<ByteBuffer> nextHostBuffer = prefetcher.submit(() -> fillHostBuffer(stack, 0, Math.min(slabDepth, depth), hostBuffers[0]));
+            for (int z = 0, i = 0; z < depth; z += slabDepth, i++) {
+                ByteBuffer hostBuffer = nextHostBuffer.get();
+
+                // read the next slab while the current one is processed
+                final int nextZ = z + slabDepth;
+                if (nextZ < depth) {
+                    final ByteBuffer otherHostBuffer = hostBuffers[(i + 1) % 2];
+                    nextHostBuffer = prefetcher.submit(() -> fillHostBuffer(stack, nextZ, Math.min(nextZ + slabDepth, depth), otherHostBuffer));
+                }
+
+                ClearCLBuffer target = slab;
+                if (nextZ > depth) {
+                    // the last slab may be thinner
+                    lastSlab = clij.createCLBuffer(new long[]{stack.getWidth(), stack.getHeight(), depth - z}, type);
+                    target = lastSlab;
+                }
+                target.readFrom(hostBuffer, false);
+                slabConsumer.accept(target);
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        } finally {
+            prefetcher.shutdown();
+            slab.close();
+            if (lastSlab != null) {
+                lastSlab.close();
+            }
+        }
+    }
+
+    private static ByteBuffer fillHostBuffer(ImageStack stack, int fromSlice, int toSlice, ByteBuffer hostBuffer) {
+        int pixelsPerSlice = stack.getWidth() * stack.getHeight();
+        hostBuffer.clear();
+        for (int z = fromSlice; z < toSlice; z++) {
+            Object pixels = stack.getPixels(z + 1);
+            int offset = (z - fromSlice) * pixelsPerSlice;
+            if (pixels instanceof byte[]) {
+                hostBuffer.position(offset);
+                hostBuffer.put((byte[]) pixels);
+            } else if (pixels instanceof short[]) {
+                hostBuffer.position(offset * 2);
+                hostBuffer.asShortBuffer().put((short[]) pixels);
+            } else {
+                hostBuffer.position(offset * 4);
+                hostBuffer.asFloatBuffer().put((float[]) pixels);
+            }
+        }
+        hostBuffer.rewind();
+        return hostBuffer;
+    }
+
+    private static NativeTypeEnum nativeTypeOf(ImagePlus imp) {
+        switch (imp.getBitDepth()) {
+            case 8:
+                return NativeTypeEnum.UnsignedByte;
+            case 16:
+                return NativeTypeEnum.UnsignedShort;
+            case 32:
+                return NativeTypeEnum.Float;
+            default:
+                throw new IllegalArgumentException("Only 8-bit, 16-bit and 32-bit images are supported.");
+        }
+    }
+}
@@ -28,11 +28,21 @@
 // Notes (haesleinhuepf)
 // * dst_histogram must be a cl_buffer. Otherwise, GET_IMAGE_WIDTH(dst_histogram) would be no constant and allocating
 //   arrays with dynamic lengths is prohibited.
+// * The row-by-row kernels keep a private histogram per work item and thus support up to 256 bins.
+// * The row-by-row kernels are started with one work item per sampled row, i.e. height / step_size_y work items.
+//   Work item i writes into partial histogram i.
 //
 //
 
 const sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
 
+// bin index rounded towards zero and saturated to [0, number_of_bins - 1]; HistogramCPU does the same
+inline uint bin_index(float clr, float minimum, float range, int number_of_bins)
+{
+    uint indx_x = convert_uint_sat( (clr - minimum) * (float)(number_of_bins) / range );
+    return min(indx_x, (uint)(number_of_bins - 1));
+}
+
 kernel
 void histogram_image_2d(DTYPE_IMAGE_IN_2D src, DTYPE_IMAGE_OUT_3D dst_histogram, float minimum, float maximum, int step_size_x, int step_size_y)
 {
@@ -48,13 +58,12 @@ void histogram_image_2d(DTYPE_IMAGE_IN_2D src, DTYPE_IMAGE_OUT_3D dst_histogram,
 
     for (int x = 0; x < image_width; x+= step_size_x) {
         float clr = READ_IMAGE_2D(src, sampler, (int2)(x, y)).x;
-        uchar   indx_x;
-        indx_x = convert_uchar_sat( (clr - minimum) * (float)(GET_IMAGE_WIDTH(dst_histogram)) / range );
+        uint    indx_x = bin_index(clr, minimum, range, GET_IMAGE_WIDTH(dst_histogram));
         tmp_histogram[indx_x]++;
     }
 
     for (int idx = 0; idx < GET_IMAGE_WIDTH(dst_histogram); idx++) {
-        int4 pos = {idx, 0, y, 0};
+        int4 pos = {idx, 0, get_global_id(0), 0};
         WRITE_IMAGE_3D(dst_histogram, pos,(DTYPE_OUT)tmp_histogram[idx]);
     }
 }
@@ -65,7 +74,7 @@ void histogram_image_3d(DTYPE_IMAGE_IN_3D src, DTYPE_IMAGE_OUT_3D dst_histogram,
     int     image_width = GET_IMAGE_WIDTH(src);
     int     image_height = GET_IMAGE_HEIGHT(src);
     int     image_depth = GET_IMAGE_DEPTH(src);
-    int     y = get_global_id(0);
+    int     y = get_global_id(0) * step_size_y;
     float range = maximum - minimum;
 
     uint tmp_histogram[GET_IMAGE_WIDTH(dst_histogram)];
@@ -76,17 +85,194 @@ void histogram_image_3d(DTYPE_IMAGE_IN_3D src, DTYPE_IMAGE_OUT_3D dst_histogram,
     for (int z = 0; z < image_depth; z+= step_size_z) {
         for (int x = 0; x < image_width; x+= step_size_x) {
             float clr = READ_IMAGE_3D(src, sampler, (int4)(x, y, z, 0)).x;
-            uchar   indx_x;
-            indx_x = convert_uchar_sat( (clr - minimum) * (float)(GET_IMAGE_WIDTH(dst_histogram)) / range );
+            uint    indx_x = bin_index(clr, minimum, range, GET_IMAGE_WIDTH(dst_histogram));
             tmp_histogram[indx_x]++;
         }
     }
 
     for (int idx = 0; idx < GET_IMAGE_WIDTH(dst_histogram); idx++) {
-        int4 pos = {idx, 0, y, 0};
+        int4 pos = {idx, 0, get_global_id(0), 0};
         WRITE_IMAGE_3D(dst_histogram, pos,(DTYPE_OUT)tmp_histogram[idx]);
     }
 }
 
+// Notes (haesleinhuepf)
+// * The following kernels bin tiles of pixels per work-group. Every work item bins PIXELS_PER_WORK_ITEM sampled
+//   pixels of a row, which are get_local_size(0) columns apart, so that neighbouring work items read neighbouring
+//   pixels. Thus, clearing and flushing the local histogram is spread over many pixels even if the driver chooses
+//   small work-groups. They are started with ceil(sampled width / PIXELS_PER_WORK_ITEM) work items per sampled
+//   row, rounded up so that the driver can choose large work-groups; work items outside the image bin nothing.
+// * All work items of a work-group build a common histogram in local memory and flush it into one of
+//   number_of_partial_histograms partial histograms using atomics. Thus, the number of partial histograms no
+//   longer depends on the image height.
+// * dst_histogram must be a zero-initialized buffer of type uint.
+//
+
+// same as Histogram.PIXELS_PER_WORK_ITEM
+#define PIXELS_PER_WORK_ITEM 16
+
+inline void local_histogram_2d(DTYPE_IMAGE_IN_2D src, __global uint* dst_histogram, local uint* local_histogram, float minimum, float maximum, int step_size_x, int step_size_y, int number_of_partial_histograms)
+{
+    const int y = get_global_id(1) * step_size_y;
+    const int first_column = get_group_id(0) * get_local_size(0) * PIXELS_PER_WORK_ITEM + get_local_id(0);
+    const int local_index = get_local_id(0) + get_local_id(1) * get_local_size(0);
+    const int local_size = get_local_size(0) * get_local_size(1);
+    const int group_index = get_group_id(0) + get_group_id(1) * get_num_groups(0);
+    float range = maximum - minimum;
+
+    for (int i = local_index; i < GET_IMAGE_WIDTH(dst_histogram); i += local_size) {
+        local_histogram[i] = 0;
+    }
+    barrier(CLK_LOCAL_MEM_FENCE);
+
+    if (y < GET_IMAGE_HEIGHT(src)) {
+        for (int p = 0; p < PIXELS_PER_WORK_ITEM; p++) {
+            const int x = (first_column + p * get_local_size(0)) * step_size_x;
+            if (x < GET_IMAGE_WIDTH(src)) {
+                float clr = READ_IMAGE_2D(src, sampler, (int2)(x, y)).x;
+                uint    indx_x = bin_index(clr, minimum, range, GET_IMAGE_WIDTH(dst_histogram));
+                atomic_inc(&local_histogram[indx_x]);
+            }
+        }
+    }
+    barrier(CLK_LOCAL_MEM_FENCE);
+
+    const int offset = (group_index % number_of_partial_histograms) * GET_IMAGE_WIDTH(dst_histogram);
+    for (int i = local_index; i < GET_IMAGE_WIDTH(dst_histogram); i += local_size) {
+        uint count = local_histogram[i];
+        if (count > 0) {
+            atomic_add(&dst_histogram[offset + i], count);
+        }
+    }
+}
+
+inline void local_histogram_3d(DTYPE_IMAGE_IN_3D src, __global uint* dst_histogram, local uint* local_histogram, float minimum, float maximum, int step_size_x, int step_size_y, int step_size_z, int number_of_partial_histograms)
+{
+    const int y = get_global_id(1) * step_size_y;
+    const int z = get_global_id(2) * step_size_z;
+    const int first_column = get_group_id(0) * get_local_size(0) * PIXELS_PER_WORK_ITEM + get_local_id(0);
+    const int local_index = get_local_id(0) + get_local_id(1) * get_local_size(0) + get_local_id(2) * get_local_size(0) * get_local_size(1);
+    const int local_size = get_local_size(0) * get_local_size(1) * get_local_size(2);
+    const int group_index = get_group_id(0) + get_group_id(1) * get_num_groups(0) + get_group_id(2) * get_num_groups(0) * get_num_groups(1);
+    float range = maximum - minimum;
+
+    for (int i = local_index; i < GET_IMAGE_WIDTH(dst_histogram); i += local_size) {
+        local_histogram[i] = 0;
+    }
+    barrier(CLK_LOCAL_MEM_FENCE);
+
+    if (y < GET_IMAGE_HEIGHT(src) && z < GET_IMAGE_DEPTH(src)) {
+        for (int p = 0; p < PIXELS_PER_WORK_ITEM; p++) {
+            const int x = (first_column + p * get_local_size(0)) * step_size_x;
+            if (x < GET_IMAGE_WIDTH(src)) {
+                float clr = READ_IMAGE_3D(src, sampler, (int4)(x, y, z, 0)).x;
+                uint    indx_x = bin_index(clr, minimum, range, GET_IMAGE_WIDTH(dst_histogram));
+                atomic_inc(&local_histogram[indx_x]);
+            }
+        }
+    }
+    barrier(CLK_LOCAL_MEM_FENCE);
+
+    const int offset = (group_index % number_of_partial_histograms) * GET_IMAGE_WIDTH(dst_histogram);
+    for (int i = local_index; i < GET_IMAGE_WIDTH(dst_histogram); i += local_size) {
+        uint count = local_histogram[i];
+        if (count > 0) {
+            atomic_add(&dst_histogram[offset + i], count);
+        }
+    }
+}
 
+kernel
+void histogram_image_local_2d(DTYPE_IMAGE_IN_2D src, __global uint* dst_histogram, float minimum, float maximum, int step_size_x, int step_size_y, int number_of_partial_histograms)
+{
+    local uint local_histogram[GET_IMAGE_WIDTH(dst_histogram)];
+    local_histogram_2d(src, dst_histogram, local_histogram, minimum, maximum, step_size_x, step_size_y, number_of_partial_histograms);
+}
 
+kernel
+void histogram_image_local_3d(DTYPE_IMAGE_IN_3D src, __global uint* dst_histogram, float minimum, float maximum, int step_size_x, int step_size_y, int step_size_z, int number_of_partial_histograms)
+{
+    local uint local_histogram[GET_IMAGE_WIDTH(dst_histogram)];
+    local_histogram_3d(src, dst_histogram, local_histogram, minimum, maximum, step_size_x, step_size_y, step_size_z, number_of_partial_histograms);
+}
+
+// Notes (haesleinhuepf)
+// * The following kernels read minimum and maximum from a float buffer of size 2 as written by
+//   minimum_maximum_reduce.cl. Thus, the range can be determined on the GPU without reading it back.
+//
+
+kernel
+void histogram_image_local_range_2d(DTYPE_IMAGE_IN_2D src, __global float* min_max, __global uint* dst_histogram, int step_size_x, int step_size_y, int number_of_partial_histograms)
+{
+    local uint local_histogram[GET_IMAGE_WIDTH(dst_histogram)];
+    local_histogram_2d(src, dst_histogram, local_histogram, min_max[0], min_max[1], step_size_x, step_size_y, number_of_partial_histograms);
+}
+
+kernel
+void histogram_image_local_range_3d(DTYPE_IMAGE_IN_3D src, __global float* min_max, __global uint* dst_histogram, int step_size_x, int step_size_y, int step_size_z, int number_of_partial_histograms)
+{
+    local uint local_histogram[GET_IMAGE_WIDTH(dst_histogram)];
+    local_histogram_3d(src, dst_histogram, local_histogram, min_max[0], min_max[1], step_size_x, step_size_y, step_size_z, number_of_partial_histograms);
+}
+
+// Notes (haesleinhuepf)
+// * The following kernels bin and reduce in one launch; they are used for small images where launch overhead
+//   dominates. After flushing its local histogram, every work-group increments a counter which is stored behind
+//   the partial histograms. The last work-group sums up all partial histograms into dst_histogram.
+// * partial_histograms is a uint buffer of size number_of_bins x 1 x (number_of_partial_histograms + 1). It must be
+//   zero-initialized; the last work-group leaves partial histograms and counter zeroed for the next call.
+//
+
+inline void reduce_in_last_group(__global uint* partial_histograms, DTYPE_IMAGE_OUT_3D dst_histogram, local int* is_last_group, int number_of_partial_histograms, int local_index, int local_size, int number_of_groups)
+{
+    const int number_of_bins = GET_IMAGE_WIDTH(dst_histogram);
+    __global uint* group_counter = partial_histograms + number_of_partial_histograms * number_of_bins;
+
+    // the flushed histogram of this group must be visible before the group is counted
+    mem_fence(CLK_GLOBAL_MEM_FENCE);
+    barrier(CLK_GLOBAL_MEM_FENCE);
+    if (local_index == 0) {
+        is_last_group[0] = atomic_inc(group_counter) == number_of_groups - 1;
+    }
+    barrier(CLK_LOCAL_MEM_FENCE);
+    if (!is_last_group[0]) {
+        return;
+    }
+
+    for (int i = local_index; i < number_of_bins; i += local_size) {
+        ulong sum = 0;
+        for (int p = 0; p < number_of_partial_histograms; p++) {
+            sum += atomic_xchg(&partial_histograms[p * number_of_bins + i], 0);
+        }
+        dst_histogram[i] = (DTYPE_OUT)sum;
+    }
+    if (local_index == 0) {
+        atomic_xchg(group_counter, 0);
+    }
+}
+
+kernel
+void histogram_image_local_fused_2d(DTYPE_IMAGE_IN_2D src, __global uint* partial_histograms, DTYPE_IMAGE_OUT_3D dst_histogram, float minimum, float maximum, int step_size_x, int step_size_y, int number_of_partial_histograms)
+{
+    local uint local_histogram[GET_IMAGE_WIDTH(dst_histogram)];
+    local int is_last_group[1];
+    local_histogram_2d(src, partial_histograms, local_histogram, minimum, maximum, step_size_x, step_size_y, number_of_partial_histograms);
+
+    reduce_in_last_group(partial_histograms, dst_histogram, is_last_group, number_of_partial_histograms,
+            get_local_id(0) + get_local_id(1) * get_local_size(0),
+            get_local_size(0) * get_local_size(1),
+            get_num_groups(0) * get_num_groups(1));
+}
+
+kernel
+void histogram_image_local_fused_3d(DTYPE_IMAGE_IN_3D src, __global uint* partial_histograms, DTYPE_IMAGE_OUT_3D dst_histogram, float minimum, float maximum, int step_size_x, int step_size_y, int step_size_z, int number_of_partial_histograms)
+{
+    local uint local_histogram[GET_IMAGE_WIDTH(dst_histogram)];
+    local int is_last_group[1];
+    local_histogram_3d(src, partial_histograms, local_histogram, minimum, maximum, step_size_x, step_size_y, step_size_z, number_of_partial_histograms);
+
+    reduce_in_last_group(partial_histograms, dst_histogram, is_last_group, number_of_partial_histograms,
+            get_local_id(0) + get_local_id(1) * get_local_size(0) + get_local_id(2) * get_local_size(0) * get_local_size(1),
+            get_local_size(0) * get_local_size(1) * get_local_size(2),
+            get_num_groups(0) * get_num_groups(1) * get_num_groups(2));
+}
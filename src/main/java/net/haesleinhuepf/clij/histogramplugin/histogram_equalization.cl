@@ -0,0 +1,104 @@
+// Applies lookup tables as determined by histogram_lut.cl. Pixels are binned between minimum and maximum given in
+// the float buffer min_max like in histogram.cl and mapped to minimum + lut[bin] * (maximum - minimum).
+//
+// luts contains one lookup table per tile of tile_size_x x tile_size_y (x tile_size_z) pixels; tile (tx, ty, tz) is
+// row tx + (ty + tz * tiles_y) * tiles_x. Lookup tables belong to the tile centres, partial tiles at the border
+// included; the mapped values of the neighbouring tiles are interpolated linearly in every dimension. A single tile covering the whole image gives
+// global histogram equalization. Mapped values are rounded to the nearest integer if the output type is an
+// integer type.
+
+const sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+// same as in histogram.cl
+inline uint bin_index(float clr, float minimum, float range, int number_of_bins)
+{
+    uint indx_x = convert_uint_sat( (clr - minimum) * (float)(number_of_bins) / range );
+    return min(indx_x, (uint)(number_of_bins - 1));
+}
+
+// same as in threshold.cl
+inline float tile_centre(int tile, int tile_size, int size)
+{
+    const int start = tile * tile_size;
+    return 0.5f * (float)(start + min(start + tile_size, size));
+}
+
+inline void tile_coordinate(int position, int tile_size, int number_of_tiles, int size, int* tile, float* fraction)
+{
+    const float p = (float)position + 0.5f;
+    *tile = clamp((int)floor(p / (float)tile_size - 0.5f), 0, max(number_of_tiles - 2, 0));
+    if (number_of_tiles < 2) {
+        *fraction = 0;
+        return;
+    }
+    const float centre = tile_centre(*tile, tile_size, size);
+    const float next_centre = tile_centre(*tile + 1, tile_size, size);
+    *fraction = clamp((p - centre) / (next_centre - centre), 0.0f, 1.0f);
+}
+
+// rounds for integer output types; the condition is constant and thus resolved when compiling
+inline float to_output_range(float value)
+{
+    return ((DTYPE_OUT)0.5f == 0) ? round(value) : value;
+}
+
+kernel
+void apply_luts_2d(DTYPE_IMAGE_IN_2D src, __global float* min_max, __global float* luts, DTYPE_IMAGE_OUT_2D dst, int number_of_bins, int tile_size_x, int tile_size_y, int tiles_x, int tiles_y)
+{
+    const int x = get_global_id(0);
+    const int y = get_global_id(1);
+    const int2 pos = (int2)(x, y);
+
+    const float minimum = min_max[0];
+    const float maximum = min_max[1];
+    float clr = READ_IMAGE_2D(src, sampler, pos).x;
+    const uint bin = bin_index(clr, minimum, maximum - minimum, number_of_bins);
+
+    int tx, ty;
+    float fx, fy;
+    tile_coordinate(x, tile_size_x, tiles_x, GET_IMAGE_WIDTH(src), &tx, &fx);
+    tile_coordinate(y, tile_size_y, tiles_y, GET_IMAGE_HEIGHT(src), &ty, &fy);
+    const int tx1 = min(tx + 1, tiles_x - 1);
+    const int ty1 = min(ty + 1, tiles_y - 1);
+
+    float top = mix(luts[(ty * tiles_x + tx) * number_of_bins + bin], luts[(ty * tiles_x + tx1) * number_of_bins + bin], fx);
+    float bottom = mix(luts[(ty1 * tiles_x + tx) * number_of_bins + bin], luts[(ty1 * tiles_x + tx1) * number_of_bins + bin], fx);
+    float value = minimum + mix(top, bottom, fy) * (maximum - minimum);
+
+    WRITE_IMAGE_2D(dst, pos, (DTYPE_OUT)to_output_range(value));
+}
+
+kernel
+void apply_luts_3d(DTYPE_IMAGE_IN_3D src, __global float* min_max, __global float* luts, DTYPE_IMAGE_OUT_3D dst, int number_of_bins, int tile_size_x, int tile_size_y, int tile_size_z, int tiles_x, int tiles_y, int tiles_z)
+{
+    const int x = get_global_id(0);
+    const int y = get_global_id(1);
+    const int z = get_global_id(2);
+    const int4 pos = (int4)(x, y, z, 0);
+
+    const float minimum = min_max[0];
+    const float maximum = min_max[1];
+    float clr = READ_IMAGE_3D(src, sampler, pos).x;
+    const uint bin = bin_index(clr, minimum, maximum - minimum, number_of_bins);
+
+    int tx, ty, tz;
+    float fx, fy, fz;
+    tile_coordinate(x, tile_size_x, tiles_x, GET_IMAGE_WIDTH(src), &tx, &fx);
+    tile_coordinate(y, tile_size_y, tiles_y, GET_IMAGE_HEIGHT(src), &ty, &fy);
+    tile_coordinate(z, tile_size_z, tiles_z, GET_IMAGE_DEPTH(src), &tz, &fz);
+    const int tx1 = min(tx + 1, tiles_x - 1);
+    const int ty1 = min(ty + 1, tiles_y - 1);
+    const int tz1 = min(tz + 1, tiles_z - 1);
+
+    const int front = tz * tiles_y;
+    const int back = tz1 * tiles_y;
+    float front_value = mix(
+            mix(luts[((front + ty) * tiles_x + tx) * number_of_bins + bin], luts[((front + ty) * tiles_x + tx1) * number_of_bins + bin], fx),
+            mix(luts[((front + ty1) * tiles_x + tx) * number_of_bins + bin], luts[((front + ty1) * tiles_x + tx1) * number_of_bins + bin], fx), fy);
+    float back_value = mix(
+            mix(luts[((back + ty) * tiles_x + tx) * number_of_bins + bin], luts[((back + ty) * tiles_x + tx1) * number_of_bins + bin], fx),
+            mix(luts[((back + ty1) * tiles_x + tx) * number_of_bins + bin], luts[((back + ty1) * tiles_x + tx1) * number_of_bins + bin], fx), fy);
+    float value = minimum + mix(front_value, back_value, fz) * (maximum - minimum);
+
+    WRITE_IMAGE_3D(dst, pos, (DTYPE_OUT)to_output_range(value));
+}
@@ -0,0 +1,46 @@
+// Histogram kernels for histograms which don't fit into local memory, e.g. 65536 bins of 16-bit images. They are
+// kept apart from histogram.cl because the private and local arrays declared there could not be allocated for
+// such numbers of bins and thus the program would not build.
+//
+// Every work item increments its bin in global memory. Contention is reduced by distributing work-groups over
+// number_of_partial_histograms partial histograms. dst_histogram must be a zero-initialized buffer of type uint.
+
+const sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+// same as in histogram.cl
+inline uint bin_index(float clr, float minimum, float range, int number_of_bins)
+{
+    uint indx_x = convert_uint_sat( (clr - minimum) * (float)(number_of_bins) / range );
+    return min(indx_x, (uint)(number_of_bins - 1));
+}
+
+kernel
+void histogram_image_global_2d(DTYPE_IMAGE_IN_2D src, __global uint* dst_histogram, float minimum, float maximum, int step_size_x, int step_size_y, int number_of_partial_histograms)
+{
+    const int x = get_global_id(0) * step_size_x;
+    const int y = get_global_id(1) * step_size_y;
+    const int group_index = get_group_id(0) + get_group_id(1) * get_num_groups(0);
+    float range = maximum - minimum;
+
+    float clr = READ_IMAGE_2D(src, sampler, (int2)(x, y)).x;
+    uint    indx_x = bin_index(clr, minimum, range, GET_IMAGE_WIDTH(dst_histogram));
+
+    const int offset = (group_index % number_of_partial_histograms) * GET_IMAGE_WIDTH(dst_histogram);
+    atomic_inc(&dst_histogram[offset + indx_x]);
+}
+
+kernel
+void histogram_image_global_3d(DTYPE_IMAGE_IN_3D src, __global uint* dst_histogram, float minimum, float maximum, int step_size_x, int step_size_y, int step_size_z, int number_of_partial_histograms)
+{
+    const int x = get_global_id(0) * step_size_x;
+    const int y = get_global_id(1) * step_size_y;
+    const int z = get_global_id(2) * step_size_z;
+    const int group_index = get_group_id(0) + get_group_id(1) * get_num_groups(0) + get_group_id(2) * get_num_groups(0) * get_num_groups(1);
+    float range = maximum - minimum;
+
+    float clr = READ_IMAGE_3D(src, sampler, (int4)(x, y, z, 0)).x;
+    uint    indx_x = bin_index(clr, minimum, range, GET_IMAGE_WIDTH(dst_histogram));
+
+    const int offset = (group_index % number_of_partial_histograms) * GET_IMAGE_WIDTH(dst_histogram);
+    atomic_inc(&dst_histogram[offset + indx_x]);
+}
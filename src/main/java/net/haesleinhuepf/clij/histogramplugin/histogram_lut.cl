@@ -0,0 +1,38 @@
+// Turns histograms into lookup tables for histogram equalization. src_histograms contains one uint histogram per
+// row, e.g. one per tile; every work item converts row get_global_id(0) into the normalized cumulative histogram
+// in dst_luts: entry i is the fraction of pixels in bins 0 to i.
+//
+// If clip_limit > 0, counts are limited to clip_limit times the average count per bin before accumulating, and the
+// clipped counts are redistributed evenly over all bins, as in contrast-limited adaptive histogram equalization
+// (CLAHE). Redistribution is done once; thus, bins may end up slightly above the limit.
+
+kernel
+void histograms_to_luts(__global uint* src_histograms, __global float* dst_luts, int number_of_bins, float clip_limit)
+{
+    __global uint* histogram = src_histograms + get_global_id(0) * number_of_bins;
+    __global float* lut = dst_luts + get_global_id(0) * number_of_bins;
+
+    float total = 0;
+    for (int i = 0; i < number_of_bins; i++) {
+        total += histogram[i];
+    }
+    if (total == 0) {
+        for (int i = 0; i < number_of_bins; i++) {
+            lut[i] = 0;
+        }
+        return;
+    }
+
+    float limit = clip_limit > 0 ? max(1.0f, clip_limit * total / (float)number_of_bins) : total;
+    float excess = 0;
+    for (int i = 0; i < number_of_bins; i++) {
+        excess += max((float)histogram[i] - limit, 0.0f);
+    }
+    const float redistributed = excess / (float)number_of_bins;
+
+    float sum = 0;
+    for (int i = 0; i < number_of_bins; i++) {
+        sum += min((float)histogram[i], limit) + redistributed;
+        lut[i] = min(sum / total, 1.0f);
+    }
+}
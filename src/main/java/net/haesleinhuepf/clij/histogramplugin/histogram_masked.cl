@@ -0,0 +1,141 @@
+// Histograms and ranges of a rectangular / box region of interest, optionally restricted to the pixels of a binary
+// mask. Pixels outside the region or with mask value 0 are skipped in the same pass.
+//
+// * The region starts at (offset_x, offset_y, offset_z); the histogram kernels are started with one work item per
+//   pixel of the region, the minimum_maximum kernels with one work item per row of the region.
+// * mask is a uchar buffer of the same size as src.
+// * dst_histogram is a zero-initialized uint buffer of size number_of_bins x 1 x number_of_partial_histograms. Every
+//   work item increments its bin using global atomics; contention is reduced by distributing work-groups over the
+//   partial histograms. As masks typically select a minority of pixels, no local memory histogram is built.
+// * dst_min_max receives minimum and maximum per row of the region; rows without masked pixels contain
+//   FLT_MAX, -FLT_MAX.
+
+const sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+// same as in histogram.cl
+inline uint bin_index(float clr, float minimum, float range, int number_of_bins)
+{
+    uint indx_x = convert_uint_sat( (clr - minimum) * (float)(number_of_bins) / range );
+    return min(indx_x, (uint)(number_of_bins - 1));
+}
+
+inline void masked_histogram_2d(DTYPE_IMAGE_IN_2D src, __global uchar* mask, __global uint* dst_histogram, float minimum, float maximum, int offset_x, int offset_y, int number_of_partial_histograms)
+{
+    const int x = offset_x + get_global_id(0);
+    const int y = offset_y + get_global_id(1);
+
+    if (mask != 0 && mask[x + y * GET_IMAGE_WIDTH(src)] == 0) {
+        return;
+    }
+
+    const int group_index = get_group_id(0) + get_group_id(1) * get_num_groups(0);
+    float clr = READ_IMAGE_2D(src, sampler, (int2)(x, y)).x;
+    uint    indx_x = bin_index(clr, minimum, maximum - minimum, GET_IMAGE_WIDTH(dst_histogram));
+
+    const int offset = (group_index % number_of_partial_histograms) * GET_IMAGE_WIDTH(dst_histogram);
+    atomic_inc(&dst_histogram[offset + indx_x]);
+}
+
+inline void masked_histogram_3d(DTYPE_IMAGE_IN_3D src, __global uchar* mask, __global uint* dst_histogram, float minimum, float maximum, int offset_x, int offset_y, int offset_z, int number_of_partial_histograms)
+{
+    const int x = offset_x + get_global_id(0);
+    const int y = offset_y + get_global_id(1);
+    const int z = offset_z + get_global_id(2);
+
+    if (mask != 0 && mask[x + (y + z * GET_IMAGE_HEIGHT(src)) * GET_IMAGE_WIDTH(src)] == 0) {
+        return;
+    }
+
+    const int group_index = get_group_id(0) + get_group_id(1) * get_num_groups(0) + get_group_id(2) * get_num_groups(0) * get_num_groups(1);
+    float clr = READ_IMAGE_3D(src, sampler, (int4)(x, y, z, 0)).x;
+    uint    indx_x = bin_index(clr, minimum, maximum - minimum, GET_IMAGE_WIDTH(dst_histogram));
+
+    const int offset = (group_index % number_of_partial_histograms) * GET_IMAGE_WIDTH(dst_histogram);
+    atomic_inc(&dst_histogram[offset + indx_x]);
+}
+
+kernel
+void histogram_masked_2d(DTYPE_IMAGE_IN_2D src, __global uchar* mask, __global uint* dst_histogram, float minimum, float maximum, int offset_x, int offset_y, int number_of_partial_histograms)
+{
+    masked_histogram_2d(src, mask, dst_histogram, minimum, maximum, offset_x, offset_y, number_of_partial_histograms);
+}
+
+kernel
+void histogram_masked_3d(DTYPE_IMAGE_IN_3D src, __global uchar* mask, __global uint* dst_histogram, float minimum, float maximum, int offset_x, int offset_y, int offset_z, int number_of_partial_histograms)
+{
+    masked_histogram_3d(src, mask, dst_histogram, minimum, maximum, offset_x, offset_y, offset_z, number_of_partial_histograms);
+}
+
+kernel
+void histogram_box_2d(DTYPE_IMAGE_IN_2D src, __global uint* dst_histogram, float minimum, float maximum, int offset_x, int offset_y, int number_of_partial_histograms)
+{
+    masked_histogram_2d(src, 0, dst_histogram, minimum, maximum, offset_x, offset_y, number_of_partial_histograms);
+}
+
+kernel
+void histogram_box_3d(DTYPE_IMAGE_IN_3D src, __global uint* dst_histogram, float minimum, float maximum, int offset_x, int offset_y, int offset_z, int number_of_partial_histograms)
+{
+    masked_histogram_3d(src, 0, dst_histogram, minimum, maximum, offset_x, offset_y, offset_z, number_of_partial_histograms);
+}
+
+inline void masked_minimum_maximum_3d(DTYPE_IMAGE_IN_3D src, __global uchar* mask, __global float* dst_min_max, int offset_x, int offset_y, int offset_z, int region_width, int region_depth)
+{
+    const int y = offset_y + get_global_id(0);
+
+    float minimum = FLT_MAX;
+    float maximum = -FLT_MAX;
+    for (int z = offset_z; z < offset_z + region_depth; z++) {
+        for (int x = offset_x; x < offset_x + region_width; x++) {
+            if (mask != 0 && mask[x + (y + z * GET_IMAGE_HEIGHT(src)) * GET_IMAGE_WIDTH(src)] == 0) {
+                continue;
+            }
+            float clr = READ_IMAGE_3D(src, sampler, (int4)(x, y, z, 0)).x;
+            minimum = min(minimum, clr);
+            maximum = max(maximum, clr);
+        }
+    }
+    dst_min_max[get_global_id(0) * 2] = minimum;
+    dst_min_max[get_global_id(0) * 2 + 1] = maximum;
+}
+
+inline void masked_minimum_maximum_2d(DTYPE_IMAGE_IN_2D src, __global uchar* mask, __global float* dst_min_max, int offset_x, int offset_y, int region_width)
+{
+    const int y = offset_y + get_global_id(0);
+
+    float minimum = FLT_MAX;
+    float maximum = -FLT_MAX;
+    for (int x = offset_x; x < offset_x + region_width; x++) {
+        if (mask != 0 && mask[x + y * GET_IMAGE_WIDTH(src)] == 0) {
+            continue;
+        }
+        float clr = READ_IMAGE_2D(src, sampler, (int2)(x, y)).x;
+        minimum = min(minimum, clr);
+        maximum = max(maximum, clr);
+    }
+    dst_min_max[get_global_id(0) * 2] = minimum;
+    dst_min_max[get_global_id(0) * 2 + 1] = maximum;
+}
+
+kernel
+void minimum_maximum_masked_2d(DTYPE_IMAGE_IN_2D src, __global uchar* mask, __global float* dst_min_max, int offset_x, int offset_y, int region_width)
+{
+    masked_minimum_maximum_2d(src, mask, dst_min_max, offset_x, offset_y, region_width);
+}
+
+kernel
+void minimum_maximum_masked_3d(DTYPE_IMAGE_IN_3D src, __global uchar* mask, __global float* dst_min_max, int offset_x, int offset_y, int offset_z, int region_width, int region_depth)
+{
+    masked_minimum_maximum_3d(src, mask, dst_min_max, offset_x, offset_y, offset_z, region_width, region_depth);
+}
+
+kernel
+void minimum_maximum_box_2d(DTYPE_IMAGE_IN_2D src, __global float* dst_min_max, int offset_x, int offset_y, int region_width)
+{
+    masked_minimum_maximum_2d(src, 0, dst_min_max, offset_x, offset_y, region_width);
+}
+
+kernel
+void minimum_maximum_box_3d(DTYPE_IMAGE_IN_3D src, __global float* dst_min_max, int offset_x, int offset_y, int offset_z, int region_width, int region_depth)
+{
+    masked_minimum_maximum_3d(src, 0, dst_min_max, offset_x, offset_y, offset_z, region_width, region_depth);
+}
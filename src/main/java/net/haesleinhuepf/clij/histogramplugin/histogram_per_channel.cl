@@ -0,0 +1,61 @@
+// Determines the histograms of all channels of a multi-channel stack in one read of the image. Channels are stored
+// along Z: pixel (x, y, z) belongs to channel (z / slices_per_channel) % number_of_channels. Thus, channels which
+// are interleaved slice by slice like in ImageJ hyperstacks have slices_per_channel = 1; channels which are stored
+// one after another have slices_per_channel = depth / number_of_channels.
+//
+// * min_max is a float buffer containing minimum and maximum of every channel: [min_0, max_0, min_1, max_1, ...]
+// * dst_histograms is a zero-initialized uint buffer of size number_of_bins x number_of_channels x
+//   number_of_partial_histograms which is reduced by histogram_reduce.cl afterwards.
+// * The kernel in this file builds the histograms of all channels per work-group in local memory and flushes them
+//   into one of the partial histograms using atomics. It can only be built if number_of_bins x number_of_channels
+//   counters fit into local memory; otherwise, histogram_per_channel_global_atomics.cl is used.
+
+#pragma OPENCL EXTENSION cl_khr_local_int32_base_atomics : enable
+
+const sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+// same as in histogram.cl
+inline uint bin_index(float clr, float minimum, float range, int number_of_bins)
+{
+    uint indx_x = convert_uint_sat( (clr - minimum) * (float)(number_of_bins) / range );
+    return min(indx_x, (uint)(number_of_bins - 1));
+}
+
+kernel
+void histogram_per_channel_local_3d(DTYPE_IMAGE_IN_3D src, __global float* min_max, __global uint* dst_histograms, int slices_per_channel, int number_of_partial_histograms)
+{
+    local uint local_histograms[GET_IMAGE_WIDTH(dst_histograms) * GET_IMAGE_HEIGHT(dst_histograms)];
+
+    const int x = get_global_id(0);
+    const int y = get_global_id(1);
+    const int z = get_global_id(2);
+    const int local_index = get_local_id(0) + get_local_id(1) * get_local_size(0) + get_local_id(2) * get_local_size(0) * get_local_size(1);
+    const int local_size = get_local_size(0) * get_local_size(1) * get_local_size(2);
+    const int group_index = get_group_id(0) + get_group_id(1) * get_num_groups(0) + get_group_id(2) * get_num_groups(0) * get_num_groups(1);
+
+    const int number_of_bins = GET_IMAGE_WIDTH(dst_histograms);
+    const int number_of_channels = GET_IMAGE_HEIGHT(dst_histograms);
+    const int size = number_of_bins * number_of_channels;
+
+    for (int i = local_index; i < size; i += local_size) {
+        local_histograms[i] = 0;
+    }
+    barrier(CLK_LOCAL_MEM_FENCE);
+
+    const int channel = (z / slices_per_channel) % number_of_channels;
+    float minimum = min_max[channel * 2];
+    float range = min_max[channel * 2 + 1] - minimum;
+
+    float clr = READ_IMAGE_3D(src, sampler, (int4)(x, y, z, 0)).x;
+    uint    indx_x = bin_index(clr, minimum, range, number_of_bins);
+    atomic_inc(&local_histograms[channel * number_of_bins + indx_x]);
+    barrier(CLK_LOCAL_MEM_FENCE);
+
+    const int offset = (group_index % number_of_partial_histograms) * size;
+    for (int i = local_index; i < size; i += local_size) {
+        uint count = local_histograms[i];
+        if (count > 0) {
+            atomic_add(&dst_histograms[offset + i], count);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+// Per-channel histograms whose number_of_bins x number_of_channels counters don't fit into local memory. Same
+// parameters and result as histogram_per_channel.cl, but every work item increments its bin in global memory.
+// Contention is reduced by distributing work-groups over number_of_partial_histograms partial histograms.
+
+const sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+// same as in histogram.cl
+inline uint bin_index(float clr, float minimum, float range, int number_of_bins)
+{
+    uint indx_x = convert_uint_sat( (clr - minimum) * (float)(number_of_bins) / range );
+    return min(indx_x, (uint)(number_of_bins - 1));
+}
+
+kernel
+void histogram_per_channel_global_3d(DTYPE_IMAGE_IN_3D src, __global float* min_max, __global uint* dst_histograms, int slices_per_channel, int number_of_partial_histograms)
+{
+    const int x = get_global_id(0);
+    const int y = get_global_id(1);
+    const int z = get_global_id(2);
+    const int group_index = get_group_id(0) + get_group_id(1) * get_num_groups(0) + get_group_id(2) * get_num_groups(0) * get_num_groups(1);
+
+    const int number_of_bins = GET_IMAGE_WIDTH(dst_histograms);
+    const int number_of_channels = GET_IMAGE_HEIGHT(dst_histograms);
+
+    const int channel = (z / slices_per_channel) % number_of_channels;
+    float minimum = min_max[channel * 2];
+    float range = min_max[channel * 2 + 1] - minimum;
+
+    float clr = READ_IMAGE_3D(src, sampler, (int4)(x, y, z, 0)).x;
+    uint    indx_x = bin_index(clr, minimum, range, number_of_bins);
+
+    const int offset = ((group_index % number_of_partial_histograms) * number_of_channels + channel) * number_of_bins;
+    atomic_inc(&dst_histograms[offset + indx_x]);
+}
@@ -0,0 +1,76 @@
+// Determines histograms of all frames of a stack in one pass. Frames are consecutive blocks of slices_per_frame
+// slices, e.g. the time points of a 2D+t (slices_per_frame = 1) or 3D+t stack.
+//
+// * min_max is a float buffer containing minimum and maximum of every frame: [min_0, max_0, min_1, max_1, ...]
+// * dst_histograms is a zero-initialized uint buffer of size number_of_bins x number_of_frames x
+//   number_of_partial_histograms. Every work item increments its bin using global atomics. Contention is reduced
+//   by distributing work-groups over the partial histograms.
+//
+// Frames kept in separate images are binned by histogram_of_frame_*d, one launch per frame, into row frame of the
+// same dst_histograms; min_max then contains a single range [min, max] for all frames.
+
+const sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+// same as in histogram.cl
+inline uint bin_index(float clr, float minimum, float range, int number_of_bins)
+{
+    uint indx_x = convert_uint_sat( (clr - minimum) * (float)(number_of_bins) / range );
+    return min(indx_x, (uint)(number_of_bins - 1));
+}
+
+kernel
+void histogram_per_frame_3d(DTYPE_IMAGE_IN_3D src, __global float* min_max, __global uint* dst_histograms, int slices_per_frame, int number_of_partial_histograms)
+{
+    const int x = get_global_id(0);
+    const int y = get_global_id(1);
+    const int z = get_global_id(2);
+    const int frame = z / slices_per_frame;
+    const int group_index = get_group_id(0) + get_group_id(1) * get_num_groups(0) + get_group_id(2) * get_num_groups(0) * get_num_groups(1);
+
+    const int number_of_bins = GET_IMAGE_WIDTH(dst_histograms);
+    const int number_of_frames = GET_IMAGE_HEIGHT(dst_histograms);
+
+    float minimum = min_max[frame * 2];
+    float range = min_max[frame * 2 + 1] - minimum;
+
+    float clr = READ_IMAGE_3D(src, sampler, (int4)(x, y, z, 0)).x;
+    uint    indx_x = bin_index(clr, minimum, range, number_of_bins);
+
+    const int offset = ((group_index % number_of_partial_histograms) * number_of_frames + frame) * number_of_bins;
+    atomic_inc(&dst_histograms[offset + indx_x]);
+}
+
+kernel
+void histogram_of_frame_2d(DTYPE_IMAGE_IN_2D src, __global float* min_max, __global uint* dst_histograms, int frame, int number_of_partial_histograms)
+{
+    const int x = get_global_id(0);
+    const int y = get_global_id(1);
+    const int group_index = get_group_id(0) + get_group_id(1) * get_num_groups(0);
+
+    const int number_of_bins = GET_IMAGE_WIDTH(dst_histograms);
+    const int number_of_frames = GET_IMAGE_HEIGHT(dst_histograms);
+
+    float clr = READ_IMAGE_2D(src, sampler, (int2)(x, y)).x;
+    uint    indx_x = bin_index(clr, min_max[0], min_max[1] - min_max[0], number_of_bins);
+
+    const int offset = ((group_index % number_of_partial_histograms) * number_of_frames + frame) * number_of_bins;
+    atomic_inc(&dst_histograms[offset + indx_x]);
+}
+
+kernel
+void histogram_of_frame_3d(DTYPE_IMAGE_IN_3D src, __global float* min_max, __global uint* dst_histograms, int frame, int number_of_partial_histograms)
+{
+    const int x = get_global_id(0);
+    const int y = get_global_id(1);
+    const int z = get_global_id(2);
+    const int group_index = get_group_id(0) + get_group_id(1) * get_num_groups(0) + get_group_id(2) * get_num_groups(0) * get_num_groups(1);
+
+    const int number_of_bins = GET_IMAGE_WIDTH(dst_histograms);
+    const int number_of_frames = GET_IMAGE_HEIGHT(dst_histograms);
+
+    float clr = READ_IMAGE_3D(src, sampler, (int4)(x, y, z, 0)).x;
+    uint    indx_x = bin_index(clr, min_max[0], min_max[1] - min_max[0], number_of_bins);
+
+    const int offset = ((group_index % number_of_partial_histograms) * number_of_frames + frame) * number_of_bins;
+    atomic_inc(&dst_histograms[offset + indx_x]);
+}
@@ -0,0 +1,90 @@
+// Determines one histogram per label of a label map in one pass over the image. The result is a matrix of
+// number_of_bins x number_of_labels; label 0 (background) is included.
+//
+// * labels is a uint buffer of the same size as src. Pixels with labels >= number_of_labels are skipped.
+// * min_max is a float buffer of size 2 containing minimum and maximum; all labels are binned in the same range.
+// * dst_histograms is a zero-initialized uint buffer of size number_of_bins x number_of_labels x
+//   number_of_partial_histograms.
+// * The kernels in this file build sub-histograms of all labels per work-group in local memory and flush them into
+//   one of the partial histograms using atomics. They can only be built if number_of_bins x number_of_labels
+//   counters fit into local memory; otherwise, histogram_per_label_global_atomics.cl is used.
+
+#pragma OPENCL EXTENSION cl_khr_local_int32_base_atomics : enable
+
+const sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+// same as in histogram.cl
+inline uint bin_index(float clr, float minimum, float range, int number_of_bins)
+{
+    uint indx_x = convert_uint_sat( (clr - minimum) * (float)(number_of_bins) / range );
+    return min(indx_x, (uint)(number_of_bins - 1));
+}
+
+inline void flush_histograms(local uint* local_histograms, __global uint* dst_histograms, int local_index, int local_size, int group_index, int number_of_partial_histograms)
+{
+    const int size = GET_IMAGE_WIDTH(dst_histograms) * GET_IMAGE_HEIGHT(dst_histograms);
+    const int offset = (group_index % number_of_partial_histograms) * size;
+    for (int i = local_index; i < size; i += local_size) {
+        uint count = local_histograms[i];
+        if (count > 0) {
+            atomic_add(&dst_histograms[offset + i], count);
+        }
+    }
+}
+
+kernel
+void histogram_per_label_local_2d(DTYPE_IMAGE_IN_2D src, __global uint* labels, __global float* min_max, __global uint* dst_histograms, int number_of_partial_histograms)
+{
+    local uint local_histograms[GET_IMAGE_WIDTH(dst_histograms) * GET_IMAGE_HEIGHT(dst_histograms)];
+
+    const int x = get_global_id(0);
+    const int y = get_global_id(1);
+    const int local_index = get_local_id(0) + get_local_id(1) * get_local_size(0);
+    const int local_size = get_local_size(0) * get_local_size(1);
+    const int group_index = get_group_id(0) + get_group_id(1) * get_num_groups(0);
+    const int number_of_bins = GET_IMAGE_WIDTH(dst_histograms);
+
+    for (int i = local_index; i < number_of_bins * GET_IMAGE_HEIGHT(dst_histograms); i += local_size) {
+        local_histograms[i] = 0;
+    }
+    barrier(CLK_LOCAL_MEM_FENCE);
+
+    const uint label = labels[x + y * GET_IMAGE_WIDTH(src)];
+    if (label < GET_IMAGE_HEIGHT(dst_histograms)) {
+        float clr = READ_IMAGE_2D(src, sampler, (int2)(x, y)).x;
+        uint    indx_x = bin_index(clr, min_max[0], min_max[1] - min_max[0], number_of_bins);
+        atomic_inc(&local_histograms[label * number_of_bins + indx_x]);
+    }
+    barrier(CLK_LOCAL_MEM_FENCE);
+
+    flush_histograms(local_histograms, dst_histograms, local_index, local_size, group_index, number_of_partial_histograms);
+}
+
+kernel
+void histogram_per_label_local_3d(DTYPE_IMAGE_IN_3D src, __global uint* labels, __global float* min_max, __global uint* dst_histograms, int number_of_partial_histograms)
+{
+    local uint local_histograms[GET_IMAGE_WIDTH(dst_histograms) * GET_IMAGE_HEIGHT(dst_histograms)];
+
+    const int x = get_global_id(0);
+    const int y = get_global_id(1);
+    const int z = get_global_id(2);
+    const int local_index = get_local_id(0) + get_local_id(1) * get_local_size(0) + get_local_id(2) * get_local_size(0) * get_local_size(1);
+    const int local_size = get_local_size(0) * get_local_size(1) * get_local_size(2);
+    const int group_index = get_group_id(0) + get_group_id(1) * get_num_groups(0) + get_group_id(2) * get_num_groups(0) * get_num_groups(1);
+    const int number_of_bins = GET_IMAGE_WIDTH(dst_histograms);
+
+    for (int i = local_index; i < number_of_bins * GET_IMAGE_HEIGHT(dst_histograms); i += local_size) {
+        local_histograms[i] = 0;
+    }
+    barrier(CLK_LOCAL_MEM_FENCE);
+
+    const uint label = labels[x + (y + z * GET_IMAGE_HEIGHT(src)) * GET_IMAGE_WIDTH(src)];
+    if (label < GET_IMAGE_HEIGHT(dst_histograms)) {
+        float clr = READ_IMAGE_3D(src, sampler, (int4)(x, y, z, 0)).x;
+        uint    indx_x = bin_index(clr, min_max[0], min_max[1] - min_max[0], number_of_bins);
+        atomic_inc(&local_histograms[label * number_of_bins + indx_x]);
+    }
+    barrier(CLK_LOCAL_MEM_FENCE);
+
+    flush_histograms(local_histograms, dst_histograms, local_index, local_size, group_index, number_of_partial_histograms);
+}
@@ -0,0 +1,55 @@
+// Per-label histograms for label maps whose labels x bins counters don't fit into local memory, e.g. thousands of
+// labels. Same parameters and result as histogram_per_label.cl, but every work item increments its bin in global
+// memory. Contention is reduced by distributing work-groups over number_of_partial_histograms partial histograms.
+
+const sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+// same as in histogram.cl
+inline uint bin_index(float clr, float minimum, float range, int number_of_bins)
+{
+    uint indx_x = convert_uint_sat( (clr - minimum) * (float)(number_of_bins) / range );
+    return min(indx_x, (uint)(number_of_bins - 1));
+}
+
+kernel
+void histogram_per_label_global_2d(DTYPE_IMAGE_IN_2D src, __global uint* labels, __global float* min_max, __global uint* dst_histograms, int number_of_partial_histograms)
+{
+    const int x = get_global_id(0);
+    const int y = get_global_id(1);
+    const int group_index = get_group_id(0) + get_group_id(1) * get_num_groups(0);
+    const int number_of_bins = GET_IMAGE_WIDTH(dst_histograms);
+    const int number_of_labels = GET_IMAGE_HEIGHT(dst_histograms);
+
+    const uint label = labels[x + y * GET_IMAGE_WIDTH(src)];
+    if (label >= number_of_labels) {
+        return;
+    }
+
+    float clr = READ_IMAGE_2D(src, sampler, (int2)(x, y)).x;
+    uint    indx_x = bin_index(clr, min_max[0], min_max[1] - min_max[0], number_of_bins);
+
+    const int offset = ((group_index % number_of_partial_histograms) * number_of_labels + label) * number_of_bins;
+    atomic_inc(&dst_histograms[offset + indx_x]);
+}
+
+kernel
+void histogram_per_label_global_3d(DTYPE_IMAGE_IN_3D src, __global uint* labels, __global float* min_max, __global uint* dst_histograms, int number_of_partial_histograms)
+{
+    const int x = get_global_id(0);
+    const int y = get_global_id(1);
+    const int z = get_global_id(2);
+    const int group_index = get_group_id(0) + get_group_id(1) * get_num_groups(0) + get_group_id(2) * get_num_groups(0) * get_num_groups(1);
+    const int number_of_bins = GET_IMAGE_WIDTH(dst_histograms);
+    const int number_of_labels = GET_IMAGE_HEIGHT(dst_histograms);
+
+    const uint label = labels[x + (y + z * GET_IMAGE_HEIGHT(src)) * GET_IMAGE_WIDTH(src)];
+    if (label >= number_of_labels) {
+        return;
+    }
+
+    float clr = READ_IMAGE_3D(src, sampler, (int4)(x, y, z, 0)).x;
+    uint    indx_x = bin_index(clr, min_max[0], min_max[1] - min_max[0], number_of_bins);
+
+    const int offset = ((group_index % number_of_partial_histograms) * number_of_labels + label) * number_of_bins;
+    atomic_inc(&dst_histograms[offset + indx_x]);
+}
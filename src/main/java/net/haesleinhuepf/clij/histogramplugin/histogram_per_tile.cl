@@ -0,0 +1,55 @@
+// Determines the histograms of all tiles of an image in one pass. Tiles are blocks of tile_size_x x tile_size_y
+// (x tile_size_z) pixels; tile (tx, ty, tz) is row tx + (ty + tz * tiles_y) * tiles_x of dst_histograms. All tiles are
+// binned between minimum and maximum given in the float buffer min_max, e.g. as determined by
+// minimum_maximum_reduce.cl, so that the range doesn't need to be read back.
+//
+// * dst_histograms is a zero-initialized uint buffer of size number_of_bins x number_of_tiles x
+//   number_of_partial_histograms which is reduced by histogram_reduce.cl afterwards.
+// * Work-groups don't correspond to tiles; thus, every work item increments its bin in global memory. Contention is
+//   reduced by distributing work-groups over the partial histograms.
+
+const sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+// same as in histogram.cl
+inline uint bin_index(float clr, float minimum, float range, int number_of_bins)
+{
+    uint indx_x = convert_uint_sat( (clr - minimum) * (float)(number_of_bins) / range );
+    return min(indx_x, (uint)(number_of_bins - 1));
+}
+
+kernel
+void histogram_per_tile_2d(DTYPE_IMAGE_IN_2D src, __global float* min_max, __global uint* dst_histograms, int tile_size_x, int tile_size_y, int tiles_x, int number_of_partial_histograms)
+{
+    const int x = get_global_id(0);
+    const int y = get_global_id(1);
+    const int group_index = get_group_id(0) + get_group_id(1) * get_num_groups(0);
+    const int number_of_bins = GET_IMAGE_WIDTH(dst_histograms);
+    const int number_of_tiles = GET_IMAGE_HEIGHT(dst_histograms);
+
+    const int tile = x / tile_size_x + (y / tile_size_y) * tiles_x;
+
+    float clr = READ_IMAGE_2D(src, sampler, (int2)(x, y)).x;
+    uint    indx_x = bin_index(clr, min_max[0], min_max[1] - min_max[0], number_of_bins);
+
+    const int offset = ((group_index % number_of_partial_histograms) * number_of_tiles + tile) * number_of_bins;
+    atomic_inc(&dst_histograms[offset + indx_x]);
+}
+
+kernel
+void histogram_per_tile_3d(DTYPE_IMAGE_IN_3D src, __global float* min_max, __global uint* dst_histograms, int tile_size_x, int tile_size_y, int tile_size_z, int tiles_x, int tiles_y, int number_of_partial_histograms)
+{
+    const int x = get_global_id(0);
+    const int y = get_global_id(1);
+    const int z = get_global_id(2);
+    const int group_index = get_group_id(0) + get_group_id(1) * get_num_groups(0) + get_group_id(2) * get_num_groups(0) * get_num_groups(1);
+    const int number_of_bins = GET_IMAGE_WIDTH(dst_histograms);
+    const int number_of_tiles = GET_IMAGE_HEIGHT(dst_histograms);
+
+    const int tile = x / tile_size_x + (y / tile_size_y + (z / tile_size_z) * tiles_y) * tiles_x;
+
+    float clr = READ_IMAGE_3D(src, sampler, (int4)(x, y, z, 0)).x;
+    uint    indx_x = bin_index(clr, min_max[0], min_max[1] - min_max[0], number_of_bins);
+
+    const int offset = ((group_index % number_of_partial_histograms) * number_of_tiles + tile) * number_of_bins;
+    atomic_inc(&dst_histograms[offset + indx_x]);
+}
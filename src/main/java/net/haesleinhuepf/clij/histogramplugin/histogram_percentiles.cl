@@ -0,0 +1,95 @@
+// Cumulative histograms and percentiles. src_histogram is a uint histogram as determined by the histogram kernels;
+// cumulative histograms are exact 64-bit counts stored as pairs of uint words (low, high) like the 64-bit
+// histograms of histogram_reduce_words.cl.
+//
+// The prefix sum runs in two launches without depending on work-group sizes:
+// * scan_blocks: one work item per block of block_size bins writes the inclusive prefix sums within its block and
+//   the total of the block to block_sums.
+// * add_block_offsets: one work item per bin adds the totals of all previous blocks.
+//
+// percentiles determines one grey value per quantile (0..1) by binary search in the cumulative histogram.
+// Pixels are assumed to be uniformly distributed within their bin, so that quantiles are interpolated linearly
+// between bin edges. Bin i covers [min + i * range / bins, min + (i + 1) * range / bins).
+
+// quantiles of large histograms need more than float precision if available
+#ifdef cl_khr_fp64
+#pragma OPENCL EXTENSION cl_khr_fp64 : enable
+typedef double real;
+#else
+typedef float real;
+#endif
+
+inline ulong read_word_pair(__global uint* words, int index)
+{
+    return ((ulong)words[index * 2 + 1] << 32) | (ulong)words[index * 2];
+}
+
+inline void write_word_pair(__global uint* words, int index, ulong value)
+{
+    words[index * 2] = (uint)(value & 0xFFFFFFFFUL);
+    words[index * 2 + 1] = (uint)(value >> 32);
+}
+
+kernel
+void scan_blocks(__global uint* src_histogram, __global uint* dst_cumulative_histogram, __global uint* block_sums, int number_of_bins, int block_size)
+{
+    const int block = get_global_id(0);
+    const int start = block * block_size;
+    const int end = min(start + block_size, number_of_bins);
+
+    ulong sum = 0;
+    for (int i = start; i < end; i++) {
+        sum += src_histogram[i];
+        write_word_pair(dst_cumulative_histogram, i, sum);
+    }
+    write_word_pair(block_sums, block, sum);
+}
+
+kernel
+void add_block_offsets(__global uint* dst_cumulative_histogram, __global uint* block_sums, int block_size)
+{
+    const int i = get_global_id(0);
+    const int block = i / block_size;
+    if (block == 0) {
+        return;
+    }
+
+    ulong offset = 0;
+    for (int b = 0; b < block; b++) {
+        offset += read_word_pair(block_sums, b);
+    }
+    write_word_pair(dst_cumulative_histogram, i, read_word_pair(dst_cumulative_histogram, i) + offset);
+}
+
+kernel
+void percentiles(__global uint* src_cumulative_histogram, __global float* quantiles, __global float* min_max, __global float* dst_values, int number_of_bins)
+{
+    const int q = get_global_id(0);
+
+    const ulong total = read_word_pair(src_cumulative_histogram, number_of_bins - 1);
+    const float minimum = min_max[0];
+    const float maximum = min_max[1];
+    if (total == 0) {
+        dst_values[q] = minimum;
+        return;
+    }
+    const real target = clamp((real)quantiles[q], (real)0, (real)1) * (real)total;
+
+    // first bin whose cumulative count reaches the target
+    int low = 0;
+    int high = number_of_bins - 1;
+    while (low < high) {
+        int middle = (low + high) / 2;
+        if ((real)read_word_pair(src_cumulative_histogram, middle) < target) {
+            low = middle + 1;
+        } else {
+            high = middle;
+        }
+    }
+
+    const ulong before = low > 0 ? read_word_pair(src_cumulative_histogram, low - 1) : 0;
+    const ulong count = read_word_pair(src_cumulative_histogram, low) - before;
+    const real fraction = count > 0 ? clamp((target - (real)before) / (real)count, (real)0, (real)1) : (real)0;
+
+    dst_values[q] = minimum + (float)(((real)low + fraction) / (real)number_of_bins) * (maximum - minimum);
+}
@@ -0,0 +1,21 @@
+// Sums up partial histograms as determined by the histogram kernels. partial_histograms is a uint buffer of size
+// width x height x number_of_partial_histograms (or more); dst_histogram has size width x height, e.g. bins x 1 or
+// bins x frames. One work item per entry of dst_histogram sums up its column in 64-bit integers, so that counts
+// stay exact before conversion to the type of dst_histogram.
+//
+// The partial histograms are zeroed while reading them. Thus, buffers which are zero-initialized once can be used
+// for the next histogram without initializing them again.
+
+kernel
+void reduce_partial_histograms(__global uint* partial_histograms, DTYPE_IMAGE_OUT_3D dst_histogram, int number_of_partial_histograms)
+{
+    const int size = GET_IMAGE_WIDTH(dst_histogram) * GET_IMAGE_HEIGHT(dst_histogram);
+    const int i = get_global_id(0) + get_global_id(1) * GET_IMAGE_WIDTH(dst_histogram);
+
+    ulong sum = 0;
+    for (int p = 0; p < number_of_partial_histograms; p++) {
+        sum += partial_histograms[p * size + i];
+        partial_histograms[p * size + i] = 0;
+    }
+    dst_histogram[i] = (DTYPE_OUT)sum;
+}
@@ -0,0 +1,20 @@
+// Sums up partial histograms into exact 64-bit counts. partial_histograms is a uint buffer of size
+// number_of_entries x number_of_partial_histograms (or more), e.g. bins x 1 x partials. Every count of the result is
+// written as a pair of uint words (low, high) into dst_histogram_words, which thus has twice the size of one partial
+// histogram. This does not depend on 64-bit image types being supported.
+//
+// Like reduce_partial_histograms, the partial histograms are zeroed while reading them.
+
+kernel
+void reduce_partial_histograms_to_words(__global uint* partial_histograms, __global uint* dst_histogram_words, int number_of_entries, int number_of_partial_histograms)
+{
+    const int i = get_global_id(0);
+
+    ulong sum = 0;
+    for (int p = 0; p < number_of_partial_histograms; p++) {
+        sum += partial_histograms[p * number_of_entries + i];
+        partial_histograms[p * number_of_entries + i] = 0;
+    }
+    dst_histogram_words[i * 2] = (uint)(sum & 0xFFFFFFFFUL);
+    dst_histogram_words[i * 2 + 1] = (uint)(sum >> 32);
+}
@@ -0,0 +1,26 @@
+// Updates running histograms by one frame. All buffers are raw buffers of number_of_bins entries (or a multiple);
+// kernels are started with one work item per bin, so that the cost does not depend on the number of frames
+// accumulated.
+//
+// * slide_window replaces the histogram in ring buffer slot `slot` of window_histograms (number_of_bins x
+//   window length) by frame_histogram and updates sum_histogram by the difference. Counts stay exact uints.
+// * decay_histogram multiplies decayed_histogram with decay_factor before adding frame_histogram.
+
+kernel
+void slide_window(__global uint* frame_histogram, __global uint* window_histograms, __global uint* sum_histogram, int slot, int number_of_bins)
+{
+    const int i = get_global_id(0);
+
+    const uint entering = frame_histogram[i];
+    const uint leaving = window_histograms[slot * number_of_bins + i];
+    window_histograms[slot * number_of_bins + i] = entering;
+    sum_histogram[i] = sum_histogram[i] - leaving + entering;
+}
+
+kernel
+void decay_histogram(__global uint* frame_histogram, __global float* decayed_histogram, float decay_factor)
+{
+    const int i = get_global_id(0);
+
+    decayed_histogram[i] = decayed_histogram[i] * decay_factor + (float)frame_histogram[i];
+}
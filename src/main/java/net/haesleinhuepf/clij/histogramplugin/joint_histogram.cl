@@ -0,0 +1,107 @@
+// Joint (two-dimensional) histogram of two images of the same size, e.g. of two channels for colocalization
+// analysis. Pixel (x, y, z) is counted in bin (bin of src, bin of src1) of a number_of_bins_a x number_of_bins_b
+// matrix.
+//
+// * mask is an optional uchar buffer of the same size as src; the masked kernels skip pixels where it is 0.
+// * dst_histogram is a zero-initialized uint buffer of size number_of_bins_a x number_of_bins_b x
+//   number_of_partial_histograms which is reduced by histogram_reduce.cl afterwards.
+// * The kernels in this file build the joint histogram per work-group in local memory and flush it into one of the
+//   partial histograms using atomics. They can only be built if number_of_bins_a x number_of_bins_b counters fit
+//   into local memory; otherwise, joint_histogram_global_atomics.cl is used.
+
+#pragma OPENCL EXTENSION cl_khr_local_int32_base_atomics : enable
+
+const sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+// same as in histogram.cl
+inline uint bin_index(float clr, float minimum, float range, int number_of_bins)
+{
+    uint indx_x = convert_uint_sat( (clr - minimum) * (float)(number_of_bins) / range );
+    return min(indx_x, (uint)(number_of_bins - 1));
+}
+
+inline void local_joint_histogram(float clr_a, float clr_b, bool counted, __global uint* dst_histogram, local uint* local_histogram, float minimum_a, float maximum_a, float minimum_b, float maximum_b, int local_index, int local_size, int group_index, int number_of_partial_histograms)
+{
+    const int number_of_bins_a = GET_IMAGE_WIDTH(dst_histogram);
+    const int size = number_of_bins_a * GET_IMAGE_HEIGHT(dst_histogram);
+
+    for (int i = local_index; i < size; i += local_size) {
+        local_histogram[i] = 0;
+    }
+    barrier(CLK_LOCAL_MEM_FENCE);
+
+    if (counted) {
+        uint indx_a = bin_index(clr_a, minimum_a, maximum_a - minimum_a, number_of_bins_a);
+        uint indx_b = bin_index(clr_b, minimum_b, maximum_b - minimum_b, GET_IMAGE_HEIGHT(dst_histogram));
+        atomic_inc(&local_histogram[indx_b * number_of_bins_a + indx_a]);
+    }
+    barrier(CLK_LOCAL_MEM_FENCE);
+
+    const int offset = (group_index % number_of_partial_histograms) * size;
+    for (int i = local_index; i < size; i += local_size) {
+        uint count = local_histogram[i];
+        if (count > 0) {
+            atomic_add(&dst_histogram[offset + i], count);
+        }
+    }
+}
+
+inline void joint_histogram_2d(DTYPE_IMAGE_IN_2D src, DTYPE_IMAGE_IN_2D src1, __global uchar* mask, __global uint* dst_histogram, local uint* local_histogram, float minimum_a, float maximum_a, float minimum_b, float maximum_b, int number_of_partial_histograms)
+{
+    const int x = get_global_id(0);
+    const int y = get_global_id(1);
+    const int local_index = get_local_id(0) + get_local_id(1) * get_local_size(0);
+    const int local_size = get_local_size(0) * get_local_size(1);
+    const int group_index = get_group_id(0) + get_group_id(1) * get_num_groups(0);
+
+    // all work items take part in the barriers, also the masked ones
+    const bool counted = mask == 0 || mask[x + y * GET_IMAGE_WIDTH(src)] != 0;
+    float clr_a = READ_IMAGE_2D(src, sampler, (int2)(x, y)).x;
+    float clr_b = READ_IMAGE_2D(src1, sampler, (int2)(x, y)).x;
+
+    local_joint_histogram(clr_a, clr_b, counted, dst_histogram, local_histogram, minimum_a, maximum_a, minimum_b, maximum_b, local_index, local_size, group_index, number_of_partial_histograms);
+}
+
+inline void joint_histogram_3d(DTYPE_IMAGE_IN_3D src, DTYPE_IMAGE_IN_3D src1, __global uchar* mask, __global uint* dst_histogram, local uint* local_histogram, float minimum_a, float maximum_a, float minimum_b, float maximum_b, int number_of_partial_histograms)
+{
+    const int x = get_global_id(0);
+    const int y = get_global_id(1);
+    const int z = get_global_id(2);
+    const int local_index = get_local_id(0) + get_local_id(1) * get_local_size(0) + get_local_id(2) * get_local_size(0) * get_local_size(1);
+    const int local_size = get_local_size(0) * get_local_size(1) * get_local_size(2);
+    const int group_index = get_group_id(0) + get_group_id(1) * get_num_groups(0) + get_group_id(2) * get_num_groups(0) * get_num_groups(1);
+
+    const bool counted = mask == 0 || mask[x + (y + z * GET_IMAGE_HEIGHT(src)) * GET_IMAGE_WIDTH(src)] != 0;
+    float clr_a = READ_IMAGE_3D(src, sampler, (int4)(x, y, z, 0)).x;
+    float clr_b = READ_IMAGE_3D(src1, sampler, (int4)(x, y, z, 0)).x;
+
+    local_joint_histogram(clr_a, clr_b, counted, dst_histogram, local_histogram, minimum_a, maximum_a, minimum_b, maximum_b, local_index, local_size, group_index, number_of_partial_histograms);
+}
+
+kernel
+void joint_histogram_local_2d(DTYPE_IMAGE_IN_2D src, DTYPE_IMAGE_IN_2D src1, __global uint* dst_histogram, float minimum_a, float maximum_a, float minimum_b, float maximum_b, int number_of_partial_histograms)
+{
+    local uint local_histogram[GET_IMAGE_WIDTH(dst_histogram) * GET_IMAGE_HEIGHT(dst_histogram)];
+    joint_histogram_2d(src, src1, 0, dst_histogram, local_histogram, minimum_a, maximum_a, minimum_b, maximum_b, number_of_partial_histograms);
+}
+
+kernel
+void joint_histogram_local_3d(DTYPE_IMAGE_IN_3D src, DTYPE_IMAGE_IN_3D src1, __global uint* dst_histogram, float minimum_a, float maximum_a, float minimum_b, float maximum_b, int number_of_partial_histograms)
+{
+    local uint local_histogram[GET_IMAGE_WIDTH(dst_histogram) * GET_IMAGE_HEIGHT(dst_histogram)];
+    joint_histogram_3d(src, src1, 0, dst_histogram, local_histogram, minimum_a, maximum_a, minimum_b, maximum_b, number_of_partial_histograms);
+}
+
+kernel
+void joint_histogram_local_masked_2d(DTYPE_IMAGE_IN_2D src, DTYPE_IMAGE_IN_2D src1, __global uchar* mask, __global uint* dst_histogram, float minimum_a, float maximum_a, float minimum_b, float maximum_b, int number_of_partial_histograms)
+{
+    local uint local_histogram[GET_IMAGE_WIDTH(dst_histogram) * GET_IMAGE_HEIGHT(dst_histogram)];
+    joint_histogram_2d(src, src1, mask, dst_histogram, local_histogram, minimum_a, maximum_a, minimum_b, maximum_b, number_of_partial_histograms);
+}
+
+kernel
+void joint_histogram_local_masked_3d(DTYPE_IMAGE_IN_3D src, DTYPE_IMAGE_IN_3D src1, __global uchar* mask, __global uint* dst_histogram, float minimum_a, float maximum_a, float minimum_b, float maximum_b, int number_of_partial_histograms)
+{
+    local uint local_histogram[GET_IMAGE_WIDTH(dst_histogram) * GET_IMAGE_HEIGHT(dst_histogram)];
+    joint_histogram_3d(src, src1, mask, dst_histogram, local_histogram, minimum_a, maximum_a, minimum_b, maximum_b, number_of_partial_histograms);
+}
@@ -0,0 +1,79 @@
+// Joint histograms whose number_of_bins_a x number_of_bins_b counters don't fit into local memory. Same parameters
+// and result as joint_histogram.cl, but every work item increments its bin in global memory. Contention is reduced
+// by distributing work-groups over number_of_partial_histograms partial histograms.
+
+const sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+// same as in histogram.cl
+inline uint bin_index(float clr, float minimum, float range, int number_of_bins)
+{
+    uint indx_x = convert_uint_sat( (clr - minimum) * (float)(number_of_bins) / range );
+    return min(indx_x, (uint)(number_of_bins - 1));
+}
+
+inline void increment_joint_bin(float clr_a, float clr_b, __global uint* dst_histogram, float minimum_a, float maximum_a, float minimum_b, float maximum_b, int group_index, int number_of_partial_histograms)
+{
+    const int number_of_bins_a = GET_IMAGE_WIDTH(dst_histogram);
+    const int size = number_of_bins_a * GET_IMAGE_HEIGHT(dst_histogram);
+
+    uint indx_a = bin_index(clr_a, minimum_a, maximum_a - minimum_a, number_of_bins_a);
+    uint indx_b = bin_index(clr_b, minimum_b, maximum_b - minimum_b, GET_IMAGE_HEIGHT(dst_histogram));
+
+    const int offset = (group_index % number_of_partial_histograms) * size;
+    atomic_inc(&dst_histogram[offset + indx_b * number_of_bins_a + indx_a]);
+}
+
+inline void joint_histogram_2d(DTYPE_IMAGE_IN_2D src, DTYPE_IMAGE_IN_2D src1, __global uchar* mask, __global uint* dst_histogram, float minimum_a, float maximum_a, float minimum_b, float maximum_b, int number_of_partial_histograms)
+{
+    const int x = get_global_id(0);
+    const int y = get_global_id(1);
+    const int group_index = get_group_id(0) + get_group_id(1) * get_num_groups(0);
+
+    if (mask != 0 && mask[x + y * GET_IMAGE_WIDTH(src)] == 0) {
+        return;
+    }
+    float clr_a = READ_IMAGE_2D(src, sampler, (int2)(x, y)).x;
+    float clr_b = READ_IMAGE_2D(src1, sampler, (int2)(x, y)).x;
+
+    increment_joint_bin(clr_a, clr_b, dst_histogram, minimum_a, maximum_a, minimum_b, maximum_b, group_index, number_of_partial_histograms);
+}
+
+inline void joint_histogram_3d(DTYPE_IMAGE_IN_3D src, DTYPE_IMAGE_IN_3D src1, __global uchar* mask, __global uint* dst_histogram, float minimum_a, float maximum_a, float minimum_b, float maximum_b, int number_of_partial_histograms)
+{
+    const int x = get_global_id(0);
+    const int y = get_global_id(1);
+    const int z = get_global_id(2);
+    const int group_index = get_group_id(0) + get_group_id(1) * get_num_groups(0) + get_group_id(2) * get_num_groups(0) * get_num_groups(1);
+
+    if (mask != 0 && mask[x + (y + z * GET_IMAGE_HEIGHT(src)) * GET_IMAGE_WIDTH(src)] == 0) {
+        return;
+    }
+    float clr_a = READ_IMAGE_3D(src, sampler, (int4)(x, y, z, 0)).x;
+    float clr_b = READ_IMAGE_3D(src1, sampler, (int4)(x, y, z, 0)).x;
+
+    increment_joint_bin(clr_a, clr_b, dst_histogram, minimum_a, maximum_a, minimum_b, maximum_b, group_index, number_of_partial_histograms);
+}
+
+kernel
+void joint_histogram_global_2d(DTYPE_IMAGE_IN_2D src, DTYPE_IMAGE_IN_2D src1, __global uint* dst_histogram, float minimum_a, float maximum_a, float minimum_b, float maximum_b, int number_of_partial_histograms)
+{
+    joint_histogram_2d(src, src1, 0, dst_histogram, minimum_a, maximum_a, minimum_b, maximum_b, number_of_partial_histograms);
+}
+
+kernel
+void joint_histogram_global_3d(DTYPE_IMAGE_IN_3D src, DTYPE_IMAGE_IN_3D src1, __global uint* dst_histogram, float minimum_a, float maximum_a, float minimum_b, float maximum_b, int number_of_partial_histograms)
+{
+    joint_histogram_3d(src, src1, 0, dst_histogram, minimum_a, maximum_a, minimum_b, maximum_b, number_of_partial_histograms);
+}
+
+kernel
+void joint_histogram_global_masked_2d(DTYPE_IMAGE_IN_2D src, DTYPE_IMAGE_IN_2D src1, __global uchar* mask, __global uint* dst_histogram, float minimum_a, float maximum_a, float minimum_b, float maximum_b, int number_of_partial_histograms)
+{
+    joint_histogram_2d(src, src1, mask, dst_histogram, minimum_a, maximum_a, minimum_b, maximum_b, number_of_partial_histograms);
+}
+
+kernel
+void joint_histogram_global_masked_3d(DTYPE_IMAGE_IN_3D src, DTYPE_IMAGE_IN_3D src1, __global uchar* mask, __global uint* dst_histogram, float minimum_a, float maximum_a, float minimum_b, float maximum_b, int number_of_partial_histograms)
+{
+    joint_histogram_3d(src, src1, mask, dst_histogram, minimum_a, maximum_a, minimum_b, maximum_b, number_of_partial_histograms);
+}
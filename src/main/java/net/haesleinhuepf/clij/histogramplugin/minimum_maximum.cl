@@ -0,0 +1,95 @@
+// Determines minimum and maximum intensity of an image in one pass. One work item per row writes minimum and
+// maximum of its row (or its row in all slices) into dst_min_max, which is a float buffer of size 2 x height.
+// The partial results are reduced either on the host or using minimum_maximum_reduce.cl.
+
+const sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+kernel
+void minimum_maximum_2d(DTYPE_IMAGE_IN_2D src, __global float* dst_min_max)
+{
+    int     image_width = GET_IMAGE_WIDTH(src);
+    int     y = get_global_id(0);
+
+    float minimum = READ_IMAGE_2D(src, sampler, (int2)(0, y)).x;
+    float maximum = minimum;
+    for (int x = 1; x < image_width; x++) {
+        float clr = READ_IMAGE_2D(src, sampler, (int2)(x, y)).x;
+        minimum = min(minimum, clr);
+        maximum = max(maximum, clr);
+    }
+
+    dst_min_max[y * 2] = minimum;
+    dst_min_max[y * 2 + 1] = maximum;
+}
+
+kernel
+void minimum_maximum_3d(DTYPE_IMAGE_IN_3D src, __global float* dst_min_max)
+{
+    int     image_width = GET_IMAGE_WIDTH(src);
+    int     image_depth = GET_IMAGE_DEPTH(src);
+    int     y = get_global_id(0);
+
+    float minimum = READ_IMAGE_3D(src, sampler, (int4)(0, y, 0, 0)).x;
+    float maximum = minimum;
+    for (int z = 0; z < image_depth; z++) {
+        for (int x = 0; x < image_width; x++) {
+            float clr = READ_IMAGE_3D(src, sampler, (int4)(x, y, z, 0)).x;
+            minimum = min(minimum, clr);
+            maximum = max(maximum, clr);
+        }
+    }
+
+    dst_min_max[y * 2] = minimum;
+    dst_min_max[y * 2 + 1] = maximum;
+}
+
+// Like minimum_maximum_3d but separately for every frame of slices_per_frame slices. The kernel is started with
+// one work item per row and frame and writes to dst_min_max of size 2 x height x number_of_frames.
+kernel
+void minimum_maximum_per_frame_3d(DTYPE_IMAGE_IN_3D src, __global float* dst_min_max, int slices_per_frame)
+{
+    int     image_width = GET_IMAGE_WIDTH(src);
+    int     image_height = GET_IMAGE_HEIGHT(src);
+    int     y = get_global_id(0);
+    int     frame = get_global_id(1);
+
+    float minimum = READ_IMAGE_3D(src, sampler, (int4)(0, y, frame * slices_per_frame, 0)).x;
+    float maximum = minimum;
+    for (int z = frame * slices_per_frame; z < (frame + 1) * slices_per_frame; z++) {
+        for (int x = 0; x < image_width; x++) {
+            float clr = READ_IMAGE_3D(src, sampler, (int4)(x, y, z, 0)).x;
+            minimum = min(minimum, clr);
+            maximum = max(maximum, clr);
+        }
+    }
+
+    dst_min_max[(frame * image_height + y) * 2] = minimum;
+    dst_min_max[(frame * image_height + y) * 2 + 1] = maximum;
+}
+
+// Like minimum_maximum_per_frame_3d but for channels stored along Z as in histogram_per_channel.cl. The kernel is
+// started with one work item per row and channel and writes to dst_min_max of size 2 x height x number_of_channels.
+kernel
+void minimum_maximum_per_channel_3d(DTYPE_IMAGE_IN_3D src, __global float* dst_min_max, int slices_per_channel, int number_of_channels)
+{
+    int     image_width = GET_IMAGE_WIDTH(src);
+    int     image_height = GET_IMAGE_HEIGHT(src);
+    int     y = get_global_id(0);
+    int     channel = get_global_id(1);
+
+    float minimum = FLT_MAX;
+    float maximum = -FLT_MAX;
+    for (int z = 0; z < GET_IMAGE_DEPTH(src); z++) {
+        if ((z / slices_per_channel) % number_of_channels != channel) {
+            continue;
+        }
+        for (int x = 0; x < image_width; x++) {
+            float clr = READ_IMAGE_3D(src, sampler, (int4)(x, y, z, 0)).x;
+            minimum = min(minimum, clr);
+            maximum = max(maximum, clr);
+        }
+    }
+
+    dst_min_max[(channel * image_height + y) * 2] = minimum;
+    dst_min_max[(channel * image_height + y) * 2 + 1] = maximum;
+}
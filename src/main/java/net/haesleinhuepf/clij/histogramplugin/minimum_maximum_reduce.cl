@@ -0,0 +1,24 @@
+// Reduces partial minima and maxima as determined by minimum_maximum.cl to a float buffer of size 2 containing
+// minimum and maximum. It runs in a single work item and thus keeps the result on the GPU without host
+// synchronisation.
+
+kernel
+void minimum_maximum_reduce(__global float* src_partial_min_max, __global float* dst_min_max, int number_of_partial_min_max)
+{
+    float minimum = src_partial_min_max[0];
+    float maximum = src_partial_min_max[1];
+    for (int i = 1; i < number_of_partial_min_max; i++) {
+        minimum = min(minimum, src_partial_min_max[i * 2]);
+        maximum = max(maximum, src_partial_min_max[i * 2 + 1]);
+    }
+    dst_min_max[0] = minimum;
+    dst_min_max[1] = maximum;
+}
+
+// Writes a given range to dst_min_max, e.g. 0 and 255 for 8-bit images
+kernel
+void set_minimum_maximum(__global float* dst_min_max, float minimum, float maximum)
+{
+    dst_min_max[0] = minimum;
+    dst_min_max[1] = maximum;
+}
@@ -0,0 +1,138 @@
+// Thresholds every frame of a stack with its own threshold. Frames are consecutive blocks of slices_per_frame
+// slices; thresholds is a float buffer containing one threshold per frame. As in CLIJ's threshold, pixels with
+// values below the threshold are set to 0, all others to 1.
+
+const sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+kernel
+void threshold_per_frame_3d(DTYPE_IMAGE_IN_3D src, __global float* thresholds, DTYPE_IMAGE_OUT_3D dst, int slices_per_frame)
+{
+    const int x = get_global_id(0);
+    const int y = get_global_id(1);
+    const int z = get_global_id(2);
+    const int4 pos = (int4)(x, y, z, 0);
+
+    float clr = READ_IMAGE_3D(src, sampler, pos).x;
+    DTYPE_OUT value = 1;
+    if (clr < thresholds[z / slices_per_frame]) {
+        value = 0;
+    }
+    WRITE_IMAGE_3D(dst, pos, value);
+}
+
+// Thresholds an image with the threshold given in thresholds[0], e.g. as determined by threshold_methods.cl
+kernel
+void threshold_from_buffer_2d(DTYPE_IMAGE_IN_2D src, __global float* thresholds, DTYPE_IMAGE_OUT_2D dst)
+{
+    const int x = get_global_id(0);
+    const int y = get_global_id(1);
+    const int2 pos = (int2)(x, y);
+
+    float clr = READ_IMAGE_2D(src, sampler, pos).x;
+    DTYPE_OUT value = 1;
+    if (clr < thresholds[0]) {
+        value = 0;
+    }
+    WRITE_IMAGE_2D(dst, pos, value);
+}
+
+kernel
+void threshold_from_buffer_3d(DTYPE_IMAGE_IN_3D src, __global float* thresholds, DTYPE_IMAGE_OUT_3D dst)
+{
+    const int x = get_global_id(0);
+    const int y = get_global_id(1);
+    const int z = get_global_id(2);
+    const int4 pos = (int4)(x, y, z, 0);
+
+    float clr = READ_IMAGE_3D(src, sampler, pos).x;
+    DTYPE_OUT value = 1;
+    if (clr < thresholds[0]) {
+        value = 0;
+    }
+    WRITE_IMAGE_3D(dst, pos, value);
+}
+
+// Thresholds an image with thresholds determined per tile, e.g. by LocalAutomaticThreshold. thresholds is a float
+// buffer of tiles_x x tiles_y (x tiles_z) entries which belong to the tile centres; thresholds between centres are
+// interpolated linearly in every dimension. Beyond the outermost centres, the threshold of the nearest tile is used.
+// If the image size is no multiple of the tile size, the last tile is partial and its centre is the centre of the
+// pixels it covers.
+inline float tile_centre(int tile, int tile_size, int size)
+{
+    const int start = tile * tile_size;
+    return 0.5f * (float)(start + min(start + tile_size, size));
+}
+
+inline void tile_coordinate(int position, int tile_size, int number_of_tiles, int size, int* tile, float* fraction)
+{
+    const float p = (float)position + 0.5f;
+    *tile = clamp((int)floor(p / (float)tile_size - 0.5f), 0, max(number_of_tiles - 2, 0));
+    if (number_of_tiles < 2) {
+        *fraction = 0;
+        return;
+    }
+    const float centre = tile_centre(*tile, tile_size, size);
+    const float next_centre = tile_centre(*tile + 1, tile_size, size);
+    *fraction = clamp((p - centre) / (next_centre - centre), 0.0f, 1.0f);
+}
+
+kernel
+void threshold_interpolated_2d(DTYPE_IMAGE_IN_2D src, __global float* thresholds, DTYPE_IMAGE_OUT_2D dst, int tile_size_x, int tile_size_y, int tiles_x, int tiles_y)
+{
+    const int x = get_global_id(0);
+    const int y = get_global_id(1);
+    const int2 pos = (int2)(x, y);
+
+    int tx, ty;
+    float fx, fy;
+    tile_coordinate(x, tile_size_x, tiles_x, GET_IMAGE_WIDTH(src), &tx, &fx);
+    tile_coordinate(y, tile_size_y, tiles_y, GET_IMAGE_HEIGHT(src), &ty, &fy);
+    const int tx1 = min(tx + 1, tiles_x - 1);
+    const int ty1 = min(ty + 1, tiles_y - 1);
+
+    float top = mix(thresholds[ty * tiles_x + tx], thresholds[ty * tiles_x + tx1], fx);
+    float bottom = mix(thresholds[ty1 * tiles_x + tx], thresholds[ty1 * tiles_x + tx1], fx);
+    float threshold = mix(top, bottom, fy);
+
+    float clr = READ_IMAGE_2D(src, sampler, pos).x;
+    DTYPE_OUT value = 1;
+    if (clr < threshold) {
+        value = 0;
+    }
+    WRITE_IMAGE_2D(dst, pos, value);
+}
+
+kernel
+void threshold_interpolated_3d(DTYPE_IMAGE_IN_3D src, __global float* thresholds, DTYPE_IMAGE_OUT_3D dst, int tile_size_x, int tile_size_y, int tile_size_z, int tiles_x, int tiles_y, int tiles_z)
+{
+    const int x = get_global_id(0);
+    const int y = get_global_id(1);
+    const int z = get_global_id(2);
+    const int4 pos = (int4)(x, y, z, 0);
+
+    int tx, ty, tz;
+    float fx, fy, fz;
+    tile_coordinate(x, tile_size_x, tiles_x, GET_IMAGE_WIDTH(src), &tx, &fx);
+    tile_coordinate(y, tile_size_y, tiles_y, GET_IMAGE_HEIGHT(src), &ty, &fy);
+    tile_coordinate(z, tile_size_z, tiles_z, GET_IMAGE_DEPTH(src), &tz, &fz);
+    const int tx1 = min(tx + 1, tiles_x - 1);
+    const int ty1 = min(ty + 1, tiles_y - 1);
+    const int tz1 = min(tz + 1, tiles_z - 1);
+
+    const int front = tz * tiles_x * tiles_y;
+    const int back = tz1 * tiles_x * tiles_y;
+    float front_threshold = mix(
+            mix(thresholds[front + ty * tiles_x + tx], thresholds[front + ty * tiles_x + tx1], fx),
+            mix(thresholds[front + ty1 * tiles_x + tx], thresholds[front + ty1 * tiles_x + tx1], fx), fy);
+    float back_threshold = mix(
+            mix(thresholds[back + ty * tiles_x + tx], thresholds[back + ty * tiles_x + tx1], fx),
+            mix(thresholds[back + ty1 * tiles_x + tx], thresholds[back + ty1 * tiles_x + tx1], fx), fy);
+    float threshold = mix(front_threshold, back_threshold, fz);
+
+    float clr = READ_IMAGE_3D(src, sampler, pos).x;
+    DTYPE_OUT value = 1;
+    if (clr < threshold) {
+        value = 0;
+    }
+    WRITE_IMAGE_3D(dst, pos, value);
+}
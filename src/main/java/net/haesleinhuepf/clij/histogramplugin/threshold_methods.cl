@@ -0,0 +1,189 @@
+// Ports of threshold methods of ImageJ's AutoThresholder
+// https://github.com/imagej/ImageJA/blob/master/src/main/java/ij/process/AutoThresholder.java
+//
+// The kernels run in a single work item. They read the uint histogram src_histogram, determine the threshold bin
+// like AutoThresholder.getThreshold does and write the corresponding grey value to dst_threshold[0] using the
+// minimum and maximum given in min_max. Thus, thresholds can be applied without reading the histogram back.
+// If src_histogram contains several histograms as rows, e.g. one per tile, every work item thresholds row
+// get_global_id(0) and writes to dst_threshold[get_global_id(0)]; all rows share the range in min_max.
+
+// results must be identical to ImageJ which computes in double precision without fused multiply-add
+#pragma OPENCL FP_CONTRACT OFF
+#ifdef cl_khr_fp64
+#pragma OPENCL EXTENSION cl_khr_fp64 : enable
+typedef double real;
+#else
+typedef float real;
+#endif
+
+// ImageJ thresholds int histograms; counts above 2^31 - 1 overflow there as well
+inline int count(__global uint* histogram, int index)
+{
+    return (int)histogram[index];
+}
+
+// math source https://github.com/imagej/ImageJA/blob/master/src/main/java/ij/process/ImageProcessor.java#L692
+// generalized from 256 to any number of bins; same as AutomaticThreshold.determineThreshold
+inline void write_threshold(__global float* min_max, __global float* dst_threshold, int threshold, int number_of_bins)
+{
+    if (threshold == -1) {
+        threshold = 0;
+    }
+    float minimum = min_max[0];
+    float maximum = min_max[1];
+    dst_threshold[0] = minimum + (((float)threshold + 1.0f)/((float)number_of_bins - 1.0f))*(maximum-minimum);
+}
+
+// AutoThresholder.IJDefault: the modified IsoData method used by ImageJ's "Threshold" dialog in "Default" mode.
+// Partial sums are accumulated while moving the threshold instead of being recomputed; as all summands are integers,
+// the result is identical.
+kernel
+void threshold_default(__global uint* src_histogram, __global float* min_max, __global float* dst_threshold)
+{
+    const int number_of_bins = GET_IMAGE_WIDTH(src_histogram);
+    src_histogram += get_global_id(0) * number_of_bins;
+    dst_threshold += get_global_id(0);
+    const int max_value = number_of_bins - 1;
+
+    // first and last bin are ignored
+    int min_index = 0;
+    while ((min_index == 0 || min_index == max_value || count(src_histogram, min_index) == 0) && (min_index < max_value)) {
+        min_index++;
+    }
+    int max_index = max_value;
+    while ((max_index == 0 || max_index == max_value || count(src_histogram, max_index) == 0) && (max_index > 0)) {
+        max_index--;
+    }
+    if (min_index >= max_index) {
+        write_threshold(min_max, dst_threshold, number_of_bins / 2, number_of_bins);
+        return;
+    }
+
+    real sum_all = 0;
+    real count_all = 0;
+    for (int i = min_index; i <= max_index; i++) {
+        sum_all += (real)i * count(src_histogram, i);
+        count_all += count(src_histogram, i);
+    }
+
+    int moving_index = min_index;
+    real sum1 = 0;
+    real sum2 = 0;
+    real result;
+    do {
+        sum1 += (real)moving_index * count(src_histogram, moving_index);
+        sum2 += count(src_histogram, moving_index);
+        real sum3 = sum_all - sum1;
+        real sum4 = count_all - sum2;
+        result = (sum1/sum2 + sum3/sum4)/2.0;
+        moving_index++;
+    } while ((moving_index + 1) <= result && moving_index < max_index - 1);
+
+    write_threshold(min_max, dst_threshold, (int)floor(result + 0.5), number_of_bins);
+}
+
+// AutoThresholder.IsoData
+kernel
+void threshold_isodata(__global uint* src_histogram, __global float* min_max, __global float* dst_threshold)
+{
+    const int number_of_bins = GET_IMAGE_WIDTH(src_histogram);
+    src_histogram += get_global_id(0) * number_of_bins;
+    dst_threshold += get_global_id(0);
+
+    int g = 0;
+    for (int i = 1; i < number_of_bins; i++) {
+        if (count(src_histogram, i) > 0) {
+            g = i + 1;
+            break;
+        }
+    }
+    while (true) {
+        // ImageJ computes these sums in int; unsigned arithmetic wraps around the same way
+        uint l = 0;
+        uint totl = 0;
+        for (int i = 0; i < g + 1; i++) {
+            totl += count(src_histogram, i);
+            l += count(src_histogram, i) * i;
+        }
+        uint h = 0;
+        uint toth = 0;
+        for (int i = g + 1; i < number_of_bins; i++) {
+            toth += count(src_histogram, i);
+            h += count(src_histogram, i) * i;
+        }
+        if ((int)totl > 0 && (int)toth > 0) {
+            int average_low = (int)l / (int)totl;
+            int average_high = (int)h / (int)toth;
+            if (g == (int)floor((average_low + average_high) / 2.0 + 0.5)) {
+                break;
+            }
+        }
+        g++;
+        if (g > number_of_bins - 2) {
+            g = -1;
+            break;
+        }
+    }
+    write_threshold(min_max, dst_threshold, g, number_of_bins);
+}
+
+// AutoThresholder.Mean
+kernel
+void threshold_mean(__global uint* src_histogram, __global float* min_max, __global float* dst_threshold)
+{
+    const int number_of_bins = GET_IMAGE_WIDTH(src_histogram);
+    src_histogram += get_global_id(0) * number_of_bins;
+    dst_threshold += get_global_id(0);
+
+    real tot = 0;
+    real sum = 0;
+    for (int i = 0; i < number_of_bins; i++) {
+        tot += count(src_histogram, i);
+        sum += ((real)i * count(src_histogram, i));
+    }
+    write_threshold(min_max, dst_threshold, (int)floor(sum/tot), number_of_bins);
+}
+
+// AutoThresholder.Otsu
+kernel
+void threshold_otsu(__global uint* src_histogram, __global float* min_max, __global float* dst_threshold)
+{
+    const int number_of_bins = GET_IMAGE_WIDTH(src_histogram);
+    src_histogram += get_global_id(0) * number_of_bins;
+    dst_threshold += get_global_id(0);
+
+    int num_pixels = 0;
+    for (int ih = 0; ih < number_of_bins; ih++) {
+        num_pixels = num_pixels + count(src_histogram, ih);
+    }
+    real term = 1.0 / (real)num_pixels;
+
+    // mean gray-level of the whole image
+    real total_mean = 0.0;
+    for (int ih = 1; ih < number_of_bins; ih++) {
+        total_mean = total_mean + ih * (term * count(src_histogram, ih));
+    }
+
+    // cumulative normalized histogram and mean gray-level are accumulated while searching the maximum
+    // between-class variance
+    int threshold = INT_MIN;
+    real max_bcv = 0.0;
+    real cnh = 0.0;
+    real mean = 0.0;
+    for (int ih = 0; ih < number_of_bins; ih++) {
+        real histo = term * count(src_histogram, ih);
+        cnh = ih == 0 ? histo : cnh + histo;
+        if (ih > 0) {
+            mean = mean + ih * histo;
+        }
+
+        real bcv = total_mean * cnh - mean;
+        bcv *= bcv / (cnh * (1.0 - cnh));
+
+        if (max_bcv < bcv) {
+            max_bcv = bcv;
+            threshold = ih;
+        }
+    }
+    write_threshold(min_max, dst_threshold, threshold, number_of_bins);
+}
@@ -4,13 +4,16 @@ import ij.IJ;
 import ij.ImageJ;
 import ij.ImagePlus;
 import ij.Prefs;
+import ij.gui.NewImage;
 import ij.gui.WaitForUserDialog;
 import ij.process.AutoThresholder;
 import ij.process.ImageProcessor;
 import net.haesleinhuepf.clij.CLIJ;
 import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -65,6 +68,68 @@ public class AutomaticThresholdTest {
 
     }
 
+    @Test
+    public void testThresholdPerFrame() {
+        CLIJ clij = CLIJ.getInstance();
+
+        ImagePlus stack = NewImage.createShortImage("stack", 128, 64, 5, NewImage.FILL_RAMP);
+        for (int z = 0; z < stack.getNSlices(); z++) {
+            stack.setSlice(z + 1);
+            stack.getProcessor().multiply(z + 1);
+        }
+
+        ClearCLBuffer input = clij.push(stack);
+        ClearCLBuffer thresholded = clij.create(input);
+        AutomaticThreshold.applyAutomaticThresholdPerFrame(clij, input, thresholded, 256, "Otsu", 1);
+        ImagePlus perFrameResult = clij.pull(thresholded);
+        input.close();
+        thresholded.close();
+
+        for (int z = 0; z < stack.getNSlices(); z++) {
+            stack.setSlice(z + 1);
+            ClearCLBuffer slice = clij.push(new ImagePlus("slice", stack.getProcessor()));
+            ClearCLBuffer sliceThresholded = clij.create(slice);
+            AutomaticThreshold.applyAutomaticThreshold(clij, slice, sliceThresholded, 256, "Otsu");
+            ImagePlus reference = clij.pull(sliceThresholded);
+            slice.close();
+            sliceThresholded.close();
+
+            perFrameResult.setSlice(z + 1);
+            assertTrue(compareImages(reference, new ImagePlus("frame", perFrameResult.getProcessor()), 0));
+        }
+    }
+
+    @Test
+    public void testThresholdOnDeviceEqualsThresholdOnHost() {
+        CLIJ clij = CLIJ.getInstance();
+
+        ImagePlus imp = NewImage.createShortImage("noise", 256, 128, 1, NewImage.FILL_NOISE);
+        ClearCLBuffer input = clij.push(imp);
+        ClearCLBuffer histogram = clij.createCLBuffer(new long[]{256, 1, 1}, NativeTypeEnum.UnsignedInt);
+        ClearCLBuffer minMax = clij.createCLBuffer(new long[]{2, 1, 1}, NativeTypeEnum.Float);
+        ClearCLBuffer threshold = clij.createCLBuffer(new long[]{1, 1, 1}, NativeTypeEnum.Float);
+
+        float[] minMaxValues = Histogram.minimumMaximum(clij, input);
+        Histogram.fillMinimumMaximum(clij, minMax, minMaxValues[0], minMaxValues[1]);
+        Histogram.fillHistogram(clij, input, histogram, minMaxValues[0], minMaxValues[1]);
+
+        int[] intHistogram = HistogramReadback.readInts(histogram);
+
+        for (String method : AutomaticThreshold.DEVICE_THRESHOLD_METHODS) {
+            AutomaticThreshold.fillThreshold(clij, histogram, minMax, threshold, method);
+            float deviceThreshold = clij.convert(threshold, ImagePlus.class).getProcessor().getf(0);
+            float hostThreshold = AutomaticThreshold.determineThreshold(intHistogram, method, minMaxValues[0], minMaxValues[1]);
+
+            System.out.println(method + ": " + deviceThreshold + " " + hostThreshold);
+            assertEquals(hostThreshold, deviceThreshold, 0.001);
+        }
+
+        input.close();
+        histogram.close();
+        minMax.close();
+        threshold.close();
+    }
+
     public static boolean compareImages(ImagePlus a, ImagePlus b, double tolerance)
     {
         if (a.getWidth() != b.getWidth()
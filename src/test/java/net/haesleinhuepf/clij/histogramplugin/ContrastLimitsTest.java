@@ -0,0 +1,52 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import ij.ImagePlus;
+import ij.gui.NewImage;
+import ij.process.ImageProcessor;
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ContrastLimitsTest {
+
+    @Test
+    public void testPercentilesOfRamp() {
+        CLIJ clij = CLIJ.getInstance();
+
+        // grey values 0 .. 9999, each once
+        ImagePlus imp = NewImage.createFloatImage("ramp", 100, 100, 1, NewImage.FILL_BLACK);
+        ImageProcessor ip = imp.getProcessor();
+        for (int i = 0; i < 10000; i++) {
+            ip.setf(i, i);
+        }
+        ClearCLBuffer image = clij.push(imp);
+
+        // more bins than one scan block
+        for (int numberOfBins : new int[]{100, 1000}) {
+            float binWidth = 9999f / numberOfBins;
+
+            float[] percentiles = ContrastLimits.percentiles(clij, image, new float[]{0f, 0.1f, 0.5f, 0.9f, 1f}, numberOfBins);
+            assertEquals(0, percentiles[0], binWidth);
+            assertEquals(1000, percentiles[1], binWidth);
+            assertEquals(5000, percentiles[2], binWidth);
+            assertEquals(9000, percentiles[3], binWidth);
+            assertEquals(9999, percentiles[4], binWidth);
+
+            float[] limits = ContrastLimits.contrastLimits(clij, image, 1f, 99f, numberOfBins);
+            assertEquals(100, limits[0], binWidth);
+            assertEquals(9900, limits[1], binWidth);
+
+            long[] cumulativeHistogram = ContrastLimits.cumulativeHistogram(clij, image, 0f, 10000f, numberOfBins);
+            long[] histogram = HistogramCPU.histogram(imp, 0f, 10000f, numberOfBins);
+            long sum = 0;
+            for (int i = 0; i < numberOfBins; i++) {
+                sum += histogram[i];
+                assertEquals(sum, cumulativeHistogram[i]);
+            }
+            assertEquals(10000, cumulativeHistogram[numberOfBins - 1]);
+        }
+        image.close();
+    }
+}
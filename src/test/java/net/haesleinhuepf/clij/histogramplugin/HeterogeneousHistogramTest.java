@@ -0,0 +1,78 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import ij.ImagePlus;
+import ij.gui.NewImage;
+import net.haesleinhuepf.clij.CLIJ;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HeterogeneousHistogramTest {
+
+    @Test
+    public void testHistogramOnDeviceAndCPUEqualsCPU() {
+        CLIJ clij = CLIJ.getInstance();
+        ImagePlus imp = NewImage.createShortImage("noise", 128, 96, 23, NewImage.FILL_NOISE);
+        long[] reference = HistogramCPU.histogram(imp, null, null, 256);
+
+        HeterogeneousHistogram scheduler = new HeterogeneousHistogram(Collections.singletonList(clij), 2);
+        assertEquals(2, scheduler.getNumberOfWorkers());
+
+        // the second run is partitioned according to the throughputs measured in the first one
+        for (int i = 0; i < 2; i++) {
+            assertArrayEquals(reference, scheduler.histogram(imp, null, null, 256));
+        }
+        assertTrue(scheduler.getThroughputs()[0] > 0);
+        assertTrue(scheduler.getThroughputs()[1] > 0);
+    }
+
+    @Test
+    public void testHistogramOnTwoDevicesEqualsCPU() {
+        Assume.assumeTrue("Two OpenCL devices are required.", CLIJ.getAvailableDeviceNames().size() >= 2);
+        CLIJ first = new CLIJ(0);
+        CLIJ second = new CLIJ(1);
+        try {
+            ImagePlus imp = NewImage.createShortImage("noise", 128, 96, 24, NewImage.FILL_NOISE);
+            long[] reference = HistogramCPU.histogram(imp, null, null, 256);
+
+            HeterogeneousHistogram scheduler = new HeterogeneousHistogram(Arrays.asList(first, second), 0);
+            assertEquals(2, scheduler.getNumberOfWorkers());
+            // the first stack is split equally
+            assertArrayEquals(new int[]{12, 12}, scheduler.partition(24));
+
+            for (int i = 0; i < 2; i++) {
+                assertArrayEquals(reference, scheduler.histogram(imp, null, null, 256));
+            }
+            // a throughput is only measured on a device which processed a slab
+            assertTrue(scheduler.getThroughputs()[0] > 0);
+            assertTrue(scheduler.getThroughputs()[1] > 0);
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    @Test
+    public void testThroughputs() {
+        HeterogeneousHistogram scheduler = new HeterogeneousHistogram(Collections.emptyList(), 1);
+        assertEquals(0, scheduler.getThroughputs()[0], 0);
+
+        // the first measurement is not averaged with an initial guess, later ones are smoothed
+        scheduler.updateThroughput(0, 1000, 10);
+        assertEquals(100, scheduler.getThroughputs()[0], 0.0001);
+        scheduler.updateThroughput(0, 1000, 5);
+        assertEquals(150, scheduler.getThroughputs()[0], 0.0001);
+    }
+
+    @Test
+    public void testPartition() {
+        HeterogeneousHistogram scheduler = new HeterogeneousHistogram(Collections.emptyList(), 1);
+        assertArrayEquals(new int[]{7}, scheduler.partition(7));
+    }
+}
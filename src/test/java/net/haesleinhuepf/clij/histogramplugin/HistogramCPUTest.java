@@ -0,0 +1,74 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import ij.ImagePlus;
+import ij.gui.NewImage;
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import org.junit.Test;
+
+import static net.haesleinhuepf.clij.histogramplugin.AutomaticThresholdTest.compareImages;
+import static net.haesleinhuepf.clij.histogramplugin.HistogramTest.getImageWithDefinedHistogram;
+import static net.haesleinhuepf.clij.histogramplugin.HistogramTest.sumArray;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * HistogramCPUTest
+ */
+public class HistogramCPUTest {
+    @Test
+    public void testHistogramFrom3DImage() {
+        int imageWidth = 100;
+        int imageHeight = 200;
+        int imageDepth = 10;
+
+        long[] referenceHistogram = new long[256];
+        referenceHistogram[2] = 34;
+        referenceHistogram[100] = 5;
+        referenceHistogram[145] = 22;
+        referenceHistogram[0] = imageWidth * imageHeight * imageDepth - sumArray(referenceHistogram);
+
+        ImagePlus imp = getImageWithDefinedHistogram(imageWidth, imageHeight, imageDepth, referenceHistogram, 0, 255, 8);
+
+        long[] determinedHistogram = HistogramCPU.histogram(imp, 0f, 255f, 256);
+        assertArrayEquals(referenceHistogram, determinedHistogram);
+
+        long[] imglib2Histogram = HistogramCPU.histogram(ImageJFunctions.wrapReal(imp), 0f, 255f, 256);
+        assertArrayEquals(referenceHistogram, imglib2Histogram);
+    }
+
+    @Test
+    public void testCPUAndGPUHistogramsAreIdentical() {
+        ImagePlus imp = NewImage.createShortImage("test", 512, 256, 5, NewImage.FILL_NOISE);
+
+        CLIJ clij = CLIJ.getInstance();
+        ClearCLBuffer image = clij.push(imp);
+
+        float[] minMax = HistogramCPU.minimumMaximum(imp);
+        float[] gpuHistogram = Histogram.histogram(clij, image, minMax[0], minMax[1], 256);
+        long[] cpuHistogram = HistogramCPU.histogram(imp, minMax[0], minMax[1], 256);
+        image.close();
+
+        assertTrue(HistogramTest.compareArrays(cpuHistogram, gpuHistogram, 0));
+    }
+
+    @Test
+    public void testCPUAndGPUThresholdsAreIdentical() {
+        ImagePlus[] imps = new ImagePlus[]{
+                NewImage.createByteImage("byte", 128, 64, 3, NewImage.FILL_NOISE),
+                NewImage.createShortImage("short", 128, 64, 3, NewImage.FILL_NOISE),
+                NewImage.createFloatImage("float", 128, 64, 1, NewImage.FILL_NOISE)
+        };
+
+        for (ImagePlus imp : imps) {
+            ImagePlus cpuThresholded = AutomaticThreshold.applyAutomaticThreshold(imp, 256, "Otsu", true);
+            ImagePlus gpuThresholded = AutomaticThreshold.applyAutomaticThreshold(imp, 256, "Otsu", false);
+
+            assertEquals(imp.getBitDepth(), cpuThresholded.getBitDepth());
+            assertEquals(gpuThresholded.getBitDepth(), cpuThresholded.getBitDepth());
+            assertTrue(compareImages(gpuThresholded, cpuThresholded, 0));
+        }
+    }
+}
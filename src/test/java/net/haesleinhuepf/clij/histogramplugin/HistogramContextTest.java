@@ -0,0 +1,141 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import ij.ImagePlus;
+import ij.gui.NewImage;
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import org.junit.Test;
+
+import static net.haesleinhuepf.clij.histogramplugin.AutomaticThresholdTest.compareImages;
+import static net.haesleinhuepf.clij.histogramplugin.HistogramTest.compareArrays;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * HistogramContextTest
+ */
+public class HistogramContextTest {
+    @Test
+    public void testReuseAcrossImageSizesAndTypes() {
+        CLIJ clij = CLIJ.getInstance();
+
+        ImagePlus[] imps = new ImagePlus[]{
+                NewImage.createByteImage("byte", 128, 64, 1, NewImage.FILL_NOISE),
+                NewImage.createShortImage("short", 256, 128, 5, NewImage.FILL_NOISE),
+                NewImage.createFloatImage("float", 100, 50, 3, NewImage.FILL_NOISE),
+                NewImage.createByteImage("byte again", 128, 64, 1, NewImage.FILL_NOISE)
+        };
+
+        try (HistogramContext context = new HistogramContext(clij)) {
+            ClearCLBuffer firstPartialHistograms = null;
+            int numberOfBuffersAfterThirdImage = 0;
+            for (int i = 0; i < imps.length; i++) {
+                ImagePlus imp = imps[i];
+                ClearCLBuffer image = clij.push(imp);
+                float[] minMax = HistogramCPU.minimumMaximum(imp);
+                long[] reference = HistogramCPU.histogram(imp, minMax[0], minMax[1], 256);
+
+                // given and automatically determined range, twice each to use the pooled buffers again
+                for (int repetition = 0; repetition < 2; repetition++) {
+                    assertTrue(compareArrays(reference, context.histogram(image, minMax[0], minMax[1], 256), 0));
+                    assertTrue(compareArrays(reference, context.histogram(image, null, null, 256), 0));
+                }
+
+                ClearCLBuffer partialHistograms = context.getPartialHistogramsBuffer(image, 256);
+                assertSame(partialHistograms, context.getPartialHistogramsBuffer(image, 256));
+                if (i == 0) {
+                    firstPartialHistograms = partialHistograms;
+                } else if (i == imps.length - 1) {
+                    // an image of the same size and type as the first one finds its buffers pooled
+                    assertSame(firstPartialHistograms, partialHistograms);
+                    assertEquals(numberOfBuffersAfterThirdImage, context.getNumberOfBuffers());
+                }
+                if (i == 2) {
+                    numberOfBuffersAfterThirdImage = context.getNumberOfBuffers();
+                }
+                image.close();
+            }
+        }
+    }
+
+    @Test
+    public void testThresholdEqualsThresholdWithoutContext() {
+        CLIJ clij = CLIJ.getInstance();
+
+        try (HistogramContext context = new HistogramContext(clij)) {
+            for (int depth : new int[]{1, 4}) {
+                ImagePlus imp = NewImage.createShortImage("noise", 256, 128, depth, NewImage.FILL_NOISE);
+                ClearCLBuffer input = clij.push(imp);
+                ClearCLBuffer thresholded = clij.create(input);
+                ClearCLBuffer reference = clij.create(input);
+
+                AutomaticThreshold.applyAutomaticThreshold(clij, input, reference, 256, "Otsu");
+                for (int repetition = 0; repetition < 2; repetition++) {
+                    context.threshold(input, thresholded, 256, "Otsu");
+                    assertTrue(compareImages(clij.pull(reference), clij.pull(thresholded), 0));
+                }
+
+                input.close();
+                thresholded.close();
+                reference.close();
+            }
+        }
+    }
+
+    @Test
+    public void testCloseReleasesAllBuffers() {
+        CLIJ clij = CLIJ.getInstance();
+
+        HistogramContext context = new HistogramContext(clij);
+        ClearCLBuffer image = clij.push(NewImage.createShortImage("noise", 64, 64, 1, NewImage.FILL_NOISE));
+        context.histogram(image, null, null, 256);
+        ClearCLBuffer histogram = context.getHistogramBuffer(256, NativeTypeEnum.Float);
+        assertTrue(context.getNumberOfBuffers() > 0);
+
+        context.close();
+        assertEquals(0, context.getNumberOfBuffers());
+
+        // buffers are allocated again when the context is used after closing it
+        assertNotSame(histogram, context.getHistogramBuffer(256, NativeTypeEnum.Float));
+        context.close();
+        assertEquals(0, context.getNumberOfBuffers());
+        image.close();
+    }
+
+    @Test
+    public void testLeastRecentlyUsedBuffersAreEvicted() {
+        CLIJ clij = CLIJ.getInstance();
+
+        try (HistogramContext context = new HistogramContext(clij, HistogramContext.MINIMUM_NUMBER_OF_BUFFERS)) {
+            ClearCLBuffer firstPartialHistograms = null;
+            // partial buffers depend on the image height
+            int[] heights = {16, 24, 40, 16};
+            for (int i = 0; i < heights.length; i++) {
+                ImagePlus imp = NewImage.createShortImage("noise", 64, heights[i], 2, NewImage.FILL_NOISE);
+                ClearCLBuffer image = clij.push(imp);
+                float[] minMax = HistogramCPU.minimumMaximum(imp);
+                long[] reference = HistogramCPU.histogram(imp, minMax[0], minMax[1], 256);
+
+                assertTrue(compareArrays(reference, context.histogram(image, null, null, 256), 0));
+                assertTrue(context.getNumberOfBuffers() <= HistogramContext.MINIMUM_NUMBER_OF_BUFFERS);
+
+                ClearCLBuffer partialHistograms = context.getPartialHistogramsBuffer(image, 256);
+                if (i == 0) {
+                    firstPartialHistograms = partialHistograms;
+                } else if (i == heights.length - 1) {
+                    // evicted by the images of other sizes and allocated again
+                    assertNotSame(firstPartialHistograms, partialHistograms);
+                }
+                image.close();
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooSmallPoolIsRejected() {
+        new HistogramContext(CLIJ.getInstance(), HistogramContext.MINIMUM_NUMBER_OF_BUFFERS - 1);
+    }
+}
@@ -0,0 +1,197 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import ij.ImagePlus;
+import ij.gui.NewImage;
+import ij.process.ImageProcessor;
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import org.junit.Test;
+
+import java.nio.IntBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramEqualizationTest {
+
+    @Test
+    public void testEqualizationEqualsLookupTableOnHost() {
+        CLIJ clij = CLIJ.getInstance();
+        ImagePlus imp = NewImage.createShortImage("noise", 64, 48, 1, NewImage.FILL_NOISE);
+        ClearCLBuffer src = clij.push(imp);
+        ClearCLBuffer dst = clij.create(src);
+
+        int numberOfBins = 256;
+        HistogramEqualization.equalizeHistogram(clij, src, dst, numberOfBins);
+        ImageProcessor result = clij.pull(dst).getProcessor();
+
+        float[] minMax = HistogramCPU.minimumMaximum(imp);
+        float range = minMax[1] - minMax[0];
+        long[] histogram = HistogramCPU.histogram(imp, minMax[0], minMax[1], numberOfBins);
+        long total = 64 * 48;
+        float[] lut = new float[numberOfBins];
+        long sum = 0;
+        for (int i = 0; i < numberOfBins; i++) {
+            sum += histogram[i];
+            lut[i] = (float)sum / total;
+        }
+
+        ImageProcessor ip = imp.getProcessor();
+        for (int i = 0; i < total; i++) {
+            float expected = minMax[0] + lut[HistogramCPU.binIndex(ip.getf(i), minMax[0], range, numberOfBins)] * range;
+            assertEquals(expected, result.getf(i), 1);
+        }
+
+        src.close();
+        dst.close();
+    }
+
+    @Test
+    public void testOneTileWithoutClippingEqualsGlobalEqualization() {
+        CLIJ clij = CLIJ.getInstance();
+        ImagePlus imp = NewImage.createByteImage("noise", 64, 48, 3, NewImage.FILL_NOISE);
+        ClearCLBuffer src = clij.push(imp);
+        ClearCLBuffer adaptive = clij.create(src);
+        ClearCLBuffer global = clij.create(src);
+
+        AdaptiveHistogramEqualization.equalizeHistogram(clij, src, adaptive, 256, 64, 48, 3, 0f);
+        HistogramEqualization.equalizeHistogram(clij, src, global, 256);
+
+        ImagePlus adaptiveImp = clij.pull(adaptive);
+        ImagePlus globalImp = clij.pull(global);
+        for (int z = 1; z <= 3; z++) {
+            assertArrayEquals((byte[]) globalImp.getStack().getPixels(z), (byte[]) adaptiveImp.getStack().getPixels(z));
+        }
+
+        src.close();
+        adaptive.close();
+        global.close();
+    }
+
+    @Test
+    public void testClippingLimitsLookupTableSlope() {
+        CLIJ clij = CLIJ.getInstance();
+        int numberOfBins = 64;
+        int numberOfTiles = 3;
+        int[] histograms = new int[numberOfBins * numberOfTiles];
+        // a single peak, a flat histogram and two peaks on a flat background, 256 pixels each
+        histograms[10] = 256;
+        for (int i = 0; i < numberOfBins; i++) {
+            histograms[numberOfBins + i] = 4;
+            histograms[2 * numberOfBins + i] = 2;
+        }
+        histograms[2 * numberOfBins + 20] += 64;
+        histograms[2 * numberOfBins + 40] += 64;
+
+        ClearCLBuffer histogramsBuffer = clij.createCLBuffer(new long[]{numberOfBins, numberOfTiles}, NativeTypeEnum.UnsignedInt);
+        histogramsBuffer.readFrom(IntBuffer.wrap(histograms), true);
+        ClearCLBuffer lookupTables = clij.createCLBuffer(new long[]{numberOfBins, numberOfTiles}, NativeTypeEnum.Float);
+
+        float clipLimit = 2;
+        HistogramEqualization.fillLookupTables(clij, histogramsBuffer, lookupTables, clipLimit);
+        float[][] luts = HistogramReadback.rows(HistogramReadback.readFloats(lookupTables), numberOfBins);
+
+        // every bin contributes at most the limit plus the redistributed excess, i.e. (clipLimit + 1) / numberOfBins
+        float maximumSlope = (clipLimit + 1) / numberOfBins;
+        for (int t = 0; t < numberOfTiles; t++) {
+            int[] histogram = new int[numberOfBins];
+            System.arraycopy(histograms, t * numberOfBins, histogram, 0, numberOfBins);
+            float[] expected = lookupTable(histogram, clipLimit);
+            for (int i = 0; i < numberOfBins; i++) {
+                float step = luts[t][i] - (i > 0 ? luts[t][i - 1] : 0);
+                assertTrue("tile " + t + ", bin " + i + ": slope " + step, step <= maximumSlope + 1e-6);
+                assertEquals(expected[i], luts[t][i], 1e-5);
+            }
+        }
+
+        histogramsBuffer.close();
+        lookupTables.close();
+    }
+
+    @Test
+    public void testAdaptiveEqualizationEqualsInterpolationOnHost() {
+        CLIJ clij = CLIJ.getInstance();
+        int width = 64;
+        int height = 48;
+        int tileSize = 16;
+        int numberOfBins = 64;
+        float clipLimit = 2;
+
+        // a ramp with noise, so that the tiles differ
+        ImagePlus imp = NewImage.createByteImage("ramp", width, height, 1, NewImage.FILL_BLACK);
+        ImageProcessor ip = imp.getProcessor();
+        Random random = new Random(42);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                ip.set(x, y, Math.min(255, 2 * x + y + random.nextInt(64)));
+            }
+        }
+        ClearCLBuffer src = clij.push(imp);
+        ClearCLBuffer dst = clij.create(src);
+
+        AdaptiveHistogramEqualization.equalizeHistogram(clij, src, dst, numberOfBins, tileSize, tileSize, 1, clipLimit);
+        ImageProcessor result = clij.pull(dst).getProcessor();
+
+        float[] minMax = HistogramCPU.minimumMaximum(imp);
+        float range = minMax[1] - minMax[0];
+        int tilesX = width / tileSize;
+        int tilesY = height / tileSize;
+        int[][] histograms = new int[tilesX * tilesY][numberOfBins];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                histograms[x / tileSize + (y / tileSize) * tilesX][HistogramCPU.binIndex(ip.getf(x, y), minMax[0], range, numberOfBins)]++;
+            }
+        }
+        float[][] luts = new float[histograms.length][];
+        for (int t = 0; t < histograms.length; t++) {
+            luts[t] = lookupTable(histograms[t], clipLimit);
+        }
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int bin = HistogramCPU.binIndex(ip.getf(x, y), minMax[0], range, numberOfBins);
+                float tileX = LocalAutomaticThresholdTest.tileCoordinate(x, tileSize, tilesX, width);
+                float tileY = LocalAutomaticThresholdTest.tileCoordinate(y, tileSize, tilesY, height);
+                int tx = Math.min((int) tileX, tilesX - 1);
+                int ty = Math.min((int) tileY, tilesY - 1);
+                int tx1 = Math.min(tx + 1, tilesX - 1);
+                int ty1 = Math.min(ty + 1, tilesY - 1);
+                float fx = tileX - tx;
+                float fy = tileY - ty;
+
+                float top = luts[ty * tilesX + tx][bin] * (1 - fx) + luts[ty * tilesX + tx1][bin] * fx;
+                float bottom = luts[ty1 * tilesX + tx][bin] * (1 - fx) + luts[ty1 * tilesX + tx1][bin] * fx;
+                float expected = Math.round(minMax[0] + (top * (1 - fy) + bottom * fy) * range);
+                assertEquals("pixel " + x + "/" + y, expected, result.getf(x, y), 1);
+            }
+        }
+
+        src.close();
+        dst.close();
+    }
+
+    // same as histograms_to_luts in histogram_lut.cl
+    private static float[] lookupTable(int[] histogram, float clipLimit) {
+        float total = 0;
+        for (int count : histogram) {
+            total += count;
+        }
+        float limit = clipLimit > 0 ? Math.max(1.0f, clipLimit * total / histogram.length) : total;
+        float excess = 0;
+        for (int count : histogram) {
+            excess += Math.max(count - limit, 0);
+        }
+        float redistributed = excess / histogram.length;
+
+        float[] lut = new float[histogram.length];
+        float sum = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            sum += Math.min(histogram[i], limit) + redistributed;
+            lut[i] = Math.min(sum / total, 1.0f);
+        }
+        return lut;
+    }
+}
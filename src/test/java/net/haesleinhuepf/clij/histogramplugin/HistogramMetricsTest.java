@@ -0,0 +1,54 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import ij.ImagePlus;
+import ij.gui.NewImage;
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramMetricsTest {
+
+    @Test
+    public void testPhasesAreRecorded() {
+        CLIJ clij = CLIJ.getInstance();
+        ImagePlus imp = NewImage.createShortImage("noise", 512, 512, 4, NewImage.FILL_NOISE);
+        ClearCLBuffer image = clij.push(imp);
+
+        HistogramMetrics.LatencyRecorder recorder = new HistogramMetrics.LatencyRecorder();
+        HistogramMetrics.addListener(recorder);
+        try {
+            Histogram.histogram(clij, image, null, null, 256);
+        } finally {
+            HistogramMetrics.removeListener(recorder);
+        }
+        image.close();
+
+        assertEquals(1, recorder.getCount(HistogramMetrics.Phase.MINIMUM_MAXIMUM));
+        assertTrue(recorder.getCount(HistogramMetrics.Phase.BINNING) > 0);
+        assertTrue(recorder.getTotalNanoseconds(HistogramMetrics.Phase.BINNING) > 0);
+        // the histogram itself is read back as 256 floats
+        assertTrue(recorder.getBytes(HistogramMetrics.Phase.READBACK) >= 256 * 4);
+
+        long sum = 0;
+        for (long count : recorder.getLatencyHistogram(HistogramMetrics.Phase.READBACK)) {
+            sum += count;
+        }
+        assertEquals(recorder.getCount(HistogramMetrics.Phase.READBACK), sum);
+
+        assertFalse(HistogramMetrics.isEnabled());
+        recorder.reset();
+        assertEquals(0, recorder.getCount(HistogramMetrics.Phase.BINNING));
+    }
+
+    @Test
+    public void testLatencyBuckets() {
+        assertEquals(0, HistogramMetrics.LatencyRecorder.bucket(1));
+        assertEquals(1, HistogramMetrics.LatencyRecorder.bucket(3));
+        assertEquals(10, HistogramMetrics.LatencyRecorder.bucket(1024));
+        assertEquals(62, HistogramMetrics.LatencyRecorder.bucket(Long.MAX_VALUE));
+    }
+}
@@ -0,0 +1,66 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import ij.ImagePlus;
+import ij.gui.NewImage;
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class HistogramPerChannelTest {
+
+    @Test
+    public void testHistogramPerChannelEqualsCountingOnHost() {
+        CLIJ clij = CLIJ.getInstance();
+        int numberOfChannels = 3;
+        int slicesPerChannel = 4;
+        int depth = numberOfChannels * slicesPerChannel;
+
+        ImagePlus imp = NewImage.createShortImage("channels", 64, 48, depth, NewImage.FILL_NOISE);
+        // shift the channels against each other so that their ranges differ
+        for (int z = 1; z <= depth; z++) {
+            imp.getStack().getProcessor(z).add(1000 * z);
+        }
+        ClearCLBuffer image = clij.push(imp);
+
+        for (boolean interleaved : new boolean[]{true, false}) {
+            // small bin counts fit into local memory, large ones do not
+            for (int numberOfBins : new int[]{256, 16384}) {
+                int[][] determined = HistogramPerChannel.histogramPerChannel(clij, image, numberOfChannels, interleaved, null, null, numberOfBins);
+
+                for (int c = 0; c < numberOfChannels; c++) {
+                    float minimum = Float.MAX_VALUE;
+                    float maximum = -Float.MAX_VALUE;
+                    for (int z = 1; z <= depth; z++) {
+                        if (channel(z - 1, numberOfChannels, slicesPerChannel, interleaved) != c) {
+                            continue;
+                        }
+                        for (int i = 0; i < 64 * 48; i++) {
+                            minimum = Math.min(minimum, imp.getStack().getProcessor(z).getf(i));
+                            maximum = Math.max(maximum, imp.getStack().getProcessor(z).getf(i));
+                        }
+                    }
+
+                    long[] reference = new long[numberOfBins];
+                    for (int z = 1; z <= depth; z++) {
+                        if (channel(z - 1, numberOfChannels, slicesPerChannel, interleaved) != c) {
+                            continue;
+                        }
+                        for (int i = 0; i < 64 * 48; i++) {
+                            reference[HistogramCPU.binIndex(imp.getStack().getProcessor(z).getf(i), minimum, maximum - minimum, numberOfBins)]++;
+                        }
+                    }
+                    for (int b = 0; b < numberOfBins; b++) {
+                        assertEquals(reference[b], determined[c][b]);
+                    }
+                }
+            }
+        }
+        image.close();
+    }
+
+    private static int channel(int z, int numberOfChannels, int slicesPerChannel, boolean interleaved) {
+        return interleaved ? z % numberOfChannels : z / slicesPerChannel;
+    }
+}
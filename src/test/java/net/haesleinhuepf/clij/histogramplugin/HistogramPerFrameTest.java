@@ -0,0 +1,92 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import ij.ImagePlus;
+import ij.gui.NewImage;
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * HistogramPerFrameTest
+ */
+public class HistogramPerFrameTest {
+    @Test
+    public void testHistogramPerFrameEqualsHistogramPerSlice() {
+        ImagePlus imp = NewImage.createShortImage("test", 256, 128, 8, NewImage.FILL_NOISE);
+
+        CLIJ clij = CLIJ.getInstance();
+        ClearCLBuffer image = clij.push(imp);
+
+        float[] minMax = Histogram.minimumMaximum(clij, image);
+        float[][] histograms = HistogramPerFrame.histogramPerFrame(clij, image, minMax[0], minMax[1], 256, 1);
+        image.close();
+
+        for (int z = 0; z < imp.getNSlices(); z++) {
+            imp.setSlice(z + 1);
+            ClearCLBuffer slice = clij.push(new ImagePlus("slice", imp.getProcessor()));
+            float[] reference = Histogram.histogram(clij, slice, minMax[0], minMax[1], 256);
+            slice.close();
+
+            assertArrayEquals(reference, histograms[z], 0);
+        }
+    }
+
+    @Test
+    public void testListOfFramesEqualsStack() {
+        ImagePlus imp = NewImage.createShortImage("test", 96, 64, 5, NewImage.FILL_NOISE);
+
+        CLIJ clij = CLIJ.getInstance();
+        ClearCLBuffer image = clij.push(imp);
+        List<ClearCLBuffer> frames = new ArrayList<>();
+        for (int z = 0; z < imp.getNSlices(); z++) {
+            imp.setSlice(z + 1);
+            frames.add(clij.push(new ImagePlus("slice", imp.getProcessor())));
+        }
+
+        // given range and range of all frames
+        for (Float[] range : new Float[][]{{100f, 30000f}, {null, null}}) {
+            float[][] reference = HistogramPerFrame.histogramPerFrame(clij, image, range[0], range[1], 256, 1);
+            float[][] histograms = HistogramPerFrame.histogramPerFrame(clij, frames, range[0], range[1], 256);
+            for (int z = 0; z < imp.getNSlices(); z++) {
+                assertArrayEquals(reference[z], histograms[z], 0);
+            }
+        }
+
+        image.close();
+        for (ClearCLBuffer frame : frames) {
+            frame.close();
+        }
+    }
+
+    @Test
+    public void testSlicesPerFrameMustDivideDepth() {
+        CLIJ clij = CLIJ.getInstance();
+        ClearCLBuffer image = clij.push(NewImage.createShortImage("test", 64, 32, 7, NewImage.FILL_NOISE));
+        ClearCLBuffer thresholded = clij.create(image);
+
+        // 7 slices can't be split into frames of 2 slices; frames of 0 slices don't exist
+        for (int slicesPerFrame : new int[]{2, 0, -1}) {
+            try {
+                HistogramPerFrame.histogramPerFrame(clij, image, 0f, 65535f, 256, slicesPerFrame);
+                fail("Frames of " + slicesPerFrame + " slices were accepted.");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            try {
+                AutomaticThreshold.applyAutomaticThresholdPerFrame(clij, image, thresholded, 256, "Otsu", slicesPerFrame);
+                fail("Frames of " + slicesPerFrame + " slices were accepted.");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+
+        image.close();
+        thresholded.close();
+    }
+}
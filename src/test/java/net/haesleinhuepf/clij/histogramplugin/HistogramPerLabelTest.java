@@ -0,0 +1,79 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import ij.ImagePlus;
+import ij.gui.NewImage;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * HistogramPerLabelTest
+ */
+public class HistogramPerLabelTest {
+    @Test
+    public void testHistogramPerLabel() {
+        int width = 256;
+        int height = 128;
+        int numberOfBins = 64;
+        ImagePlus imp = NewImage.createShortImage("test", width, height, 1, NewImage.FILL_NOISE);
+        ImageProcessor ip = imp.getProcessor();
+
+        // stripes of 32 columns; labels 0 to 7
+        FloatProcessor labelMap = new FloatProcessor(width, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                labelMap.setf(x, y, x / 32);
+            }
+        }
+
+        CLIJ clij = CLIJ.getInstance();
+        ClearCLBuffer image = clij.push(imp);
+        ClearCLBuffer labels = clij.push(new ImagePlus("labels", labelMap));
+
+        float[] minMax = Histogram.minimumMaximum(clij, image);
+        float[][] histograms = HistogramPerLabel.histogramPerLabel(clij, image, labels, minMax[0], minMax[1], numberOfBins);
+
+        // missing bounds are determined from the image
+        float[][][] histogramsWithDeterminedBounds = new float[][][]{
+                HistogramPerLabel.histogramPerLabel(clij, image, labels, null, null, numberOfBins),
+                HistogramPerLabel.histogramPerLabel(clij, image, labels, minMax[0], null, numberOfBins),
+                HistogramPerLabel.histogramPerLabel(clij, image, labels, null, minMax[1], numberOfBins)
+        };
+        image.close();
+        labels.close();
+
+        assertEquals(8, histograms.length);
+
+        float[][] reference = new float[8][numberOfBins];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                reference[x / 32][HistogramCPU.binIndex(ip.getf(x, y), minMax[0], minMax[1] - minMax[0], numberOfBins)]++;
+            }
+        }
+        for (int label = 0; label < 8; label++) {
+            assertArrayEquals(reference[label], histograms[label], 0);
+            for (float[][] determined : histogramsWithDeterminedBounds) {
+                assertArrayEquals(reference[label], determined[label], 0);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLabelMapOfOtherSizeIsRejected() {
+        CLIJ clij = CLIJ.getInstance();
+
+        ClearCLBuffer image = clij.push(NewImage.createShortImage("image", 64, 32, 3, NewImage.FILL_NOISE));
+        ClearCLBuffer labelMap = clij.push(NewImage.createShortImage("labels", 32, 32, 3, NewImage.FILL_BLACK));
+        try {
+            HistogramPerLabel.histogramPerLabel(clij, image, labelMap, 0f, 65535f, 256);
+        } finally {
+            image.close();
+            labelMap.close();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramProgramCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String previousLocation;
+    private File recordedConfigurations;
+
+    @Before
+    public void recordIntoTemporaryFolder() {
+        previousLocation = System.getProperty(HistogramProgramCache.RECORDED_CONFIGURATIONS_PROPERTY);
+        recordedConfigurations = new File(folder.getRoot(), "histogram-programs.txt");
+        System.setProperty(HistogramProgramCache.RECORDED_CONFIGURATIONS_PROPERTY, recordedConfigurations.getPath());
+    }
+
+    @After
+    public void restoreLocation() {
+        if (previousLocation == null) {
+            System.clearProperty(HistogramProgramCache.RECORDED_CONFIGURATIONS_PROPERTY);
+        } else {
+            System.setProperty(HistogramProgramCache.RECORDED_CONFIGURATIONS_PROPERTY, previousLocation);
+        }
+    }
+
+    @Test
+    public void testWarmUpBuildsEveryConfigurationOnce() throws IOException {
+        CLIJ clij = CLIJ.getInstance();
+        NativeTypeEnum[] types = {NativeTypeEnum.UnsignedByte, NativeTypeEnum.UnsignedShort};
+        long[][] imageSizes = {{64, 32}, {64, 32, 3}};
+        int[] numbersOfBins = {256};
+
+        HistogramMetrics.LatencyRecorder recorder = new HistogramMetrics.LatencyRecorder();
+        HistogramMetrics.addListener(recorder);
+        try {
+            Histogram.warmUp(clij, types, imageSizes, numbersOfBins);
+            assertTrue(recorder.getCount(HistogramMetrics.Phase.BINNING) > 0);
+            assertEquals(types.length * imageSizes.length * numbersOfBins.length, Files.readAllLines(recordedConfigurations.toPath(), StandardCharsets.UTF_8).size());
+
+            // configurations which were built already are skipped
+            recorder.reset();
+            Histogram.warmUp(clij, types, imageSizes, numbersOfBins);
+            assertEquals(0, recorder.getCount(HistogramMetrics.Phase.BINNING));
+            assertEquals(0, HistogramProgramCache.warmUpRecordedConfigurations(clij));
+        } finally {
+            HistogramMetrics.removeListener(recorder);
+        }
+    }
+
+    @Test
+    public void testRecordSkipsConfigurationsInFile() throws IOException {
+        String first = HistogramProgramCache.configuration("key", NativeTypeEnum.UnsignedByte, new long[]{64, 32}, 256);
+        String second = HistogramProgramCache.configuration("key", NativeTypeEnum.UnsignedShort, new long[]{64, 32}, 256);
+
+        HistogramProgramCache.record(Arrays.asList(first));
+        // e.g. a second JVM recording the same configurations again
+        HistogramProgramCache.record(Arrays.asList(first, second));
+        HistogramProgramCache.record(Arrays.asList(second, first));
+
+        List<String> lines = Files.readAllLines(recordedConfigurations.toPath(), StandardCharsets.UTF_8);
+        assertEquals(Arrays.asList(first, second), lines);
+    }
+
+    @Test
+    public void testCorruptLinesAreSkipped() throws IOException {
+        CLIJ clij = CLIJ.getInstance();
+        String deviceKey = HistogramProgramCache.deviceKey(clij);
+        String valid = HistogramProgramCache.configuration(deviceKey, NativeTypeEnum.UnsignedByte, new long[]{37, 19}, 16);
+
+        Files.write(recordedConfigurations.toPath(), Arrays.asList(
+                deviceKey + "\tNoSuchType\t64,32\t256",
+                deviceKey + "\tUnsignedByte\t64,x\t256",
+                deviceKey + "\tUnsignedByte\t64,32\tmany",
+                deviceKey + "\tUnsignedByte",
+                "",
+                valid
+        ), StandardCharsets.UTF_8);
+
+        assertEquals(1, HistogramProgramCache.warmUpRecordedConfigurations(clij));
+        assertEquals(0, HistogramProgramCache.warmUpRecordedConfigurations(clij));
+    }
+
+    @Test
+    public void testConfiguration() {
+        assertEquals("key\tUnsignedShort\t512,512,100\t256", HistogramProgramCache.configuration("key", NativeTypeEnum.UnsignedShort, new long[]{512, 512, 100}, 256));
+    }
+}
@@ -19,9 +19,12 @@ import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.Views;
+import org.junit.Assume;
 import org.junit.Test;
 
+import java.nio.FloatBuffer;
 import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
 
 import static org.junit.Assert.*;
 
@@ -60,6 +63,246 @@ public class HistogramTest {
         checkImage(imp, referenceHistogram, 0f, 255f);
     }
 
+    @Test
+    public void testHistogramWith65536Bins() {
+        int imageWidth = 100;
+        int imageHeight = 200;
+        int imageDepth = 10;
+
+        long[] referenceHistogram = new long[65536];
+        referenceHistogram[2] = 34;
+        referenceHistogram[1000] = 5;
+        referenceHistogram[40000] = 22;
+        referenceHistogram[0] = imageWidth * imageHeight * imageDepth - sumArray(referenceHistogram);
+
+        ImagePlus imp = getImageWithDefinedHistogram(imageWidth, imageHeight, imageDepth, referenceHistogram, 0, 65535, 16);
+
+        CLIJ clij = CLIJ.getInstance();
+        ClearCLBuffer image = clij.convert(imp, ClearCLBuffer.class);
+
+        // a range of 65536 grey values results in bins of width 1
+        float[] determinedHistogram = Histogram.histogram(clij, image, 0f, 65536f, 65536);
+        image.close();
+
+        assertTrue(compareArrays(referenceHistogram, determinedHistogram, 0));
+        assertArrayEquals(referenceHistogram, HistogramCPU.histogram(imp, 0f, 65536f, 65536));
+    }
+
+    @Test
+    public void testSparselySampledHistogram() {
+        CLIJ clij = CLIJ.getInstance();
+
+        for (int depth : new int[]{1, 7}) {
+            // odd sizes: the last row, column and slice are sampled as well
+            ImagePlus imp = NewImage.createByteImage("test", 101, 51, depth, NewImage.FILL_BLACK);
+            for (int z = 0; z < depth; z++) {
+                imp.getStack().getProcessor(z + 1).set(5);
+            }
+            ClearCLBuffer image = clij.push(imp);
+            long numberOfPixels = 101 * 51 * depth;
+
+            for (int stride : new int[]{2, 4}) {
+                SparseSampling sampling = SparseSampling.withStride(stride);
+                float[] determinedHistogram = Histogram.histogram(clij, image, 0f, 255f, 256, sampling);
+
+                // counts are scaled to full-image equivalents
+                assertEquals(numberOfPixels, determinedHistogram[5], 0.5);
+                assertEquals(numberOfPixels, sumArray(determinedHistogram), 0.5);
+            }
+
+            SparseSampling budget = SparseSampling.withPixelBudget(image, 1000);
+            assertTrue(budget.isSparse());
+            assertEquals(numberOfPixels, Histogram.histogram(clij, image, 0f, 255f, 256, budget)[5], 0.5);
+
+            image.close();
+        }
+    }
+
+    @Test
+    public void testReusedPartialHistogramsStayZeroed() {
+        CLIJ clij = CLIJ.getInstance();
+
+        // small images are binned and reduced in one launch, large ones in two
+        for (int size : new int[]{64, 2048}) {
+            ImagePlus imp = NewImage.createShortImage("test", size, size, 1, NewImage.FILL_NOISE);
+            ClearCLBuffer image = clij.push(imp);
+            float[] minMax = HistogramCPU.minimumMaximum(imp);
+            long[] reference = HistogramCPU.histogram(imp, minMax[0], minMax[1], 256);
+
+            try (HistogramContext context = new HistogramContext(clij)) {
+                for (int i = 0; i < 3; i++) {
+                    float[] determinedHistogram = context.histogram(image, minMax[0], minMax[1], 256);
+                    assertTrue(compareArrays(reference, determinedHistogram, 0));
+                }
+            }
+            image.close();
+        }
+    }
+
+    @Test
+    public void testExactIntegerHistograms() {
+        CLIJ clij = CLIJ.getInstance();
+
+        // the small image is binned and reduced in one launch, the large one in two
+        for (int size : new int[]{64, 2048}) {
+            ImagePlus imp = NewImage.createShortImage("test", size, size, 1, NewImage.FILL_NOISE);
+            ClearCLBuffer image = clij.push(imp);
+            float[] minMax = HistogramCPU.minimumMaximum(imp);
+            long[] reference = HistogramCPU.histogram(imp, minMax[0], minMax[1], 256);
+
+            assertArrayEquals(reference, Histogram.histogramLong(clij, image, minMax[0], minMax[1], 256));
+
+            int[] intHistogram = Histogram.histogramInt(clij, image, minMax[0], minMax[1], 256);
+            for (int i = 0; i < reference.length; i++) {
+                assertEquals(reference[i], intHistogram[i]);
+            }
+            image.close();
+        }
+    }
+
+    @Test
+    public void testReadbackIntoArraysAndAsync() throws Exception {
+        CLIJ clij = CLIJ.getInstance();
+
+        ImagePlus imp = NewImage.createShortImage("test", 256, 256, 1, NewImage.FILL_NOISE);
+        ClearCLBuffer image = clij.push(imp);
+        float[] minMax = HistogramCPU.minimumMaximum(imp);
+        long[] reference = HistogramCPU.histogram(imp, minMax[0], minMax[1], 256);
+
+        CompletableFuture<float[]> asyncHistogram = Histogram.histogramAsync(clij, image, minMax[0], minMax[1], 256);
+        assertTrue(compareArrays(reference, asyncHistogram.get(), 0));
+
+        // the same array is filled again for every image
+        float[] result = new float[256];
+        try (HistogramContext context = new HistogramContext(clij)) {
+            for (int i = 0; i < 2; i++) {
+                assertSame(result, context.histogram(image, minMax[0], minMax[1], SparseSampling.NONE, result));
+                assertTrue(compareArrays(reference, result, 0));
+            }
+        }
+
+        ClearCLBuffer histogram = clij.createCLBuffer(new long[]{256, 1, 1}, NativeTypeEnum.Float);
+        Histogram.fillHistogram(clij, image, histogram, minMax[0], minMax[1]);
+        FloatBuffer direct = new HistogramReadback().read(histogram).asFloatBuffer();
+        for (int i = 0; i < reference.length; i++) {
+            assertEquals(reference[i], direct.get(i), 0);
+        }
+        histogram.close();
+        image.close();
+    }
+
+    @Test
+    public void testReadbackOfNonFloatDestination() {
+        CLIJ clij = CLIJ.getInstance();
+
+        ImagePlus imp = NewImage.createByteImage("test", 64, 64, 1, NewImage.FILL_NOISE);
+        ClearCLBuffer image = clij.push(imp);
+        long[] reference = HistogramCPU.histogram(imp, 0f, 256f, 256);
+
+        // e.g. an existing 16-bit image passed as destination from a macro
+        ClearCLBuffer histogram = clij.createCLBuffer(new long[]{256, 1, 1}, NativeTypeEnum.UnsignedShort);
+        Histogram.fillHistogram(clij, image, histogram, 0f, 256f);
+        assertTrue(compareArrays(reference, HistogramReadback.readAsFloats(clij, histogram), 0));
+
+        histogram.close();
+        image.close();
+    }
+
+    @Test
+    public void testLocalMemoryKernelEqualsRowByRowKernel() {
+        CLIJ clij = CLIJ.getInstance();
+        Assume.assumeTrue(Histogram.useLocalMemoryKernel(clij, 256));
+
+        // odd and prime sizes leave partial tiles; the largest image is not reduced in the binning launch
+        ImagePlus[] imps = new ImagePlus[]{
+                NewImage.createByteImage("byte", 127, 61, 1, NewImage.FILL_NOISE),
+                NewImage.createFloatImage("float", 1031, 3, 1, NewImage.FILL_NOISE),
+                NewImage.createShortImage("short", 97, 31, 5, NewImage.FILL_NOISE),
+                NewImage.createShortImage("large", 2053, 601, 1, NewImage.FILL_NOISE)
+        };
+        SparseSampling[] samplings = new SparseSampling[]{SparseSampling.NONE, new SparseSampling(3, 2, 2)};
+
+        for (ImagePlus imp : imps) {
+            ClearCLBuffer image = clij.push(imp);
+            float[] minMax = HistogramCPU.minimumMaximum(imp);
+            for (SparseSampling sampling : samplings) {
+                String message = imp.getTitle() + ", steps " + sampling.getStepX() + "/" + sampling.getStepY() + "/" + sampling.getStepZ();
+
+                // rows which are not sampled leave their partial histograms untouched
+                ClearCLBuffer rowPartialHistograms = clij.createCLBuffer(new long[]{256, 1, image.getHeight()}, NativeTypeEnum.UnsignedInt);
+                Kernels.set(clij, rowPartialHistograms, 0f);
+                ClearCLBuffer rowHistogram = clij.createCLBuffer(new long[]{256, 1, 1}, NativeTypeEnum.UnsignedInt);
+                Histogram.fillHistogramRowByRow(clij, image, rowPartialHistograms, rowHistogram, minMax[0], minMax[1], sampling);
+
+                ClearCLBuffer localPartialHistograms = Histogram.createPartialHistogramsBuffer(clij, image, 256);
+                ClearCLBuffer localHistogram = clij.createCLBuffer(new long[]{256, 1, 1}, NativeTypeEnum.UnsignedInt);
+                Histogram.fillHistogramUsingAtomics(clij, image, localPartialHistograms, localHistogram, minMax[0], minMax[1], sampling, "histogram.cl", "histogram_image_local_");
+
+                int[] reference = HistogramReadback.readInts(rowHistogram);
+                assertArrayEquals(message, reference, HistogramReadback.readInts(localHistogram));
+                if (!sampling.isSparse()) {
+                    long[] cpuReference = HistogramCPU.histogram(imp, minMax[0], minMax[1], 256);
+                    for (int i = 0; i < 256; i++) {
+                        assertEquals(message, cpuReference[i], reference[i]);
+                    }
+                }
+
+                rowPartialHistograms.close();
+                rowHistogram.close();
+                localPartialHistograms.close();
+                localHistogram.close();
+            }
+            image.close();
+        }
+    }
+
+    @Test
+    public void testFusedMinimumMaximumAndAutoRangeHistogram() {
+        CLIJ clij = CLIJ.getInstance();
+
+        ImagePlus constant = NewImage.createShortImage("constant", 64, 32, 3, NewImage.FILL_BLACK);
+        for (int z = 0; z < constant.getStackSize(); z++) {
+            constant.getStack().getProcessor(z + 1).set(7);
+        }
+        ImagePlus[] imps = new ImagePlus[]{
+                NewImage.createShortImage("2D", 256, 128, 1, NewImage.FILL_NOISE),
+                NewImage.createShortImage("3D", 128, 64, 7, NewImage.FILL_NOISE),
+                NewImage.createFloatImage("float 3D", 100, 50, 3, NewImage.FILL_NOISE),
+                new ImagePlus("constant 2D", constant.getStack().getProcessor(1)),
+                constant
+        };
+
+        for (ImagePlus imp : imps) {
+            ClearCLBuffer image = clij.push(imp);
+            float[] referenceMinMax = HistogramCPU.minimumMaximum(imp);
+            long[] reference = HistogramCPU.histogram(imp, referenceMinMax[0], referenceMinMax[1], 256);
+
+            ClearCLBuffer partialMinMax = clij.createCLBuffer(Histogram.partialMinimumMaximumSize(image), NativeTypeEnum.Float);
+            ClearCLBuffer minMax = clij.createCLBuffer(new long[]{2, 1, 1}, NativeTypeEnum.Float);
+            ClearCLBuffer partialHistograms = Histogram.createPartialHistogramsBuffer(clij, image, 256);
+            ClearCLBuffer autoRangeHistogram = clij.createCLBuffer(new long[]{256, 1, 1}, NativeTypeEnum.Float);
+            ClearCLBuffer hostRangeHistogram = clij.createCLBuffer(new long[]{256, 1, 1}, NativeTypeEnum.Float);
+
+            // range reduced on the host and on the GPU
+            assertArrayEquals(imp.getTitle(), referenceMinMax, Histogram.minimumMaximum(clij, image), 0);
+            Histogram.fillMinimumMaximum(clij, image, partialMinMax, minMax);
+            assertArrayEquals(imp.getTitle(), referenceMinMax, HistogramReadback.readFloats(minMax), 0);
+
+            // a constant image has range 0; all pixels go to the first bin
+            Histogram.fillHistogramAutoRange(clij, image, partialMinMax, minMax, partialHistograms, autoRangeHistogram);
+            Histogram.fillHistogram(clij, image, partialHistograms, hostRangeHistogram, referenceMinMax[0], referenceMinMax[1]);
+            float[] determinedHistogram = HistogramReadback.readFloats(autoRangeHistogram);
+            assertArrayEquals(imp.getTitle(), HistogramReadback.readFloats(hostRangeHistogram), determinedHistogram, 0);
+            assertTrue(imp.getTitle(), compareArrays(reference, determinedHistogram, 0));
+
+            partialMinMax.close();
+            minMax.close();
+            partialHistograms.close();
+            autoRangeHistogram.close();
+            hostRangeHistogram.close();
+            image.close();
+        }
+    }
 
     private void checkImage(ImagePlus imp, long[] referenceHistogram, Float minGreyValue, Float maxGreyValue) {
         CLIJ clij = CLIJ.getInstance();
@@ -129,6 +372,14 @@ public class HistogramTest {
         return sum;
     }
 
+    static double sumArray(float[] array) {
+        double sum = 0;
+        for (float item : array) {
+            sum += item;
+        }
+        return sum;
+    }
+
     static boolean compareArrays(long[] a, float[] b, float tolerance) {
         if (a.length != b.length) {
             System.out.println("Array sizes differ");
@@ -0,0 +1,61 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import ij.ImagePlus;
+import ij.gui.NewImage;
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class IncrementalHistogramTest {
+
+    @Test
+    public void testSlidingWindow() {
+        CLIJ clij = CLIJ.getInstance();
+        int numberOfPixels = 64 * 32;
+
+        try (IncrementalHistogram histogram = IncrementalHistogram.slidingWindow(clij, 256, 0f, 256f, 2)) {
+            for (int value = 1; value <= 3; value++) {
+                ClearCLBuffer frame = frame(clij, value);
+                histogram.add(frame);
+                frame.close();
+            }
+
+            // frame 1 left the window
+            float[] result = histogram.getHistogram();
+            assertEquals(0, result[1], 0);
+            assertEquals(numberOfPixels, result[2], 0);
+            assertEquals(numberOfPixels, result[3], 0);
+            assertEquals(3, histogram.getNumberOfAddedFrames());
+
+            histogram.reset();
+            assertEquals(0, histogram.getHistogram()[3], 0);
+        }
+    }
+
+    @Test
+    public void testExponentiallyDecayed() {
+        CLIJ clij = CLIJ.getInstance();
+        int numberOfPixels = 64 * 32;
+
+        try (IncrementalHistogram histogram = IncrementalHistogram.exponentiallyDecayed(clij, 256, 0f, 256f, 0.5f)) {
+            for (int value = 1; value <= 3; value++) {
+                ClearCLBuffer frame = frame(clij, value);
+                histogram.add(frame);
+                frame.close();
+            }
+
+            float[] result = histogram.getHistogram();
+            assertEquals(numberOfPixels * 0.25, result[1], 0.01);
+            assertEquals(numberOfPixels * 0.5, result[2], 0.01);
+            assertEquals(numberOfPixels, result[3], 0.01);
+        }
+    }
+
+    private static ClearCLBuffer frame(CLIJ clij, int value) {
+        ImagePlus imp = NewImage.createByteImage("frame", 64, 32, 1, NewImage.FILL_BLACK);
+        imp.getProcessor().set(value);
+        return clij.push(imp);
+    }
+}
@@ -0,0 +1,73 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import ij.ImagePlus;
+import ij.gui.NewImage;
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class JointHistogramTest {
+
+    @Test
+    public void testJointHistogramEqualsCountingOnHost() {
+        CLIJ clij = CLIJ.getInstance();
+
+        for (int depth : new int[]{1, 5}) {
+            ImagePlus impA = NewImage.createByteImage("a", 64, 48, depth, NewImage.FILL_NOISE);
+            ImagePlus impB = NewImage.createShortImage("b", 64, 48, depth, NewImage.FILL_NOISE);
+            ImagePlus impMask = NewImage.createByteImage("mask", 64, 48, depth, NewImage.FILL_BLACK);
+            for (int z = 1; z <= depth; z++) {
+                impMask.getStack().getProcessor(z).setRoi(10, 5, 30, 20);
+                impMask.getStack().getProcessor(z).setValue(1);
+                impMask.getStack().getProcessor(z).fill();
+            }
+            ClearCLBuffer imageA = clij.push(impA);
+            ClearCLBuffer imageB = clij.push(impB);
+            ClearCLBuffer mask = clij.push(impMask);
+
+            float[] minMaxB = HistogramCPU.minimumMaximum(impB);
+
+            // small bin counts fit into local memory, large ones do not
+            for (int numberOfBins : new int[]{16, 512}) {
+                int[][] determined = JointHistogram.jointHistogram(clij, imageA, imageB, mask, 0f, 256f, minMaxB[0], minMaxB[1], numberOfBins, numberOfBins);
+                long[][] reference = new long[numberOfBins][numberOfBins];
+                for (int z = 1; z <= depth; z++) {
+                    for (int i = 0; i < 64 * 48; i++) {
+                        if (impMask.getStack().getProcessor(z).getf(i) == 0) {
+                            continue;
+                        }
+                        int a = HistogramCPU.binIndex(impA.getStack().getProcessor(z).getf(i), 0f, 256f, numberOfBins);
+                        int b = HistogramCPU.binIndex(impB.getStack().getProcessor(z).getf(i), minMaxB[0], minMaxB[1] - minMaxB[0], numberOfBins);
+                        reference[b][a]++;
+                    }
+                }
+                for (int b = 0; b < numberOfBins; b++) {
+                    for (int a = 0; a < numberOfBins; a++) {
+                        assertEquals(reference[b][a], determined[b][a]);
+                    }
+                }
+            }
+            imageA.close();
+            imageB.close();
+            mask.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMaskOfOtherSizeIsRejected() {
+        CLIJ clij = CLIJ.getInstance();
+
+        ClearCLBuffer imageA = clij.push(NewImage.createByteImage("a", 64, 32, 3, NewImage.FILL_NOISE));
+        ClearCLBuffer imageB = clij.push(NewImage.createByteImage("b", 64, 32, 3, NewImage.FILL_NOISE));
+        ClearCLBuffer sliceMask = clij.push(NewImage.createByteImage("mask", 64, 32, 1, NewImage.FILL_WHITE));
+        try {
+            JointHistogram.jointHistogram(clij, imageA, imageB, sliceMask, 0f, 256f, 0f, 256f, 16, 16);
+        } finally {
+            imageA.close();
+            imageB.close();
+            sliceMask.close();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import ij.ImagePlus;
+import ij.gui.NewImage;
+import ij.process.ImageProcessor;
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class LocalAutomaticThresholdTest {
+
+    @Test
+    public void testThresholdsPerTileEqualThresholdsOfCroppedTiles() {
+        CLIJ clij = CLIJ.getInstance();
+        ImagePlus imp = NewImage.createByteImage("noise", 128, 96, 1, NewImage.FILL_NOISE);
+        ImageProcessor ip = imp.getProcessor();
+        // uneven illumination
+        for (int y = 0; y < ip.getHeight(); y++) {
+            for (int x = 0; x < ip.getWidth(); x++) {
+                ip.set(x, y, Math.min(255, ip.get(x, y) / 2 + x));
+            }
+        }
+        ClearCLBuffer src = clij.push(imp);
+
+        // Otsu is determined on the GPU, Huang on the CPU
+        for (String method : new String[]{"Otsu", "Huang"}) {
+            float[] thresholds = LocalAutomaticThreshold.localThresholds(clij, src, 256, method, 32, 48, 1);
+            assertEquals(4 * 2, thresholds.length);
+
+            for (int ty = 0; ty < 2; ty++) {
+                for (int tx = 0; tx < 4; tx++) {
+                    ip.setRoi(tx * 32, ty * 48, 32, 48);
+                    long[] histogram = HistogramCPU.histogram(ip.crop(), 0f, 255f, 256);
+                    int[] convertedHistogram = new int[histogram.length];
+                    for (int i = 0; i < histogram.length; i++) {
+                        convertedHistogram[i] = (int)histogram[i];
+                    }
+                    float reference = AutomaticThreshold.determineThreshold(convertedHistogram, method, 0f, 255f);
+                    assertEquals(reference, thresholds[tx + ty * 4], 0.001);
+                }
+            }
+        }
+        src.close();
+    }
+
+    @Test
+    public void testOneTileEqualsGlobalThreshold() {
+        CLIJ clij = CLIJ.getInstance();
+        ImagePlus imp = NewImage.createByteImage("noise", 64, 48, 3, NewImage.FILL_NOISE);
+        ClearCLBuffer src = clij.push(imp);
+        ClearCLBuffer local = clij.create(src);
+        ClearCLBuffer global = clij.create(src);
+
+        LocalAutomaticThreshold.applyLocalAutomaticThreshold(clij, src, local, 256, "Otsu", 64, 48, 3);
+        AutomaticThreshold.applyAutomaticThreshold(clij, src, global, 256, "Otsu");
+
+        ImagePlus localImp = clij.pull(local);
+        ImagePlus globalImp = clij.pull(global);
+        for (int z = 1; z <= 3; z++) {
+            assertArrayEquals((byte[]) globalImp.getStack().getPixels(z), (byte[]) localImp.getStack().getPixels(z));
+        }
+
+        src.close();
+        local.close();
+        global.close();
+    }
+
+    @Test
+    public void testPartialTilesAreInterpolatedFromTheirCentres() {
+        CLIJ clij = CLIJ.getInstance();
+        // 40 x 21 pixels in tiles of 16 x 16: the last column of tiles is 8, the last row 5 pixels wide
+        int width = 40;
+        int height = 21;
+        int tileSize = 16;
+        ImagePlus imp = NewImage.createByteImage("noise", width, height, 1, NewImage.FILL_NOISE);
+        ImageProcessor ip = imp.getProcessor();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                ip.set(x, y, Math.min(255, ip.get(x, y) / 2 + 4 * x));
+            }
+        }
+        ClearCLBuffer src = clij.push(imp);
+        ClearCLBuffer dst = clij.create(src);
+
+        float[] thresholds = LocalAutomaticThreshold.localThresholds(clij, src, 256, "Otsu", tileSize, tileSize, 1);
+        LocalAutomaticThreshold.applyLocalAutomaticThreshold(clij, src, dst, 256, "Otsu", tileSize, tileSize, 1);
+        ImageProcessor result = clij.pull(dst).getProcessor();
+
+        int tilesX = 3;
+        int tilesY = 2;
+        assertEquals(tilesX * tilesY, thresholds.length);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                float tileX = tileCoordinate(x, tileSize, tilesX, width);
+                float tileY = tileCoordinate(y, tileSize, tilesY, height);
+                int tx = Math.min((int) tileX, tilesX - 1);
+                int ty = Math.min((int) tileY, tilesY - 1);
+                int tx1 = Math.min(tx + 1, tilesX - 1);
+                int ty1 = Math.min(ty + 1, tilesY - 1);
+                float fx = tileX - tx;
+                float fy = tileY - ty;
+
+                float top = thresholds[ty * tilesX + tx] * (1 - fx) + thresholds[ty * tilesX + tx1] * fx;
+                float bottom = thresholds[ty1 * tilesX + tx] * (1 - fx) + thresholds[ty1 * tilesX + tx1] * fx;
+                float threshold = top * (1 - fy) + bottom * fy;
+                if (Math.abs(ip.getf(x, y) - threshold) < 0.01) {
+                    continue;
+                }
+                assertEquals("pixel " + x + "/" + y, ip.getf(x, y) < threshold ? 0 : 1, result.getf(x, y), 0);
+            }
+        }
+
+        src.close();
+        dst.close();
+    }
+
+    // same as tile_coordinate in threshold.cl; the integer part is the tile, the rest the fraction towards the next tile
+    static float tileCoordinate(int position, int tileSize, int numberOfTiles, int size) {
+        if (numberOfTiles < 2) {
+            return 0;
+        }
+        float p = position + 0.5f;
+        int tile = Math.max(0, Math.min((int) Math.floor(p / tileSize - 0.5f), numberOfTiles - 2));
+        float centre = tileCentre(tile, tileSize, size);
+        float nextCentre = tileCentre(tile + 1, tileSize, size);
+        return tile + Math.max(0, Math.min((p - centre) / (nextCentre - centre), 1));
+    }
+
+    private static float tileCentre(int tile, int tileSize, int size) {
+        int start = tile * tileSize;
+        return 0.5f * (start + Math.min(start + tileSize, size));
+    }
+}
@@ -0,0 +1,103 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import net.haesleinhuepf.clij.CLIJ;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * MaskedHistogramTest
+ */
+public class MaskedHistogramTest {
+    @Test
+    public void testHistogramInMaskAndBox() {
+        CLIJ clij = CLIJ.getInstance();
+
+        // grey value equals x coordinate; the mask contains the left 30 columns
+        ByteProcessor image = new ByteProcessor(100, 50);
+        ByteProcessor mask = new ByteProcessor(100, 50);
+        for (int y = 0; y < 50; y++) {
+            for (int x = 0; x < 100; x++) {
+                image.set(x, y, x);
+                mask.set(x, y, x < 30 ? 1 : 0);
+            }
+        }
+        ClearCLBuffer imageBuffer = clij.push(new ImagePlus("image", image));
+        ClearCLBuffer maskBuffer = clij.push(new ImagePlus("mask", mask));
+
+        float[] referenceInMask = new float[256];
+        for (int x = 0; x < 30; x++) {
+            referenceInMask[x] = 50;
+        }
+        float[] histogramInMask = Histogram.histogram(clij, imageBuffer, maskBuffer, 0f, 256f, 256);
+        assertArrayEquals(referenceInMask, histogramInMask, 0);
+
+        float[] referenceInBox = new float[256];
+        for (int x = 10; x < 30; x++) {
+            referenceInBox[x] = 10;
+        }
+        float[] histogramInBox = MaskedHistogram.histogram(clij, imageBuffer, new long[]{10, 5}, new long[]{20, 10}, 0f, 256f, 256);
+        assertArrayEquals(referenceInBox, histogramInBox, 0);
+
+        float[] minMax = MaskedHistogram.minimumMaximum(clij, imageBuffer, maskBuffer, null, null);
+        assertArrayEquals(new float[]{0, 29}, minMax, 0);
+
+        imageBuffer.close();
+        maskBuffer.close();
+    }
+
+    @Test
+    public void testMaskOfOtherSizeIsRejected() {
+        CLIJ clij = CLIJ.getInstance();
+
+        ClearCLBuffer image = clij.push(new ImagePlus("image", new ByteProcessor(100, 50)));
+        ClearCLBuffer smallerMask = clij.push(new ImagePlus("mask", new ByteProcessor(50, 50)));
+        ClearCLBuffer stack = clij.createCLBuffer(new long[]{100, 50, 3}, NativeTypeEnum.UnsignedByte);
+        ClearCLBuffer sliceMask = clij.push(new ImagePlus("mask", new ByteProcessor(100, 50)));
+
+        try {
+            assertRejected(() -> MaskedHistogram.histogram(clij, image, smallerMask, 0f, 256f, 256));
+            assertRejected(() -> MaskedHistogram.minimumMaximum(clij, image, smallerMask, null, null));
+            // a 2D mask for a 3D stack
+            assertRejected(() -> MaskedHistogram.histogram(clij, stack, sliceMask, 0f, 256f, 256));
+            assertRejected(() -> MaskedHistogram.minimumMaximum(clij, stack, sliceMask, null, null));
+        } finally {
+            image.close();
+            smallerMask.close();
+            stack.close();
+            sliceMask.close();
+        }
+    }
+
+    @Test
+    public void testThresholdInEmptyMaskIsRejected() {
+        CLIJ clij = CLIJ.getInstance();
+
+        for (NativeTypeEnum type : new NativeTypeEnum[]{NativeTypeEnum.UnsignedByte, NativeTypeEnum.UnsignedShort}) {
+            ClearCLBuffer image = clij.createCLBuffer(new long[]{100, 50}, type);
+            ClearCLBuffer emptyMask = clij.push(new ImagePlus("mask", new ByteProcessor(100, 50)));
+            ClearCLBuffer thresholded = clij.create(image);
+            try {
+                assertRejected(() -> AutomaticThreshold.applyAutomaticThreshold(clij, image, emptyMask, thresholded, 256, "Otsu"));
+            } finally {
+                image.close();
+                emptyMask.close();
+                thresholded.close();
+            }
+        }
+    }
+
+    private static void assertRejected(Runnable runnable) {
+        try {
+            runnable.run();
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
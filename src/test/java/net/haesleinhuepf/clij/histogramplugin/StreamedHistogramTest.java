@@ -0,0 +1,58 @@
+package net.haesleinhuepf.clij.histogramplugin;
+
+import ij.ImagePlus;
+import ij.gui.NewImage;
+import net.haesleinhuepf.clij.CLIJ;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * StreamedHistogramTest
+ */
+public class StreamedHistogramTest {
+    @Test
+    public void testSeveralSlabsEqualCPUHistogram() {
+        CLIJ clij = CLIJ.getInstance();
+
+        ImagePlus[] imps = new ImagePlus[]{
+                NewImage.createByteImage("byte", 128, 64, 10, NewImage.FILL_NOISE),
+                NewImage.createShortImage("short", 100, 50, 9, NewImage.FILL_NOISE),
+                NewImage.createFloatImage("float", 64, 32, 7, NewImage.FILL_NOISE)
+        };
+
+        for (ImagePlus imp : imps) {
+            float[] referenceMinMax = HistogramCPU.minimumMaximum(imp);
+            long[] reference = HistogramCPU.histogram(imp, referenceMinMax[0], referenceMinMax[1], 256);
+
+            // 3 divides 9 but not 10 and 7: the last slab is thinner; 1 and the full depth are the extreme cases
+            for (int slabDepth : new int[]{1, 3, imp.getStackSize()}) {
+                String message = imp.getTitle() + ", slabs of " + slabDepth + " slices";
+                assertArrayEquals(message, referenceMinMax, StreamedHistogram.minimumMaximum(clij, imp, slabDepth), 0);
+                assertArrayEquals(message, reference, StreamedHistogram.histogram(clij, imp, null, null, 256, slabDepth));
+                assertArrayEquals(message, reference, StreamedHistogram.histogram(clij, imp, referenceMinMax[0], referenceMinMax[1], 256, slabDepth));
+                // bins which do not fit into local memory are counted with global atomics
+                long[] reference65536 = HistogramCPU.histogram(imp, referenceMinMax[0], referenceMinMax[1], 65536);
+                assertArrayEquals(message, reference65536, StreamedHistogram.histogram(clij, imp, referenceMinMax[0], referenceMinMax[1], 65536, slabDepth));
+            }
+        }
+    }
+
+    @Test
+    public void testSlabsFitIntoHostBuffers() {
+        long bytesPerSlice = 2048L * 2048 * 4;
+        long gigabyte = 1024L * 1024 * 1024;
+
+        // a device with 16 GB allows slabs of 4 GB, which direct host buffers cannot hold
+        int slabDepth = StreamedHistogram.slabDepth(bytesPerSlice, 1000, 4 * gigabyte, 16 * gigabyte);
+        assertTrue(slabDepth > 1);
+        assertTrue(slabDepth * bytesPerSlice <= Integer.MAX_VALUE / 2);
+
+        // small devices and stacks limit the slab as before
+        assertEquals(4, StreamedHistogram.slabDepth(bytesPerSlice, 1000, 64 * 1024 * 1024, gigabyte));
+        assertEquals(10, StreamedHistogram.slabDepth(bytesPerSlice, 10, 4 * gigabyte, 16 * gigabyte));
+        assertEquals(1, StreamedHistogram.slabDepth(bytesPerSlice, 1000, 1024, gigabyte));
+    }
+}